@@ -0,0 +1,113 @@
+package swiss.ameri.gemini.api;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Consumes a {@link Flow.Publisher} as a blocking {@link Stream}. Only one item is requested at a time, when the
+ * consumer of the stream asks for the next item.
+ *
+ * @param <T> type of the items
+ */
+final class BlockingSubscriber<T> implements Flow.Subscriber<T>, Iterator<T> {
+
+    private static final Object COMPLETE = new Object();
+
+    private final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+    private volatile Flow.Subscription subscription;
+    private Object next;
+    private boolean requested;
+
+    private BlockingSubscriber() {
+    }
+
+    /**
+     * Subscribe to the publisher and expose it as a blocking stream. Closing the stream cancels the subscription.
+     *
+     * @param publisher to consume
+     * @param <T>       type of the items
+     * @return a sequential stream of the published items
+     */
+    static <T> Stream<T> stream(Flow.Publisher<T> publisher) {
+        var subscriber = new BlockingSubscriber<T>();
+        publisher.subscribe(subscriber);
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(subscriber, Spliterator.ORDERED | Spliterator.NONNULL),
+                        false
+                )
+                .onClose(subscriber::cancel);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(T item) {
+        signals.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        signals.add(new Failure(throwable));
+    }
+
+    @Override
+    public void onComplete() {
+        signals.add(COMPLETE);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            if (!requested) {
+                requested = true;
+                subscription.request(1);
+            }
+            try {
+                next = signals.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new GeminiException("Thread was interrupted.", e);
+            }
+            requested = false;
+        }
+        if (next instanceof Failure failure) {
+            if (failure.throwable() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new GeminiException("Stream failed.", failure.throwable());
+        }
+        return next != COMPLETE;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T item = (T) next;
+        next = null;
+        return item;
+    }
+
+    private void cancel() {
+        Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    private record Failure(Throwable throwable) {
+    }
+}
@@ -0,0 +1,92 @@
+package swiss.ameri.gemini.api;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * {@link ResponseMetadataStore} with size and time based eviction.
+ * Entries are kept in the order of their last update, so both the size limit and the expiry only ever have to look
+ * at the head of the map.
+ */
+final class BoundedResponseMetadataStore implements ResponseMetadataStore {
+
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>();
+
+    BoundedResponseMetadataStore(int maximumSize, Duration timeToLive) {
+        Objects.requireNonNull(timeToLive, "timeToLive");
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+        }
+        if (timeToLive.isNegative() || timeToLive.isZero()) {
+            throw new IllegalArgumentException("timeToLive must be positive: " + timeToLive);
+        }
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    @Override
+    public void put(UUID id, ResponseMetadata metadata) {
+        if (maximumSize == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (entries) {
+            // remove first, so that an updated entry moves to the tail
+            entries.remove(id);
+            entries.put(id, new Entry(metadata, now + timeToLiveNanos));
+            evict(now);
+        }
+    }
+
+    @Override
+    public Optional<ResponseMetadata> get(UUID id) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                return Optional.empty();
+            }
+            if (entry.isExpired(now)) {
+                entries.remove(id);
+                return Optional.empty();
+            }
+            return Optional.of(entry.metadata());
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private void evict(long now) {
+        Iterator<Map.Entry<UUID, Entry>> iterator = entries.entrySet().iterator();
+        int size = entries.size();
+        while (iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            if (size <= maximumSize && !eldest.isExpired(now)) {
+                return;
+            }
+            iterator.remove();
+            size--;
+        }
+    }
+
+    private record Entry(
+            ResponseMetadata metadata,
+            long expiresAtNanos
+    ) {
+        boolean isExpired(long now) {
+            return now - expiresAtNanos >= 0;
+        }
+    }
+}
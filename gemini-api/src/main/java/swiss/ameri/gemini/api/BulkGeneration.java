@@ -0,0 +1,283 @@
+package swiss.ameri.gemini.api;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Generates content for any number of models, with a bounded number of requests in flight.
+ * <p>
+ * The models are pulled from their source only when a request can be started, and a result is dropped as soon as it
+ * has been handed back. At most {@code maxConcurrency} models and results are held at any time, regardless of the
+ * number of models. A failed request is reported as the result of its model, and does not affect the others.
+ *
+ * @see GenAi#generateContents(Iterator, int, boolean)
+ */
+final class BulkGeneration {
+
+    private BulkGeneration() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Generate content, and hand back the results through a blocking iterator. The models and the requests are
+     * started on the thread which consumes the results.
+     *
+     * @param models         to generate content for. Only accessed by the consuming thread.
+     * @param maxConcurrency maximum number of requests in flight, and of results which have not been consumed yet
+     * @param ordered        whether the results are returned in the order of the models, or as they complete
+     * @param generate       sends a single request
+     * @return the results. Not thread safe.
+     */
+    static Iterator<GenAi.GenerationResult> iterator(
+            Iterator<GenerativeModel> models,
+            int maxConcurrency,
+            boolean ordered,
+            Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate
+    ) {
+        return ordered
+                ? new OrderedResults(models, maxConcurrency, generate)
+                : new UnorderedResults(models, maxConcurrency, generate);
+    }
+
+    /**
+     * Generate content, and hand back the results to a callback as they complete.
+     *
+     * @param models         to generate content for. Accessed by one thread at a time, but not always the same.
+     * @param maxConcurrency maximum number of requests in flight
+     * @param callback       called once per model, by one thread at a time
+     * @param generate       sends a single request
+     * @return a {@link CompletableFuture} which completes once all results have been handed back. It only fails if
+     * the models or the callback fail, and then once the requests in flight have completed.
+     */
+    static CompletableFuture<Void> forEach(
+            Iterator<GenerativeModel> models,
+            int maxConcurrency,
+            Consumer<GenAi.GenerationResult> callback,
+            Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate
+    ) {
+        var results = new CallbackResults(models, maxConcurrency, callback, generate);
+        results.drain();
+        return results.done;
+    }
+
+    /**
+     * Send a request.
+     *
+     * @return the result, which never fails
+     */
+    private static CompletableFuture<GenAi.GenerationResult> start(
+            long index,
+            GenerativeModel model,
+            Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate
+    ) {
+        CompletableFuture<GenAi.GeneratedContent> response;
+        try {
+            response = generate.apply(model);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.handle((content, throwable) -> throwable == null
+                ? new GenAi.GenerationResult(index, model, content, null)
+                : new GenAi.GenerationResult(index, model, null, Futures.unwrap(throwable)));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeminiException("Thread was interrupted.", e);
+        } catch (ExecutionException e) {
+            // results never fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the results in the order of the models. A slow request holds back the following results, and therefore
+     * the start of new requests, until it completes.
+     */
+    private static final class OrderedResults implements Iterator<GenAi.GenerationResult> {
+
+        private final Iterator<GenerativeModel> models;
+        private final int maxConcurrency;
+        private final Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate;
+        private final Queue<CompletableFuture<GenAi.GenerationResult>> window = new ArrayDeque<>();
+        private long index;
+
+        OrderedResults(
+                Iterator<GenerativeModel> models,
+                int maxConcurrency,
+                Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate
+        ) {
+            this.models = models;
+            this.maxConcurrency = maxConcurrency;
+            this.generate = generate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !window.isEmpty();
+        }
+
+        @Override
+        public GenAi.GenerationResult next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            // the head keeps its slot until it has completed, so that at most maxConcurrency requests are in flight
+            return await(window.remove());
+        }
+
+        private void fill() {
+            while (window.size() < maxConcurrency && models.hasNext()) {
+                window.add(start(index++, models.next(), generate));
+            }
+        }
+    }
+
+    /**
+     * Returns the results as they complete.
+     */
+    private static final class UnorderedResults implements Iterator<GenAi.GenerationResult> {
+
+        private final Iterator<GenerativeModel> models;
+        private final int maxConcurrency;
+        private final Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate;
+        private final BlockingQueue<GenAi.GenerationResult> completed = new LinkedBlockingQueue<>();
+        // started, but not returned yet
+        private int pending;
+        private long index;
+
+        UnorderedResults(
+                Iterator<GenerativeModel> models,
+                int maxConcurrency,
+                Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate
+        ) {
+            this.models = models;
+            this.maxConcurrency = maxConcurrency;
+            this.generate = generate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return pending > 0;
+        }
+
+        @Override
+        public GenAi.GenerationResult next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            GenAi.GenerationResult result;
+            try {
+                result = completed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeminiException("Thread was interrupted.", e);
+            }
+            pending--;
+            fill();
+            return result;
+        }
+
+        private void fill() {
+            while (pending < maxConcurrency && models.hasNext()) {
+                start(index++, models.next(), generate).thenAccept(completed::add);
+                pending++;
+            }
+        }
+    }
+
+    /**
+     * Starts a request whenever another one completes. Requests may complete on any thread, or immediately (e.g. if
+     * a response is cached), so the models are only pulled within a drain loop, which never runs concurrently and
+     * does not recurse.
+     */
+    private static final class CallbackResults {
+
+        private final Iterator<GenerativeModel> models;
+        private final int maxConcurrency;
+        private final Consumer<GenAi.GenerationResult> callback;
+        private final Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final Object callbackLock = new Object();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // only accessed within the drain loop
+        private boolean exhausted;
+        private long index;
+
+        CallbackResults(
+                Iterator<GenerativeModel> models,
+                int maxConcurrency,
+                Consumer<GenAi.GenerationResult> callback,
+                Function<GenerativeModel, CompletableFuture<GenAi.GeneratedContent>> generate
+        ) {
+            this.models = models;
+            this.maxConcurrency = maxConcurrency;
+            this.callback = callback;
+            this.generate = generate;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (!exhausted && failure.get() == null && inFlight.get() < maxConcurrency) {
+                    GenerativeModel model;
+                    try {
+                        if (!models.hasNext()) {
+                            exhausted = true;
+                            break;
+                        }
+                        model = models.next();
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        break;
+                    }
+                    inFlight.incrementAndGet();
+                    start(index++, model, generate).thenAccept(this::complete);
+                }
+                if ((exhausted || failure.get() != null) && inFlight.get() == 0) {
+                    Throwable throwable = failure.get();
+                    if (throwable == null) {
+                        done.complete(null);
+                    } else {
+                        done.completeExceptionally(throwable);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void complete(GenAi.GenerationResult result) {
+            if (failure.get() == null) {
+                try {
+                    synchronized (callbackLock) {
+                        callback.accept(result);
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+            inFlight.decrementAndGet();
+            drain();
+        }
+    }
+}
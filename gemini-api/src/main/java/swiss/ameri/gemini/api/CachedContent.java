@@ -0,0 +1,47 @@
+package swiss.ameri.gemini.api;
+
+import java.time.Instant;
+
+/**
+ * Content which is cached by Gemini API, so that a large prompt prefix (e.g. a document and the system instruction)
+ * is only sent once, instead of with every request.
+ * See <a href="https://ai.google.dev/api/caching">Caching</a>.
+ *
+ * @param name          identifier of the cached content, e.g. "cachedContents/abc".
+ *                      see {@link GenerativeModel#cachedContent()}
+ * @param displayName   optional, given when the content was cached
+ * @param model         name of the model the content was cached for. Must start with "models/"
+ * @param createTime    RFC 3339 timestamp of the creation
+ * @param updateTime    RFC 3339 timestamp of the last update
+ * @param expireTime    RFC 3339 timestamp, after which the content is deleted
+ * @param usageMetadata size of the cached content
+ */
+public record CachedContent(
+        String name,
+        String displayName,
+        String model,
+        String createTime,
+        String updateTime,
+        String expireTime,
+        UsageMetadata usageMetadata
+) {
+
+    /**
+     * Get the time after which the content is deleted.
+     *
+     * @return the parsed {@link #expireTime()}
+     */
+    public Instant expiration() {
+        return Instant.parse(expireTime);
+    }
+
+    /**
+     * Size of a cached content.
+     *
+     * @param totalTokenCount number of tokens which are cached
+     */
+    public record UsageMetadata(
+            int totalTokenCount
+    ) {
+    }
+}
@@ -0,0 +1,322 @@
+package swiss.ameri.gemini.api;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * A conversation with a model, which keeps its history. Each message is sent together with the history, and the
+ * reply of the model is added to the history once it has arrived completely.
+ * <p>
+ * Every turn is only converted and serialized once: the serialized turns, and the parts of the request which do not
+ * change (e.g. the system instruction), are kept and joined for each request, so that a new message only serializes
+ * the new turns. Media of the history is read again with every request, see {@link Content.MediaData}.
+ * <p>
+ * Only one message can be sent at a time. If a message fails, neither it nor a reply is added to the history, and it
+ * can be sent again. Exchanges in which the model replies with neither text nor a function call, e.g. because the
+ * reply was blocked, are not added to the history either.
+ * This class is thread safe.
+ *
+ * @see GenAi#startChat(GenerativeModel)
+ */
+public final class ChatSession {
+
+    private final GenAi genAi;
+    private final GenerativeModel model;
+    private final JsonBodyPublisher.Frame frame;
+    private final URI generateContentUri;
+    private final URI streamGenerateContentUri;
+    // guarded by this
+    private final List<Content> history;
+    // serialized turns, a prefix of the history. guarded by this
+    private final List<JsonBodyPublisher> serialized = new ArrayList<>();
+    // guarded by this
+    private boolean sending;
+
+    /**
+     * @param genAi to send the messages with
+     * @param model whose contents are the initial history
+     */
+    ChatSession(GenAi genAi, GenerativeModel model) {
+        this.genAi = genAi;
+        this.model = model;
+        this.frame = genAi.serializeFrame(model);
+        this.generateContentUri = genAi.generateContentUri(model.modelName());
+        this.streamGenerateContentUri = genAi.streamGenerateContentUri(model.modelName());
+        this.history = new ArrayList<>(model.contents());
+    }
+
+    /**
+     * Get the history of the conversation.
+     *
+     * @return a copy of the contents which have been sent and replied, in order
+     */
+    public synchronized List<Content> history() {
+        return List.copyOf(history);
+    }
+
+    /**
+     * Send a text by the user, see {@link #send(Content)}.
+     *
+     * @param text of the user
+     * @return a {@link CompletableFuture} which completes with the reply
+     */
+    public CompletableFuture<GenAi.GeneratedContent> send(String text) {
+        return send(Content.textContent(Content.Role.USER, text));
+    }
+
+    /**
+     * Send a message and add it, together with the reply, to the history.
+     *
+     * @param content the message, e.g. a {@link Content.FunctionResponseContent} to reply to a function call
+     * @return a {@link CompletableFuture} which completes with the reply, once it has been added to the history
+     * @throws IllegalStateException if another message is being sent
+     * @see GenAi#generateContent(GenerativeModel)
+     */
+    public CompletableFuture<GenAi.GeneratedContent> send(Content content) {
+        Turn turn = begin(content);
+        return turn.body(frame)
+                .thenCompose(body -> genAi.sendGenerateContent(turn.model(), body, generateContentUri))
+                .whenComplete((reply, throwable) -> finish(turn, throwable == null ? reply : null));
+    }
+
+    /**
+     * Send a message and stream the reply, see {@link #sendPublisher(Content)}.
+     *
+     * @param content the message
+     * @return a live stream of the reply, as it arrives
+     * @throws IllegalStateException if another message is being sent
+     * @see GenAi#generateContentStream(GenerativeModel)
+     */
+    public Stream<GenAi.GeneratedContent> sendStream(Content content) {
+        Turn turn = begin(content);
+        return BlockingSubscriber.stream(genAi.join(publisher(turn, true)));
+    }
+
+    /**
+     * Send a message and publish the reply in chunks, as they arrive. The message is only sent once a
+     * {@link Flow.Subscriber} subscribes, and the publisher can only be subscribed once. The message and the whole
+     * reply are added to the history before the subscriber is notified of the completion. If the subscription is
+     * cancelled, nothing is added.
+     *
+     * @param content the message
+     * @return a publisher of the reply
+     * @see GenAi#generateContentPublisher(GenerativeModel)
+     */
+    public Flow.Publisher<GenAi.GeneratedContent> sendPublisher(Content content) {
+        var subscribed = new AtomicBoolean();
+        return subscriber -> {
+            if (!subscribed.compareAndSet(false, true)) {
+                Futures.fail(subscriber, new IllegalStateException("Publisher can only be subscribed once"));
+                return;
+            }
+            Turn turn;
+            try {
+                turn = begin(content);
+            } catch (RuntimeException e) {
+                Futures.fail(subscriber, e);
+                return;
+            }
+            publisher(turn, false).whenComplete((publisher, throwable) -> {
+                if (throwable != null) {
+                    Futures.fail(subscriber, Futures.unwrap(throwable));
+                } else {
+                    publisher.subscribe(subscriber);
+                }
+            });
+        };
+    }
+
+    /**
+     * @param blocking whether the caller waits for the reply, see {@link GenAi#sendStreamGenerateContent}
+     * @return a publisher of the reply, which adds it to the history. Can only be subscribed once.
+     */
+    private CompletableFuture<Flow.Publisher<GenAi.GeneratedContent>> publisher(Turn turn, boolean blocking) {
+        return turn.body(frame)
+                .thenCompose(body -> genAi.sendStreamGenerateContent(
+                        turn.model(),
+                        body,
+                        streamGenerateContentUri,
+                        blocking
+                ))
+                .whenComplete((publisher, throwable) -> {
+                    if (throwable != null) {
+                        finish(turn, null);
+                    }
+                })
+                .thenApply(publisher -> subscriber -> publisher.subscribe(new ReplySubscriber(turn, subscriber)));
+    }
+
+    /**
+     * Start sending a message: prepare the request with the history, without changing the history yet.
+     */
+    private synchronized Turn begin(Content content) {
+        if (sending) {
+            throw new IllegalStateException("Another message is being sent");
+        }
+        List<Content> contents = new ArrayList<>(history);
+        contents.add(content);
+        var turnModel = new GenerativeModel(
+                model.modelName(),
+                contents,
+                model.safetySettings(),
+                model.generationConfig(),
+                model.systemInstruction(),
+                model.functionDeclarations(),
+                model.cachedContent()
+        );
+        // the initial history is serialized with the first message, since its media may have to be uploaded first
+        List<CompletableFuture<JsonBodyPublisher>> pending = new ArrayList<>();
+        for (Content unserialized : contents.subList(serialized.size(), contents.size())) {
+            pending.add(genAi.withUploadedMedia(model.modelName(), unserialized).thenApply(genAi::serializeContent));
+        }
+        var turn = new Turn(content, turnModel, List.copyOf(serialized), pending);
+        if (pending.size() > 1) {
+            // keep the initial history, even if the message fails
+            CompletableFuture.allOf(pending.subList(0, pending.size() - 1).toArray(CompletableFuture[]::new))
+                    .thenRun(() -> keepSerialized(turn));
+        }
+        sending = true;
+        return turn;
+    }
+
+    private synchronized void keepSerialized(Turn turn) {
+        List<CompletableFuture<JsonBodyPublisher>> initial = turn.pending().subList(0, turn.pending().size() - 1);
+        if (serialized.size() == turn.serialized().size()) {
+            initial.forEach(future -> serialized.add(future.join()));
+        }
+    }
+
+    /**
+     * Finish sending a message, and add the message and the reply to the history, if it succeeded.
+     *
+     * @param reply the whole reply, or {@code null} if sending failed
+     */
+    private synchronized void finish(Turn turn, GenAi.GeneratedContent reply) {
+        if (!turn.finished().compareAndSet(false, true)) {
+            return;
+        }
+        sending = false;
+        Content replyContent = reply == null ? null : toContent(reply);
+        if (replyContent == null) {
+            return;
+        }
+        JsonBodyPublisher serializedReply = genAi.serializeContent(replyContent);
+        if (serialized.size() == turn.serialized().size()) {
+            turn.pending().forEach(future -> serialized.add(future.join()));
+        } else {
+            // the initial history has already been kept
+            serialized.add(turn.pending().get(turn.pending().size() - 1).join());
+        }
+        history.add(turn.content());
+        history.add(replyContent);
+        serialized.add(serializedReply);
+    }
+
+    /**
+     * @return the reply as content of the history, or {@code null} if it has neither a text nor a function call
+     */
+    private static Content toContent(GenAi.GeneratedContent reply) {
+        if (reply.functionCall() != null) {
+            return Content.functionCallContent(Content.Role.MODEL, reply.functionCall());
+        }
+        if (reply.text() == null || reply.text().isEmpty()) {
+            return null;
+        }
+        return Content.textContent(Content.Role.MODEL, reply.text());
+    }
+
+    /**
+     * A message which is being sent.
+     *
+     * @param content    the message
+     * @param model      with the history and the message
+     * @param serialized the turns of the history, which had been serialized when the message was sent
+     * @param pending    the other turns of the history and the message, which are being serialized
+     * @param finished   whether the message has been added to the history, or has failed
+     */
+    private record Turn(
+            Content content,
+            GenerativeModel model,
+            List<JsonBodyPublisher> serialized,
+            List<CompletableFuture<JsonBodyPublisher>> pending,
+            AtomicBoolean finished
+    ) {
+
+        Turn(
+                Content content,
+                GenerativeModel model,
+                List<JsonBodyPublisher> serialized,
+                List<CompletableFuture<JsonBodyPublisher>> pending
+        ) {
+            this(content, model, serialized, pending, new AtomicBoolean());
+        }
+
+        CompletableFuture<JsonBodyPublisher> body(JsonBodyPublisher.Frame frame) {
+            return CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new))
+                    .thenApply(ignored -> {
+                        List<JsonBodyPublisher> contents = new ArrayList<>(serialized);
+                        pending.forEach(future -> contents.add(future.join()));
+                        return frame.withArray(contents);
+                    });
+        }
+    }
+
+    /**
+     * Collects the chunks of a streamed reply, and adds it to the history once it is complete.
+     */
+    private final class ReplySubscriber implements Flow.Subscriber<GenAi.GeneratedContent> {
+
+        private final Turn turn;
+        private final Flow.Subscriber<? super GenAi.GeneratedContent> subscriber;
+        private final List<GenAi.GeneratedContent> chunks = new ArrayList<>();
+
+        ReplySubscriber(Turn turn, Flow.Subscriber<? super GenAi.GeneratedContent> subscriber) {
+            this.turn = turn;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    finish(turn, null);
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(GenAi.GeneratedContent item) {
+            chunks.add(item);
+            subscriber.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            finish(turn, null);
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            try {
+                finish(turn, chunks.isEmpty() ? null : GenAi.merge(chunks.get(0).id(), chunks));
+            } catch (RuntimeException e) {
+                subscriber.onError(e);
+                return;
+            }
+            subscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package swiss.ameri.gemini.api;
+
+/**
+ * Configures the adaptive limit of concurrent requests per model.
+ * <p>
+ * The limit follows an additive increase, multiplicative decrease (AIMD) scheme: every successful request, which was
+ * sent while the limit was used, raises the limit by {@code 1 / limit}, i.e. by one per round trip of the whole
+ * window. A 429 or 503 response, or a latency above {@code latencyTolerance} times the lowest observed latency of
+ * the same endpoint (e.g. {@code generateContent} or {@code countTokens}), multiplies the limit by
+ * {@code backoffRatio}. The latency check is disabled by default, because the latency of most endpoints grows
+ * with the length of the prompt and the response. Enable it for endpoints with a roughly fixed cost per request,
+ * e.g. {@code countTokens} or {@code batchEmbedContents} with batches of similar size.
+ * <p>
+ * Requests above the limit wait in a queue of up to {@code maxQueueSize} requests, without blocking a thread.
+ * If the queue is full, the request fails immediately with a {@link GeminiException}.
+ * Streaming requests occupy a slot until the response starts.
+ *
+ * @param initialLimit     concurrent requests allowed at the start
+ * @param minLimit         lower bound of the limit
+ * @param maxLimit         upper bound of the limit
+ * @param maxQueueSize     requests waiting for a slot, before new requests are rejected. 0 rejects immediately.
+ * @param backoffRatio     factor within (0.0, 1.0) applied to the limit when the model is overloaded
+ * @param latencyTolerance latencies above this multiple of the lowest observed latency of the endpoint count as
+ *                         overload.
+ *                         0 disables the latency check, which is the default.
+ */
+public record ConcurrencyLimitPolicy(
+        int initialLimit,
+        int minLimit,
+        int maxLimit,
+        int maxQueueSize,
+        double backoffRatio,
+        double latencyTolerance
+) {
+
+    /**
+     * Validates the policy.
+     */
+    public ConcurrencyLimitPolicy {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(
+                    "Limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit: %d, %d, %d"
+                            .formatted(minLimit, initialLimit, maxLimit)
+            );
+        }
+        if (maxQueueSize < 0) {
+            throw new IllegalArgumentException("maxQueueSize must not be negative: " + maxQueueSize);
+        }
+        if (backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+            throw new IllegalArgumentException("backoffRatio must be within (0.0, 1.0): " + backoffRatio);
+        }
+        if (latencyTolerance != 0.0 && latencyTolerance <= 1.0) {
+            throw new IllegalArgumentException("latencyTolerance must be 0 or greater than 1.0: " + latencyTolerance);
+        }
+    }
+
+    /**
+     * Create a {@link ConcurrencyLimitPolicyBuilder} with default values: an initial limit of 20 within [1, 200],
+     * a queue of 1000 requests, a backoff ratio of 0.9 and no latency check.
+     *
+     * @return a new builder
+     */
+    public static ConcurrencyLimitPolicyBuilder builder() {
+        return new ConcurrencyLimitPolicyBuilder();
+    }
+
+    /**
+     * Current state of the limit of a model.
+     *
+     * @param limit    concurrent requests currently allowed
+     * @param inFlight requests currently sent
+     * @param queued   requests currently waiting for a slot
+     */
+    public record Status(
+            int limit,
+            int inFlight,
+            int queued
+    ) {
+    }
+
+    /**
+     * Builder for {@link ConcurrencyLimitPolicy}. Not thread-safe.
+     */
+    public static class ConcurrencyLimitPolicyBuilder {
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 200;
+        private int maxQueueSize = 1000;
+        private double backoffRatio = 0.9;
+        private double latencyTolerance;
+
+        private ConcurrencyLimitPolicyBuilder() {
+        }
+
+        /**
+         * Set the limit at the start.
+         *
+         * @param initialLimit to set
+         * @return this
+         */
+        public ConcurrencyLimitPolicyBuilder initialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        /**
+         * Set the lower bound of the limit.
+         *
+         * @param minLimit to set
+         * @return this
+         */
+        public ConcurrencyLimitPolicyBuilder minLimit(int minLimit) {
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        /**
+         * Set the upper bound of the limit.
+         *
+         * @param maxLimit to set
+         * @return this
+         */
+        public ConcurrencyLimitPolicyBuilder maxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Set the number of requests which may wait for a slot.
+         *
+         * @param maxQueueSize to set
+         * @return this
+         */
+        public ConcurrencyLimitPolicyBuilder maxQueueSize(int maxQueueSize) {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        /**
+         * Set the factor applied to the limit when the model is overloaded.
+         *
+         * @param backoffRatio to set
+         * @return this
+         */
+        public ConcurrencyLimitPolicyBuilder backoffRatio(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+            return this;
+        }
+
+        /**
+         * Set the multiple of the lowest latency above which a request counts as overload, e.g. 4.0. Only useful if
+         * the requests have a roughly fixed cost, see {@link ConcurrencyLimitPolicy}.
+         *
+         * @param latencyTolerance to set, or 0 to disable the latency check (the default)
+         * @return this
+         */
+        public ConcurrencyLimitPolicyBuilder latencyTolerance(double latencyTolerance) {
+            this.latencyTolerance = latencyTolerance;
+            return this;
+        }
+
+        /**
+         * Build the policy.
+         *
+         * @return a validated {@link ConcurrencyLimitPolicy}
+         */
+        public ConcurrencyLimitPolicy build() {
+            return new ConcurrencyLimitPolicy(
+                    initialLimit,
+                    minLimit,
+                    maxLimit,
+                    maxQueueSize,
+                    backoffRatio,
+                    latencyTolerance
+            );
+        }
+    }
+}
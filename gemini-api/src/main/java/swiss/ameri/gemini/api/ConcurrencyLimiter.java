@@ -0,0 +1,175 @@
+package swiss.ameri.gemini.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Limits the concurrent requests per model, according to a {@link ConcurrencyLimitPolicy}.
+ * A limiter without a policy does not limit anything.
+ * Thread safe.
+ */
+final class ConcurrencyLimiter {
+
+    // number of latency samples after which the lowest latency is learned anew, so that it can also increase
+    private static final int LATENCY_WINDOW = 1000;
+    private static final CompletableFuture<Void> ACQUIRED = CompletableFuture.completedFuture(null);
+
+    private final ConcurrencyLimitPolicy policy;
+    private final Map<String, ModelLimit> limitsByModel = new ConcurrentHashMap<>();
+
+    /**
+     * @param policy to apply to each model, or {@code null} to not limit concurrency
+     */
+    ConcurrencyLimiter(ConcurrencyLimitPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Execute a request once a slot is available.
+     *
+     * @param modelName of the request, or {@code null} if the request does not belong to a model
+     * @param endpoint  path of the request, whose latencies are compared with each other
+     * @param request   starts the request
+     * @param <T>       type of the result
+     * @return the result of the request, or a failed future if the queue is full
+     */
+    <T> CompletableFuture<T> execute(String modelName, String endpoint, Supplier<CompletableFuture<T>> request) {
+        if (policy == null || modelName == null) {
+            return request.get();
+        }
+        ModelLimit limit = limitsByModel.computeIfAbsent(modelName, ModelLimit::new);
+        return limit.acquire()
+                .thenCompose(ignored -> {
+                    long start = System.nanoTime();
+                    CompletableFuture<T> response;
+                    try {
+                        response = request.get();
+                    } catch (RuntimeException e) {
+                        limit.release(endpoint, start, false, false);
+                        throw e;
+                    }
+                    return response.whenComplete((value, throwable) -> limit.release(
+                            endpoint,
+                            start,
+                            throwable == null,
+                            throwable != null && isOverload(Futures.unwrap(throwable))
+                    ));
+                });
+    }
+
+    /**
+     * Get the current state of a model.
+     *
+     * @param modelName of the model
+     * @return the state, or an empty optional if the model has not been used or concurrency is not limited
+     */
+    Optional<ConcurrencyLimitPolicy.Status> status(String modelName) {
+        return Optional.ofNullable(limitsByModel.get(modelName))
+                .map(ModelLimit::status);
+    }
+
+    private static boolean isOverload(Throwable throwable) {
+        return throwable instanceof UnexpectedResponseException e
+                && (e.getCode().orElse(-1) == 429 || e.getCode().orElse(-1) == 503);
+    }
+
+    private final class ModelLimit {
+
+        private final String modelName;
+        private final Queue<CompletableFuture<Void>> queue = new ArrayDeque<>();
+        // guarded by this
+        private double limit = policy.initialLimit();
+        private int inFlight;
+        private long lastDecrease = System.nanoTime();
+        // e.g. countTokens is much faster than generateContent, so each endpoint of the model has its own baseline
+        private final Map<String, LatencyBaseline> baselines = new HashMap<>();
+
+        ModelLimit(String modelName) {
+            this.modelName = modelName;
+        }
+
+        synchronized CompletableFuture<Void> acquire() {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return ACQUIRED;
+            }
+            if (queue.size() < policy.maxQueueSize()) {
+                var slot = new CompletableFuture<Void>();
+                queue.add(slot);
+                return slot;
+            }
+            return CompletableFuture.failedFuture(new GeminiException(
+                    "Too many concurrent requests for %s: limit %d, queued %d".formatted(modelName, (int) limit, queue.size())
+            ));
+        }
+
+        void release(String endpoint, long start, boolean success, boolean overload) {
+            long now = System.nanoTime();
+            List<CompletableFuture<Void>> granted = new ArrayList<>();
+            synchronized (this) {
+                boolean decrease = overload || success && isSlow(endpoint, now - start);
+                if (decrease) {
+                    // only decrease once for all requests which were already in flight during the last decrease
+                    if (start - lastDecrease > 0) {
+                        limit = Math.max(policy.minLimit(), limit * policy.backoffRatio());
+                        lastDecrease = now;
+                    }
+                } else if (success && inFlight * 2 >= limit) {
+                    // only increase while the limit is actually used
+                    limit = Math.min(policy.maxLimit(), limit + 1.0 / limit);
+                }
+                inFlight--;
+                while (inFlight < (int) limit && !queue.isEmpty()) {
+                    var slot = queue.poll();
+                    if (!slot.isDone()) {
+                        inFlight++;
+                        granted.add(slot);
+                    }
+                }
+            }
+            // complete outside the lock, since the waiting requests are started right away
+            granted.forEach(slot -> slot.complete(null));
+        }
+
+        private boolean isSlow(String endpoint, long latency) {
+            if (policy.latencyTolerance() == 0.0) {
+                return false;
+            }
+            return baselines.computeIfAbsent(endpoint, ignored -> new LatencyBaseline())
+                    .isSlow(latency, policy.latencyTolerance());
+        }
+
+        synchronized ConcurrencyLimitPolicy.Status status() {
+            return new ConcurrencyLimitPolicy.Status((int) limit, inFlight, queue.size());
+        }
+    }
+
+    /**
+     * The lowest observed latency of an endpoint. Not thread safe, guarded by its {@link ModelLimit}.
+     */
+    private static final class LatencyBaseline {
+
+        private long lowestLatency = Long.MAX_VALUE;
+        private long windowLowestLatency = Long.MAX_VALUE;
+        private int windowSamples;
+
+        boolean isSlow(long latency, double tolerance) {
+            lowestLatency = Math.min(lowestLatency, latency);
+            windowLowestLatency = Math.min(windowLowestLatency, latency);
+            if (++windowSamples >= LATENCY_WINDOW) {
+                lowestLatency = windowLowestLatency;
+                windowLowestLatency = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            return latency > lowestLatency * tolerance;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package swiss.ameri.gemini.api;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 
 /**
  * Content which can be sent to gemini API.
@@ -227,14 +230,162 @@ public sealed interface Content {
 
     /**
      * Media used during a conversion.
-     *
-     * @param mimeType    e.g. image/jpeg
-     * @param mediaBase64 the media, base64 encoded
+     * <p>
+     * The media is either given base64 encoded, or as binary data with one of the {@code of} methods. Binary data is
+     * only read and base64 encoded while a request is sent, chunk by chunk, so that a request never holds a complete
+     * encoded copy of its media. Files are read through a memory mapping.
+     * <p>
+     * Media can also reference a file uploaded to the Files API, see {@link #of(UploadedFile)}. Then only its uri is
+     * sent.
      */
-    record MediaData(
-            String mimeType,
-            String mediaBase64
-    ) {
+    final class MediaData {
+
+        private final String mimeType;
+        private final MediaSource source;
+        private final String fileUri;
+
+        /**
+         * Create media from base64 encoded data.
+         *
+         * @param mimeType    e.g. image/jpeg
+         * @param mediaBase64 the media, base64 encoded
+         */
+        public MediaData(String mimeType, String mediaBase64) {
+            this(mimeType, new MediaSource.Base64Text(Objects.requireNonNull(mediaBase64, "mediaBase64")));
+        }
+
+        private MediaData(String mimeType, MediaSource source) {
+            this(mimeType, source, null);
+        }
+
+        /**
+         * @param source  of inline media, or {@code null}
+         * @param fileUri of an uploaded file, if there is no source
+         */
+        private MediaData(String mimeType, MediaSource source, String fileUri) {
+            this.mimeType = mimeType;
+            this.source = source;
+            this.fileUri = fileUri;
+        }
+
+        /**
+         * Reference a file uploaded to the Files API. The file must be {@link UploadedFile#isActive() active}.
+         *
+         * @param file uploaded with {@link GenAi#uploadFile(MediaData, String)}
+         * @return media referencing the file
+         */
+        public static MediaData of(UploadedFile file) {
+            return ofFileUri(file.mimeType(), file.uri());
+        }
+
+        /**
+         * Reference a file uploaded to the Files API.
+         *
+         * @param mimeType of the file
+         * @param fileUri  {@link UploadedFile#uri()} of the file
+         * @return media referencing the file
+         */
+        public static MediaData ofFileUri(String mimeType, String fileUri) {
+            return new MediaData(mimeType, null, Objects.requireNonNull(fileUri, "fileUri"));
+        }
+
+        /**
+         * Create media from a file. The file is read every time a request with the media is sent, and must not change
+         * until then.
+         *
+         * @param mimeType e.g. application/pdf
+         * @param file     containing the media
+         * @return media backed by the file
+         */
+        public static MediaData of(String mimeType, Path file) {
+            return new MediaData(mimeType, new MediaSource.File(Objects.requireNonNull(file, "file")));
+        }
+
+        /**
+         * Create media from binary data. The array is not copied, and must not be modified until all requests with
+         * the media have been sent.
+         *
+         * @param mimeType e.g. image/png
+         * @param bytes    the media
+         * @return media backed by the array
+         */
+        public static MediaData of(String mimeType, byte[] bytes) {
+            return new MediaData(mimeType, new MediaSource.Bytes(ByteBuffer.wrap(bytes)));
+        }
+
+        /**
+         * Create media from binary data. The remaining bytes of the buffer are used, its position is not changed.
+         * The bytes are not copied, and must not be modified until all requests with the media have been sent.
+         *
+         * @param mimeType e.g. image/png
+         * @param bytes    the media, from its position to its limit
+         * @return media backed by the buffer
+         */
+        public static MediaData of(String mimeType, ByteBuffer bytes) {
+            return new MediaData(mimeType, new MediaSource.Bytes(bytes.slice()));
+        }
+
+        /**
+         * Get the mime type.
+         *
+         * @return e.g. image/jpeg
+         */
+        public String mimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Get the base64 encoded media. Binary media is read and encoded into a new {@link String} on every call.
+         *
+         * @return the media, base64 encoded
+         * @throws java.io.UncheckedIOException if the file of the media cannot be read
+         * @throws IllegalStateException        if the media references an uploaded file
+         */
+        public String mediaBase64() {
+            if (source == null) {
+                throw new IllegalStateException("Media references an uploaded file: " + fileUri);
+            }
+            return source.base64();
+        }
+
+        /**
+         * Get the uri of the referenced file.
+         *
+         * @return the uri of an uploaded file, or {@code null} if the media is sent inline
+         */
+        public String fileUri() {
+            return fileUri;
+        }
+
+        /**
+         * @return the source of inline media, or {@code null} if the media references an uploaded file
+         */
+        MediaSource source() {
+            return source;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            return o instanceof MediaData other
+                    && Objects.equals(mimeType, other.mimeType)
+                    && Objects.equals(source, other.source)
+                    && Objects.equals(fileUri, other.fileUri);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mimeType, source, fileUri);
+        }
+
+        @Override
+        public String toString() {
+            return source == null
+                    ? "MediaData[mimeType=" + mimeType + ", fileUri=" + fileUri + "]"
+                    : "MediaData[mimeType=" + mimeType + ", source=" + source + "]";
+        }
     }
 
     /**
@@ -0,0 +1,273 @@
+package swiss.ameri.gemini.api;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges single text embeddings from many threads into batched
+ * {@link GenAi#embedContents(GenerativeModel, String, String, Long)} calls.
+ * <p>
+ * Texts are collected until either {@code maxBatchSize} texts are pending, or {@code maxDelay} has passed since the
+ * first pending text. Then all pending texts are sent in a single request, and each caller receives its own embedding.
+ * This reduces the number of requests at a high rate of calls, at the cost of at most {@code maxDelay} additional
+ * latency. No thread is blocked while waiting, the delay is scheduled with
+ * {@link CompletableFuture#delayedExecutor(long, TimeUnit)}.
+ * <p>
+ * All texts of a batcher share the same model, task type, title and output dimensionality.
+ * Call {@link #close()} to send the pending texts immediately and reject further texts.
+ * This class is thread safe.
+ */
+public class EmbeddingBatcher implements AutoCloseable {
+
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final GenAi genAi;
+    private final String modelName;
+    private final String taskType;
+    private final String title;
+    private final Long outputDimensionality;
+    private final int maxBatchSize;
+    private final Duration maxDelay;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private List<Pending> pending = new ArrayList<>();
+    // identifies the current batch, so that the timer of an already sent batch does nothing
+    private long batch;
+    private boolean closed;
+
+    private EmbeddingBatcher(EmbeddingBatcherBuilder builder) {
+        this.genAi = Objects.requireNonNull(builder.genAi, "genAi");
+        this.modelName = Objects.requireNonNull(builder.modelName, "modelName");
+        this.taskType = builder.taskType;
+        this.title = builder.title;
+        this.outputDimensionality = builder.outputDimensionality;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxDelay = Objects.requireNonNull(builder.maxDelay, "maxDelay");
+        if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("maxBatchSize must be within [1, 100]: " + maxBatchSize);
+        }
+        if (maxDelay.isNegative()) {
+            throw new IllegalArgumentException("maxDelay must not be negative: " + maxDelay);
+        }
+    }
+
+    /**
+     * Create a {@link EmbeddingBatcherBuilder} with default values: batches of up to 100 texts, which wait at most
+     * 10 milliseconds.
+     *
+     * @return a new builder
+     */
+    public static EmbeddingBatcherBuilder builder() {
+        return new EmbeddingBatcherBuilder();
+    }
+
+    /**
+     * Embed a text, together with the texts of other calls.
+     *
+     * @param text to embed
+     * @return a {@link CompletableFuture} which completes once the batch of the text has been embedded. Fails if the
+     * batch fails, or if this batcher has been closed.
+     */
+    public CompletableFuture<GenAi.ContentEmbedding> embed(String text) {
+        var item = new Pending(text, new CompletableFuture<>());
+        List<Pending> full = null;
+        synchronized (lock) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new GeminiException("EmbeddingBatcher is closed."));
+            }
+            pending.add(item);
+            if (pending.size() >= maxBatchSize) {
+                full = takePending();
+            } else if (pending.size() == 1) {
+                long current = batch;
+                CompletableFuture.delayedExecutor(maxDelay.toNanos(), TimeUnit.NANOSECONDS)
+                        .execute(() -> flush(current));
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return item.embedding();
+    }
+
+    /**
+     * Send the pending texts, and reject all further texts.
+     */
+    @Override
+    public void close() {
+        List<Pending> remaining;
+        synchronized (lock) {
+            closed = true;
+            remaining = takePending();
+        }
+        send(remaining);
+    }
+
+    private void flush(long expectedBatch) {
+        List<Pending> due;
+        synchronized (lock) {
+            if (batch != expectedBatch) {
+                return;
+            }
+            due = takePending();
+        }
+        send(due);
+    }
+
+    // must hold lock
+    private List<Pending> takePending() {
+        List<Pending> taken = pending;
+        pending = new ArrayList<>();
+        batch++;
+        return taken;
+    }
+
+    private void send(List<Pending> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        var model = GenerativeModel.builder()
+                .modelName(modelName);
+        for (Pending item : items) {
+            model.addContent(Content.textContent(Content.Role.USER, item.text()));
+        }
+        CompletableFuture<List<GenAi.ContentEmbedding>> embeddings;
+        try {
+            embeddings = genAi.embedContents(model.build(), taskType, title, outputDimensionality);
+        } catch (RuntimeException e) {
+            embeddings = CompletableFuture.failedFuture(e);
+        }
+        embeddings.whenComplete((result, throwable) -> {
+            for (int i = 0; i < items.size(); i++) {
+                if (throwable != null) {
+                    items.get(i).embedding().completeExceptionally(Futures.unwrap(throwable));
+                } else {
+                    items.get(i).embedding().complete(result.get(i));
+                }
+            }
+        });
+    }
+
+    private record Pending(
+            String text,
+            CompletableFuture<GenAi.ContentEmbedding> embedding
+    ) {
+    }
+
+    /**
+     * Builder for {@link EmbeddingBatcher}. Not thread-safe.
+     */
+    public static class EmbeddingBatcherBuilder {
+        private GenAi genAi;
+        private String modelName;
+        private String taskType;
+        private String title;
+        private Long outputDimensionality;
+        private int maxBatchSize = MAX_BATCH_SIZE;
+        private Duration maxDelay = Duration.ofMillis(10);
+
+        private EmbeddingBatcherBuilder() {
+        }
+
+        /**
+         * Set the {@link GenAi} which sends the batches.
+         *
+         * @param genAi to use
+         * @return this
+         */
+        public EmbeddingBatcherBuilder genAi(GenAi genAi) {
+            this.genAi = genAi;
+            return this;
+        }
+
+        /**
+         * Set the embedding model.
+         *
+         * @param modelName must start with "models/"
+         * @return this
+         */
+        public EmbeddingBatcherBuilder modelName(String modelName) {
+            this.modelName = modelName;
+            return this;
+        }
+
+        /**
+         * Set the embedding model.
+         *
+         * @param modelVariant to use, e.g. {@link ModelVariant#TEXT_EMBEDDING_004}
+         * @return this
+         */
+        public EmbeddingBatcherBuilder modelName(ModelVariant modelVariant) {
+            return modelName(modelVariant == null ? null : modelVariant.variant());
+        }
+
+        /**
+         * Set the task type, see {@link GenAi#embedContents(GenerativeModel, String, String, Long)}.
+         *
+         * @param taskType Optional. For possible values, see {@link TaskType}
+         * @return this
+         */
+        public EmbeddingBatcherBuilder taskType(String taskType) {
+            this.taskType = taskType;
+            return this;
+        }
+
+        /**
+         * Set the title, see {@link GenAi#embedContents(GenerativeModel, String, String, Long)}.
+         *
+         * @param title Optional. Only applicable when the task type is RETRIEVAL_DOCUMENT.
+         * @return this
+         */
+        public EmbeddingBatcherBuilder title(String title) {
+            this.title = title;
+            return this;
+        }
+
+        /**
+         * Set the output dimensionality, see {@link GenAi#embedContents(GenerativeModel, String, String, Long)}.
+         *
+         * @param outputDimensionality Optional. Reduced dimension of the embeddings.
+         * @return this
+         */
+        public EmbeddingBatcherBuilder outputDimensionality(Long outputDimensionality) {
+            this.outputDimensionality = outputDimensionality;
+            return this;
+        }
+
+        /**
+         * Set the number of texts after which a batch is sent without waiting.
+         *
+         * @param maxBatchSize within [1, 100]
+         * @return this
+         */
+        public EmbeddingBatcherBuilder maxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Set how long the first text of a batch waits for further texts.
+         *
+         * @param maxDelay to set
+         * @return this
+         */
+        public EmbeddingBatcherBuilder maxDelay(Duration maxDelay) {
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        /**
+         * Build the batcher.
+         *
+         * @return a validated {@link EmbeddingBatcher}
+         */
+        public EmbeddingBatcher build() {
+            return new EmbeddingBatcher(this);
+        }
+    }
+}
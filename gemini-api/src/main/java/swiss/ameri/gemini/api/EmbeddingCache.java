@@ -0,0 +1,96 @@
+package swiss.ameri.gemini.api;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Caches the embeddings of {@link GenAi#embedContents(GenerativeModel, String, String, Long)} and
+ * {@link GenAi#embedContentBatches(GenerativeModel, String, String, Long)}, so that contents which were already
+ * embedded are not sent again.
+ * <p>
+ * Each content is cached on its own, keyed by a hash of the model name, the task type, the title, the output
+ * dimensionality and the content. Only the contents which are not cached are sent, in as few batches as possible.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface EmbeddingCache extends AutoCloseable {
+
+    /**
+     * Get a cached embedding.
+     *
+     * @param key hex encoded SHA-256 hash of the embedding request of a single content
+     * @return the embedding, or an empty optional on a miss
+     */
+    Optional<GenAi.ContentEmbedding> get(String key);
+
+    /**
+     * Cache an embedding. Does nothing if the key is already cached.
+     *
+     * @param key       hex encoded SHA-256 hash of the embedding request of a single content
+     * @param embedding to cache
+     */
+    void put(String key, GenAi.ContentEmbedding embedding);
+
+    /**
+     * Remove all cached embeddings.
+     */
+    void clear();
+
+    /**
+     * Get the hit and miss counts since this cache was created.
+     *
+     * @return the current counts
+     */
+    Stats stats();
+
+    /**
+     * Write all cached embeddings to their storage, and release it. The cache must not be used afterwards.
+     */
+    @Override
+    void close();
+
+    /**
+     * Create a cache which stores the embeddings in {@code directory}, so that they survive a restart.
+     * <p>
+     * The embeddings are appended to a memory mapped data file, and located through a hash index in a second memory
+     * mapped file. A lookup therefore reads the embedding directly from the page cache, without a system call or
+     * any parsing. The index can always be restored from the data file, it is rebuilt if it is missing or behind.
+     * <p>
+     * The directory is created if it does not exist, and can only be used by one cache at a time, also across
+     * processes. The files are not bounded, call {@link #clear()} to reuse their space. Changes are written to disk
+     * by the operating system, or at the latest by {@link #close()}, and survive a crash of the JVM. If the files
+     * cannot be grown, embeddings are not cached, and counted as {@link Stats#errors()}.
+     *
+     * @param directory to store the embeddings in
+     * @return a new persistent cache
+     * @throws java.io.UncheckedIOException if the files cannot be opened
+     * @throws IllegalStateException        if the directory is used by another cache
+     */
+    static EmbeddingCache persistent(Path directory) {
+        return new MappedEmbeddingCache(directory);
+    }
+
+    /**
+     * Hit and miss counts of a cache.
+     *
+     * @param hits   embeddings found in the cache
+     * @param misses embeddings which were not cached
+     * @param errors failed writes
+     */
+    record Stats(
+            long hits,
+            long misses,
+            long errors
+    ) {
+
+        /**
+         * Get the ratio of hits to all lookups.
+         *
+         * @return the hit rate within [0.0, 1.0], or 0.0 if nothing was looked up yet
+         */
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package swiss.ameri.gemini.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes a batchEmbedContents response directly from its UTF-8 bytes into {@code float[]} vectors.
+ * A generic {@link swiss.ameri.gemini.spi.JsonParser} would box every value before it could be copied into an array,
+ * which dominates the cost of large batches. Only the {@code embeddings[].values} arrays are decoded, all other
+ * fields are skipped. The values are parsed in place, without creating a {@link String} per value, and neither is
+ * the response decoded into a {@link String}. Not thread safe, use a new instance per response.
+ */
+final class EmbeddingDecoder {
+
+    // powers of ten which are exactly representable as double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // bytes around an unexpected position, which are added to the error message
+    private static final int EXCERPT_LENGTH = 40;
+
+    private final byte[] json;
+    private int position;
+    // the embeddings of a response usually have the same dimension, so each array is allocated with the right size
+    private int lastDimension = 64;
+
+    private EmbeddingDecoder(byte[] json) {
+        this.json = json;
+    }
+
+    /**
+     * Decode the embeddings of a response.
+     *
+     * @param json of a batchEmbedContents response, encoded as UTF-8
+     * @return the embeddings, or {@code null} if the response has no embeddings field
+     * @throws GeminiException if the response is not valid JSON of the expected shape
+     */
+    static List<GenAi.ContentEmbedding> decode(byte[] json) {
+        var decoder = new EmbeddingDecoder(json);
+        List<GenAi.ContentEmbedding> embeddings = decoder.readResponse();
+        decoder.skipWhitespace();
+        if (decoder.position != json.length) {
+            throw decoder.unexpected();
+        }
+        return embeddings;
+    }
+
+    private List<GenAi.ContentEmbedding> readResponse() {
+        List<GenAi.ContentEmbedding> embeddings = null;
+        expect('{');
+        if (!tryConsume('}')) {
+            do {
+                String key = readString();
+                expect(':');
+                if (key.equals("embeddings")) {
+                    embeddings = readEmbeddings();
+                } else {
+                    skipValue();
+                }
+            } while (tryConsume(','));
+            expect('}');
+        }
+        return embeddings;
+    }
+
+    private List<GenAi.ContentEmbedding> readEmbeddings() {
+        List<GenAi.ContentEmbedding> embeddings = new ArrayList<>();
+        expect('[');
+        if (!tryConsume(']')) {
+            do {
+                embeddings.add(readEmbedding());
+            } while (tryConsume(','));
+            expect(']');
+        }
+        return embeddings;
+    }
+
+    private GenAi.ContentEmbedding readEmbedding() {
+        float[] values = null;
+        expect('{');
+        if (!tryConsume('}')) {
+            do {
+                String key = readString();
+                expect(':');
+                if (key.equals("values")) {
+                    values = readFloats();
+                } else {
+                    skipValue();
+                }
+            } while (tryConsume(','));
+            expect('}');
+        }
+        if (values == null) {
+            throw new GeminiException("No values field in embedding");
+        }
+        return new GenAi.ContentEmbedding(values);
+    }
+
+    private float[] readFloats() {
+        float[] values = new float[lastDimension];
+        int size = 0;
+        expect('[');
+        if (!tryConsume(']')) {
+            do {
+                skipWhitespace();
+                int start = position;
+                while (position < json.length && isNumberCharacter(json[position])) {
+                    position++;
+                }
+                if (start == position) {
+                    throw unexpected();
+                }
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size++] = parseFloat(start, position);
+            } while (tryConsume(','));
+            expect(']');
+        }
+        if (size > 0) {
+            lastDimension = size;
+        }
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Parse a JSON number, correctly rounded to the nearest float.
+     * <p>
+     * Numbers with up to 15 significant digits and a small exponent, i.e. all values Gemini API returns, are computed
+     * exactly as a double, which is then rounded to a float. Rounding twice can only differ from rounding once, if the
+     * double lies exactly in the middle of two floats. Such numbers, and all others, are parsed by
+     * {@link Float#parseFloat(String)}.
+     */
+    private float parseFloat(int start, int end) {
+        int i = start;
+        boolean negative = json[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        int integerDigits = 0;
+        while (i < end && isDigit(json[i])) {
+            mantissa = mantissa * 10 + (json[i++] - '0');
+            integerDigits++;
+            if (mantissa != 0) {
+                digits++;
+            }
+        }
+        if (i < end && json[i] == '.') {
+            i++;
+            int fractionStart = i;
+            while (i < end && isDigit(json[i])) {
+                mantissa = mantissa * 10 + (json[i++] - '0');
+                exponent--;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            }
+            if (i == fractionStart) {
+                return parseFloatSlowly(start, end);
+            }
+        }
+        if (integerDigits == 0 || digits > 15) {
+            return parseFloatSlowly(start, end);
+        }
+        if (i < end && (json[i] == 'e' || json[i] == 'E')) {
+            i++;
+            boolean negativeExponent = i < end && json[i] == '-';
+            if (i < end && (json[i] == '-' || json[i] == '+')) {
+                i++;
+            }
+            int exponentStart = i;
+            int explicitExponent = 0;
+            while (i < end && isDigit(json[i]) && explicitExponent < 1000) {
+                explicitExponent = explicitExponent * 10 + (json[i++] - '0');
+            }
+            if (i == exponentStart) {
+                return parseFloatSlowly(start, end);
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (i != end || exponent < -22 || exponent > 22) {
+            return parseFloatSlowly(start, end);
+        }
+        double value = exponent < 0
+                ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+        // the 29 bits of a double mantissa, which a float does not have, are exactly half way
+        if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L) {
+            return parseFloatSlowly(start, end);
+        }
+        float result = (float) value;
+        return negative ? -result : result;
+    }
+
+    private float parseFloatSlowly(int start, int end) {
+        try {
+            return Float.parseFloat(new String(json, start, end - start, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            position = start;
+            throw unexpected();
+        }
+    }
+
+    private void skipValue() {
+        skipWhitespace();
+        if (position >= json.length) {
+            throw unexpected();
+        }
+        byte c = json[position];
+        if (c == '{') {
+            position++;
+            if (!tryConsume('}')) {
+                do {
+                    skipString();
+                    expect(':');
+                    skipValue();
+                } while (tryConsume(','));
+                expect('}');
+            }
+        } else if (c == '[') {
+            position++;
+            if (!tryConsume(']')) {
+                do {
+                    skipValue();
+                } while (tryConsume(','));
+                expect(']');
+            }
+        } else if (c == '"') {
+            skipString();
+        } else {
+            // number, true, false or null
+            int start = position;
+            while (position < json.length && (isNumberCharacter(json[position])
+                    || json[position] >= 'a' && json[position] <= 'z')) {
+                position++;
+            }
+            if (start == position) {
+                throw unexpected();
+            }
+        }
+    }
+
+    /**
+     * Read a string, e.g. a key. Escaped characters are only decoded if the string contains any.
+     */
+    private String readString() {
+        skipWhitespace();
+        int start = position + 1;
+        skipString();
+        int end = position - 1;
+        boolean escaped = false;
+        for (int i = start; i < end && !escaped; i++) {
+            escaped = json[i] == '\\';
+        }
+        if (!escaped) {
+            return new String(json, start, end - start, StandardCharsets.UTF_8);
+        }
+        var builder = new StringBuilder();
+        int i = start;
+        while (i < end) {
+            int plain = i;
+            while (i < end && json[i] != '\\') {
+                i++;
+            }
+            builder.append(new String(json, plain, i - plain, StandardCharsets.UTF_8));
+            if (i == end) {
+                break;
+            }
+            byte escape = json[i + 1];
+            i += 2;
+            switch (escape) {
+                case 'b' -> builder.append('\b');
+                case 'f' -> builder.append('\f');
+                case 'n' -> builder.append('\n');
+                case 'r' -> builder.append('\r');
+                case 't' -> builder.append('\t');
+                case 'u' -> {
+                    if (i + 4 > end) {
+                        position = i;
+                        throw unexpected();
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(
+                                new String(json, i, 4, StandardCharsets.ISO_8859_1), 16));
+                    } catch (NumberFormatException e) {
+                        position = i;
+                        throw unexpected();
+                    }
+                    i += 4;
+                }
+                default -> builder.append((char) escape);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Skip a string, without decoding it.
+     */
+    private void skipString() {
+        expect('"');
+        while (position < json.length) {
+            byte c = json[position++];
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                position++;
+            }
+        }
+        throw unexpected();
+    }
+
+    private void expect(char expected) {
+        if (!tryConsume(expected)) {
+            throw unexpected();
+        }
+    }
+
+    private boolean tryConsume(char expected) {
+        skipWhitespace();
+        if (position < json.length && json[position] == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length) {
+            byte c = json[position];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private static boolean isNumberCharacter(byte c) {
+        return isDigit(c) || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private GeminiException unexpected() {
+        int from = Math.max(0, position - EXCERPT_LENGTH);
+        int to = Math.min(json.length, position + EXCERPT_LENGTH);
+        return new GeminiException("Unexpected JSON at position %d: %s".formatted(
+                position,
+                new String(json, from, to - from, StandardCharsets.UTF_8)
+        ));
+    }
+}
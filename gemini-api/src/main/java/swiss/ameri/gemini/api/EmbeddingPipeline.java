@@ -0,0 +1,721 @@
+package swiss.ameri.gemini.api;
+
+import swiss.ameri.gemini.spi.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Embeds a corpus file of any size into a binary embedding file, and resumes where it stopped after a crash.
+ * <p>
+ * The input is read line by line, and each non-blank line is a document: either its text ({@link Format#LINES}), or a
+ * JSON object with a text field ({@link Format#JSONL}). Documents longer than {@code maxChunkLength} characters are
+ * split into chunks, preferably at whitespace. The chunks are sent in batches of up to 100 through
+ * {@link GenAi#embedContents(GenerativeModel, String, String, Long)}, with at most {@code parallelism} batches in
+ * flight. Requests are therefore rate limited, retried and cached as configured in the {@link GenAi}, e.g. with
+ * {@link GenAi.GenAiBuilder#rateLimit(String, int, long)}.
+ * <p>
+ * The embeddings are appended to the output file in the order of the input, see {@link #read(Path, Consumer)} for
+ * its format. After each batch, the output is forced to disk, and a checkpoint is appended to a journal file next to
+ * it: the byte offset of the document which contains the next chunk, the index of that document, the index of the
+ * next chunk within it and the length of the output. A new run with the same input, output and settings truncates
+ * the output to the last checkpoint, and continues from there. Memory use is bounded by the longest line and the
+ * batches in flight, independent of the size of the corpus.
+ * <p>
+ * A pipeline instance can be run once at a time.
+ */
+public class EmbeddingPipeline {
+
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final int OUTPUT_MAGIC = 0x474D4245; // "EMBG"
+    private static final int FORMAT_VERSION = 1;
+    private static final int OUTPUT_HEADER = 8;
+    // document, chunk, dimension
+    private static final int RECORD_HEADER = Long.BYTES + 2 * Integer.BYTES;
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private final GenAi genAi;
+    private final String modelName;
+    private final String taskType;
+    private final String title;
+    private final Long outputDimensionality;
+    private final Format format;
+    private final JsonParser jsonParser;
+    private final String textField;
+    private final int maxChunkLength;
+    private final int parallelism;
+
+    private EmbeddingPipeline(EmbeddingPipelineBuilder builder) {
+        this.genAi = Objects.requireNonNull(builder.genAi, "genAi");
+        this.modelName = Objects.requireNonNull(builder.modelName, "modelName");
+        this.taskType = builder.taskType;
+        this.title = builder.title;
+        this.outputDimensionality = builder.outputDimensionality;
+        this.format = Objects.requireNonNull(builder.format, "format");
+        this.jsonParser = builder.jsonParser;
+        this.textField = Objects.requireNonNull(builder.textField, "textField");
+        this.maxChunkLength = builder.maxChunkLength;
+        this.parallelism = builder.parallelism;
+        if (format == Format.JSONL && jsonParser == null) {
+            throw new IllegalArgumentException("jsonParser is required for JSONL");
+        }
+        if (maxChunkLength < 1) {
+            throw new IllegalArgumentException("maxChunkLength must be positive: " + maxChunkLength);
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+    }
+
+    /**
+     * Create a {@link EmbeddingPipelineBuilder} with default values: {@link Format#LINES}, chunks of up to 8000
+     * characters, and 4 batches in flight.
+     *
+     * @return a new builder
+     */
+    public static EmbeddingPipelineBuilder builder() {
+        return new EmbeddingPipelineBuilder();
+    }
+
+    /**
+     * Embed the input into the output, or continue a previous run which was interrupted. Blocks until the input is
+     * embedded, or a batch failed.
+     *
+     * @param input  corpus to embed
+     * @param output binary embedding file. The journal is {@code output} with the suffix {@code .journal}.
+     * @return the progress of this run
+     * @throws GeminiException       if a batch failed. All previous batches are checkpointed, and the next run
+     *                               continues from there.
+     * @throws UncheckedIOException  if a file cannot be read or written
+     * @throws IllegalStateException if the journal was written with other settings, or is corrupt, or the output is
+     *                               shorter than the journal expects, e.g. because it was deleted
+     */
+    public Result run(Path input, Path output) {
+        Path journalFile = output.resolveSibling(output.getFileName() + JOURNAL_SUFFIX);
+        try (var in = FileChannel.open(input, StandardOpenOption.READ);
+             var out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             var journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Checkpoint start = resume(journal, journalFile);
+            if (start.outputLength() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(OUTPUT_HEADER).order(ByteOrder.LITTLE_ENDIAN)
+                        .putInt(OUTPUT_MAGIC)
+                        .putInt(FORMAT_VERSION)
+                        .flip();
+                writeFully(out, header, 0);
+                start = new Checkpoint(start.inputOffset(), start.document(), start.chunk(), OUTPUT_HEADER);
+            }
+            if (out.size() < start.outputLength()) {
+                // continuing would leave a hole of zeros, which would be read as records
+                throw new IllegalStateException("Output %s is shorter than its last checkpoint in journal %s: %d < %d"
+                        .formatted(output, journalFile, out.size(), start.outputLength()));
+            }
+            // drop the records which were written after the last checkpoint
+            out.truncate(start.outputLength());
+            out.position(start.outputLength());
+            journal.position(journal.size());
+            in.position(start.inputOffset());
+            return embed(new ChunkReader(in, start), out, journal, start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Result embed(ChunkReader reader, FileChannel out, FileChannel journal, Checkpoint start) throws IOException {
+        var inFlight = new ArrayDeque<Batch>();
+        long chunks = 0;
+        Checkpoint last = start;
+        while (true) {
+            Batch batch = reader.nextBatch();
+            // wait for the oldest batch, so that the output is written in order, and the batches in flight are bounded
+            while (!inFlight.isEmpty() && (batch == null || inFlight.size() >= parallelism)) {
+                Batch done = inFlight.removeFirst();
+                last = write(done, out, journal);
+                chunks += done.chunks().size();
+            }
+            if (batch == null) {
+                return new Result(start.document(), last.document() - start.document(), chunks);
+            }
+            var model = GenerativeModel.builder()
+                    .modelName(modelName);
+            for (Chunk chunk : batch.chunks()) {
+                model.addContent(Content.textContent(Content.Role.USER, chunk.text()));
+            }
+            CompletableFuture<List<GenAi.ContentEmbedding>> embeddings;
+            try {
+                embeddings = genAi.embedContents(model.build(), taskType, title, outputDimensionality);
+            } catch (RuntimeException e) {
+                embeddings = CompletableFuture.failedFuture(e);
+            }
+            inFlight.addLast(new Batch(batch.chunks(), batch.next(), embeddings));
+        }
+    }
+
+    private Checkpoint write(Batch batch, FileChannel out, FileChannel journal) throws IOException {
+        List<GenAi.ContentEmbedding> embeddings;
+        try {
+            embeddings = batch.embeddings().join();
+        } catch (CompletionException e) {
+            Chunk first = batch.chunks().get(0);
+            throw new GeminiException("Embedding failed at document %d, chunk %d. Run again to continue."
+                    .formatted(first.document(), first.chunk()), Futures.unwrap(e));
+        }
+        int size = 0;
+        for (GenAi.ContentEmbedding embedding : embeddings) {
+            size += RECORD_HEADER + embedding.dimension() * Float.BYTES;
+        }
+        ByteBuffer records = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < embeddings.size(); i++) {
+            Chunk chunk = batch.chunks().get(i);
+            float[] vector = embeddings.get(i).vector();
+            records.putLong(chunk.document())
+                    .putInt(chunk.chunk())
+                    .putInt(vector.length);
+            records.asFloatBuffer().put(vector);
+            records.position(records.position() + vector.length * Float.BYTES);
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            out.write(records);
+        }
+        out.force(false);
+        Checkpoint next = batch.next();
+        var checkpoint = new Checkpoint(next.inputOffset(), next.document(), next.chunk(), out.position());
+        writeFully(journal, StandardCharsets.UTF_8.encode(checkpoint.toLine()), journal.position());
+        journal.position(journal.size());
+        journal.force(false);
+        return checkpoint;
+    }
+
+    /**
+     * Read the last checkpoint of the journal, or start a new journal.
+     */
+    private Checkpoint resume(FileChannel journal, Path journalFile) throws IOException {
+        String settings = settings();
+        truncateIncompleteLine(journal);
+        if (journal.size() == 0) {
+            writeFully(journal, StandardCharsets.UTF_8.encode(settings + "\n"), 0);
+            journal.force(false);
+            return new Checkpoint(0, 0, 0, 0);
+        }
+        try (BufferedReader lines = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String header = lines.readLine();
+            if (!settings.equals(header)) {
+                throw new IllegalStateException("Journal %s was written with other settings: %s"
+                        .formatted(journalFile, header));
+            }
+            Checkpoint last = new Checkpoint(0, 0, 0, 0);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                last = Checkpoint.parse(line, journalFile);
+            }
+            return last;
+        }
+    }
+
+    /**
+     * Remove the last line of the journal, if it was not written completely.
+     */
+    private static void truncateIncompleteLine(FileChannel journal) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        long end = journal.size();
+        while (end > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end));
+            long position = end - buffer.limit();
+            while (buffer.hasRemaining()) {
+                if (journal.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Journal was truncated concurrently");
+                }
+            }
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    if (position + i + 1 < journal.size()) {
+                        journal.truncate(position + i + 1);
+                        journal.force(false);
+                    }
+                    return;
+                }
+            }
+            end = position;
+        }
+        // not even the settings line is complete
+        journal.truncate(0);
+    }
+
+    private String settings() {
+        return "# %s %s %s %s %s %s %d".formatted(
+                modelName, taskType, title, outputDimensionality, format, textField, maxChunkLength);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Split a text into chunks of at most {@code maxChunkLength} characters. A chunk ends at the last whitespace
+     * within its second half, if there is one, otherwise it is cut at the maximum length. Surrogate pairs are never
+     * split.
+     */
+    private List<String> chunk(String text) {
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (text.length() - start > maxChunkLength) {
+            int end = start + maxChunkLength;
+            int split = end;
+            for (int i = end; i > start + maxChunkLength / 2; i--) {
+                if (Character.isWhitespace(text.charAt(i))) {
+                    split = i;
+                    break;
+                }
+            }
+            if (split == end && Character.isLowSurrogate(text.charAt(end)) && end - 1 > start) {
+                split = end - 1;
+            }
+            chunks.add(text.substring(start, split));
+            start = split;
+        }
+        if (start < text.length()) {
+            chunks.add(text.substring(start));
+        }
+        return chunks;
+    }
+
+    private String text(String line, long document) {
+        if (format == Format.LINES) {
+            return line;
+        }
+        Object text;
+        try {
+            text = jsonParser.fromJson(line, Map.class).get(textField);
+        } catch (RuntimeException e) {
+            throw new GeminiException("Invalid JSON in document " + document, e);
+        }
+        if (!(text instanceof String string)) {
+            throw new GeminiException("No text field '%s' in document %d".formatted(textField, document));
+        }
+        return string;
+    }
+
+    /**
+     * Read all embeddings of an output file. The file starts with the magic number {@code 0x474D4245} and the format
+     * version 1, followed by one record per chunk: the index of the document, the index of the chunk within the
+     * document, the dimension and the floats of the embedding. All values are little endian.
+     *
+     * @param output   written by {@link #run(Path, Path)}
+     * @param consumer receives the embeddings in the order of the input
+     * @throws UncheckedIOException if the file cannot be read, or is not an embedding file
+     */
+    public static void read(Path output, Consumer<EmbeddedChunk> consumer) {
+        try (var channel = FileChannel.open(output, StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN).limit(0);
+            fill(channel, buffer, OUTPUT_HEADER);
+            if (buffer.getInt() != OUTPUT_MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not an embedding file of version %d: %s".formatted(FORMAT_VERSION, output));
+            }
+            while (buffer.hasRemaining() || channel.position() < channel.size()) {
+                fill(channel, buffer, RECORD_HEADER);
+                long document = buffer.getLong();
+                int chunk = buffer.getInt();
+                int dimension = buffer.getInt();
+                if (dimension < 0 || (long) dimension * Float.BYTES > buffer.capacity()) {
+                    throw new IOException("Invalid dimension %d in %s".formatted(dimension, output));
+                }
+                fill(channel, buffer, dimension * Float.BYTES);
+                float[] vector = new float[dimension];
+                buffer.asFloatBuffer().get(vector);
+                buffer.position(buffer.position() + dimension * Float.BYTES);
+                consumer.accept(new EmbeddedChunk(document, chunk, new GenAi.ContentEmbedding(vector)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Make sure that the buffer has at least {@code bytes} remaining, by reading more from the channel.
+     */
+    private static void fill(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Truncated embedding file");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads the input line by line, and splits it into batches of chunks. Tracks the byte offset of each line, so that
+     * a checkpoint can point to the start of a document.
+     */
+    private final class ChunkReader {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private byte[] line = new byte[1 << 10];
+        // offset of the next byte of the buffer in the input
+        private long offset;
+        private long document;
+        private boolean endOfInput;
+
+        // chunks of the current document which have not been batched yet
+        private List<String> chunks = List.of();
+        private int nextChunk;
+        private long documentOffset;
+
+        ChunkReader(FileChannel channel, Checkpoint start) throws IOException {
+            this.channel = channel;
+            this.offset = start.inputOffset();
+            this.document = start.document();
+            buffer.limit(0);
+            if (start.chunk() > 0) {
+                // continue within a document which was split across batches
+                readDocument();
+                nextChunk = start.chunk();
+            }
+        }
+
+        Batch nextBatch() throws IOException {
+            List<Chunk> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            while (batch.size() < MAX_BATCH_SIZE) {
+                if (nextChunk == chunks.size() && !readDocument()) {
+                    break;
+                }
+                batch.add(new Chunk(document, nextChunk, chunks.get(nextChunk)));
+                nextChunk++;
+            }
+            if (batch.isEmpty()) {
+                return null;
+            }
+            Checkpoint next = nextChunk < chunks.size()
+                    ? new Checkpoint(documentOffset, document, nextChunk, 0)
+                    // the document is complete, the next one starts at the current offset
+                    : new Checkpoint(offset, document + 1, 0, 0);
+            return new Batch(batch, next, null);
+        }
+
+        /**
+         * Read the next document which has at least one chunk.
+         *
+         * @return {@code false} at the end of the input
+         */
+        private boolean readDocument() throws IOException {
+            long next = chunks.isEmpty() ? document : document + 1;
+            while (true) {
+                long lineOffset = offset;
+                String text = readLine();
+                if (text == null) {
+                    return false;
+                }
+                if (text.isBlank()) {
+                    continue;
+                }
+                List<String> documentChunks = chunk(text(text, next));
+                if (documentChunks.isEmpty()) {
+                    // an empty text field still counts as a document
+                    next++;
+                    continue;
+                }
+                document = next;
+                documentOffset = lineOffset;
+                chunks = documentChunks;
+                nextChunk = 0;
+                return true;
+            }
+        }
+
+        private String readLine() throws IOException {
+            if (endOfInput) {
+                return null;
+            }
+            int length = 0;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    buffer.flip();
+                    if (read < 0) {
+                        endOfInput = true;
+                        return length == 0 ? null : decode(length);
+                    }
+                }
+                byte b = buffer.get();
+                offset++;
+                if (b == '\n') {
+                    return decode(length);
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = b;
+            }
+        }
+
+        private String decode(int length) {
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Position in the input and output.
+     *
+     * @param inputOffset  byte offset of the document which contains the next chunk
+     * @param document     index of that document
+     * @param chunk        index of the next chunk within that document
+     * @param outputLength of the output up to this checkpoint, or 0 if the output has not been started
+     */
+    private record Checkpoint(
+            long inputOffset,
+            long document,
+            int chunk,
+            long outputLength
+    ) {
+
+        String toLine() {
+            return "%d %d %d %d\n".formatted(inputOffset, document, chunk, outputLength);
+        }
+
+        static Checkpoint parse(String line, Path journalFile) {
+            String[] fields = line.split(" ");
+            try {
+                if (fields.length == 4) {
+                    return new Checkpoint(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalStateException("Invalid checkpoint in journal %s: %s".formatted(journalFile, line));
+        }
+    }
+
+    private record Chunk(
+            long document,
+            int chunk,
+            String text
+    ) {
+    }
+
+    private record Batch(
+            List<Chunk> chunks,
+            Checkpoint next,
+            CompletableFuture<List<GenAi.ContentEmbedding>> embeddings
+    ) {
+    }
+
+    /**
+     * Format of the input.
+     */
+    public enum Format {
+        /**
+         * Each line is the text of a document.
+         */
+        LINES,
+        /**
+         * Each line is a JSON object, whose text field is the text of a document.
+         */
+        JSONL
+    }
+
+    /**
+     * An embedding of an output file.
+     *
+     * @param document  index of the document, counting the non-blank lines of the input from 0
+     * @param chunk     index of the chunk within the document, counting from 0
+     * @param embedding of the chunk
+     */
+    public record EmbeddedChunk(
+            long document,
+            int chunk,
+            GenAi.ContentEmbedding embedding
+    ) {
+    }
+
+    /**
+     * Progress of a single {@link #run(Path, Path)}.
+     *
+     * @param firstDocument index of the document at which the run started, 0 unless a previous run was resumed
+     * @param documents     number of documents which were completed by the run
+     * @param chunks        number of chunks which were embedded by the run
+     */
+    public record Result(
+            long firstDocument,
+            long documents,
+            long chunks
+    ) {
+    }
+
+    /**
+     * Builder for {@link EmbeddingPipeline}. Not thread-safe.
+     */
+    public static class EmbeddingPipelineBuilder {
+        private GenAi genAi;
+        private String modelName;
+        private String taskType;
+        private String title;
+        private Long outputDimensionality;
+        private Format format = Format.LINES;
+        private JsonParser jsonParser;
+        private String textField = "text";
+        private int maxChunkLength = 8000;
+        private int parallelism = 4;
+
+        private EmbeddingPipelineBuilder() {
+        }
+
+        /**
+         * Set the {@link GenAi} which sends the batches.
+         *
+         * @param genAi to use
+         * @return this
+         */
+        public EmbeddingPipelineBuilder genAi(GenAi genAi) {
+            this.genAi = genAi;
+            return this;
+        }
+
+        /**
+         * Set the embedding model.
+         *
+         * @param modelName must start with "models/"
+         * @return this
+         */
+        public EmbeddingPipelineBuilder modelName(String modelName) {
+            this.modelName = modelName;
+            return this;
+        }
+
+        /**
+         * Set the embedding model.
+         *
+         * @param modelVariant to use, e.g. {@link ModelVariant#TEXT_EMBEDDING_004}
+         * @return this
+         */
+        public EmbeddingPipelineBuilder modelName(ModelVariant modelVariant) {
+            return modelName(modelVariant == null ? null : modelVariant.variant());
+        }
+
+        /**
+         * Set the task type, see {@link GenAi#embedContents(GenerativeModel, String, String, Long)}.
+         *
+         * @param taskType Optional. For possible values, see {@link TaskType}
+         * @return this
+         */
+        public EmbeddingPipelineBuilder taskType(String taskType) {
+            this.taskType = taskType;
+            return this;
+        }
+
+        /**
+         * Set the title, see {@link GenAi#embedContents(GenerativeModel, String, String, Long)}.
+         *
+         * @param title Optional. Only applicable when the task type is RETRIEVAL_DOCUMENT.
+         * @return this
+         */
+        public EmbeddingPipelineBuilder title(String title) {
+            this.title = title;
+            return this;
+        }
+
+        /**
+         * Set the output dimensionality, see {@link GenAi#embedContents(GenerativeModel, String, String, Long)}.
+         *
+         * @param outputDimensionality Optional. Reduced dimension of the embeddings.
+         * @return this
+         */
+        public EmbeddingPipelineBuilder outputDimensionality(Long outputDimensionality) {
+            this.outputDimensionality = outputDimensionality;
+            return this;
+        }
+
+        /**
+         * Set the format of the input.
+         *
+         * @param format to use. {@link Format#JSONL} requires a {@link #jsonParser(JsonParser)}.
+         * @return this
+         */
+        public EmbeddingPipelineBuilder format(Format format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Set the parser of {@link Format#JSONL} lines.
+         *
+         * @param jsonParser which can parse a JSON object into a {@link Map}
+         * @return this
+         */
+        public EmbeddingPipelineBuilder jsonParser(JsonParser jsonParser) {
+            this.jsonParser = jsonParser;
+            return this;
+        }
+
+        /**
+         * Set the field of {@link Format#JSONL} lines which holds the text. Defaults to "text".
+         *
+         * @param textField to read
+         * @return this
+         */
+        public EmbeddingPipelineBuilder textField(String textField) {
+            this.textField = textField;
+            return this;
+        }
+
+        /**
+         * Set the maximum length of a chunk. Should stay below the input token limit of the model, e.g. 2048 tokens
+         * for {@link ModelVariant#TEXT_EMBEDDING_004}.
+         *
+         * @param maxChunkLength in characters. Must be positive.
+         * @return this
+         */
+        public EmbeddingPipelineBuilder maxChunkLength(int maxChunkLength) {
+            this.maxChunkLength = maxChunkLength;
+            return this;
+        }
+
+        /**
+         * Set the number of batches in flight.
+         *
+         * @param parallelism to set. Must be positive.
+         * @return this
+         */
+        public EmbeddingPipelineBuilder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Build the pipeline.
+         *
+         * @return a validated {@link EmbeddingPipeline}
+         */
+        public EmbeddingPipeline build() {
+            return new EmbeddingPipeline(this);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package swiss.ameri.gemini.api;
+
+import swiss.ameri.gemini.spi.JsonParser;
+
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Uploads media to the Files API with the resumable upload protocol.
+ * See <a href="https://ai.google.dev/api/files#method:-media.upload">media.upload</a>.
+ * <p>
+ * The media is sent in chunks of {@link #CHUNK_SIZE}, which are read from the memory mapped file or the array only
+ * while they are sent. If a chunk fails, e.g. because the connection was lost, the upload session is queried for the
+ * bytes it has received, and the upload resumes from there. Base64 encoded media is decoded once before the upload.
+ * Thread safe.
+ */
+final class FileUploader {
+
+    // the resumable upload protocol requires a multiple of 256 KiB, except for the last chunk
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    // the http client sends the body in pieces of this size
+    private static final int PIECE_SIZE = 16 * 1024;
+    // resumes of an upload in a row, which did not make any progress
+    private static final int MAX_RESUMES = 3;
+
+    private final Sender sender;
+    private final JsonParser jsonParser;
+    private final String uploadUrl;
+    private final String apiKey;
+
+    /**
+     * @param sender     sends the requests, only successful responses are passed to the body handler
+     * @param jsonParser to (de-)serialize the metadata
+     * @param uploadUrl  of the Files API, e.g. {@code https://generativelanguage.googleapis.com/upload/v1beta/files}
+     * @param apiKey     to authenticate the upload
+     */
+    FileUploader(Sender sender, JsonParser jsonParser, String uploadUrl, String apiKey) {
+        this.sender = sender;
+        this.jsonParser = jsonParser;
+        this.uploadUrl = uploadUrl;
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Upload media.
+     *
+     * @param binary      the media, see {@link MediaSource#binary()}
+     * @param mimeType    of the media
+     * @param displayName optional, to identify the file
+     * @return the uploaded file, which may still be processed
+     */
+    CompletableFuture<UploadedFile> upload(MediaSource.Binary binary, String mimeType, String displayName) {
+        long size = binary.size();
+        HttpRequest start = HttpRequest.newBuilder()
+                .POST(JsonBodyPublisher.of(jsonParser, new StartRequest(new FileMetadata(displayName))))
+                .uri(URI.create("%s?key=%s".formatted(uploadUrl, apiKey)))
+                .header("Content-Type", "application/json")
+                .header("X-Goog-Upload-Protocol", "resumable")
+                .header("X-Goog-Upload-Command", "start")
+                .header("X-Goog-Upload-Header-Content-Length", Long.toString(size))
+                .header("X-Goog-Upload-Header-Content-Type", mimeType)
+                .build();
+        return sender.send(start, HttpResponse.BodyHandlers.discarding())
+                .thenCompose(response -> {
+                    String session = response.headers().firstValue("X-Goog-Upload-URL")
+                            .orElseThrow(() -> new GeminiException("No upload url in response: " + response.headers()));
+                    return new Upload(URI.create(session), binary, size).from(0, 0);
+                });
+    }
+
+    /**
+     * Sends a request. Can be implemented by a method reference.
+     */
+    interface Sender {
+
+        /**
+         * @param request     to send
+         * @param bodyHandler for a successful response
+         * @param <T>         type of the body
+         * @return the response. Fails on an unexpected status code.
+         */
+        <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler);
+    }
+
+    /**
+     * State of a single upload session.
+     */
+    private final class Upload {
+
+        private final URI session;
+        private final MediaSource.Binary binary;
+        private final long size;
+
+        Upload(URI session, MediaSource.Binary binary, long size) {
+            this.session = session;
+            this.binary = binary;
+            this.size = size;
+        }
+
+        /**
+         * Send the chunks from {@code offset} on.
+         *
+         * @param failures previous resumes without progress
+         */
+        CompletableFuture<UploadedFile> from(long offset, int failures) {
+            int length = (int) Math.min(CHUNK_SIZE, size - offset);
+            CompletableFuture<UploadedFile> chunk;
+            try {
+                chunk = send(offset, length);
+            } catch (RuntimeException e) {
+                // e.g. the file cannot be mapped
+                return CompletableFuture.failedFuture(e);
+            }
+            return chunk.handle((file, throwable) -> {
+                        if (throwable == null) {
+                            return file != null ? CompletableFuture.completedFuture(file) : from(offset + length, 0);
+                        }
+                        if (failures >= MAX_RESUMES || Futures.unwrap(throwable) instanceof IllegalStateException) {
+                            return CompletableFuture.<UploadedFile>failedFuture(Futures.unwrap(throwable));
+                        }
+                        return resume(offset, failures);
+                    })
+                    .thenCompose(Function.identity());
+        }
+
+        /**
+         * @return the uploaded file, if this was the last chunk, otherwise {@code null}
+         */
+        private CompletableFuture<UploadedFile> send(long offset, int length) {
+            boolean last = offset + length == size;
+            HttpRequest request = HttpRequest.newBuilder()
+                    .POST(publisher(binary.slice(offset, length)))
+                    .uri(session)
+                    .header("X-Goog-Upload-Command", last ? "upload, finalize" : "upload")
+                    .header("X-Goog-Upload-Offset", Long.toString(offset))
+                    .build();
+            if (last) {
+                return sender.send(request, JsonBodySubscriber.handler(jsonParser, UploadResponse.class))
+                        .thenApply(response -> response.body().file());
+            }
+            return sender.send(request, HttpResponse.BodyHandlers.discarding())
+                    .thenApply(response -> null);
+        }
+
+        private CompletableFuture<UploadedFile> resume(long offset, int failures) {
+            HttpRequest query = HttpRequest.newBuilder()
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .uri(session)
+                    .header("X-Goog-Upload-Command", "query")
+                    .build();
+            return sender.send(query, HttpResponse.BodyHandlers.ofString())
+                    .thenCompose(response -> {
+                        HttpHeaders headers = response.headers();
+                        String status = headers.firstValue("X-Goog-Upload-Status").orElse("");
+                        if ("final".equals(status)) {
+                            return CompletableFuture.completedFuture(
+                                    jsonParser.fromJson(response.body(), UploadResponse.class).file());
+                        }
+                        if (!"active".equals(status)) {
+                            throw new GeminiException("Upload session is " + status);
+                        }
+                        long received = headers.firstValueAsLong("X-Goog-Upload-Size-Received").orElse(0);
+                        return from(received, received > offset ? 0 : failures + 1);
+                    });
+        }
+    }
+
+    private static HttpRequest.BodyPublisher publisher(ByteBuffer chunk) {
+        if (!chunk.hasRemaining()) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        // each subscriber, e.g. a retry, reads its own views of the chunk
+        return HttpRequest.BodyPublishers.fromPublisher(subscriber -> {
+            List<ByteBuffer> pieces = new ArrayList<>();
+            for (int position = 0; position < chunk.remaining(); position += PIECE_SIZE) {
+                pieces.add(chunk.slice(chunk.position() + position, Math.min(PIECE_SIZE, chunk.remaining() - position)));
+            }
+            new ReplayPublisher<>(pieces).subscribe(subscriber);
+        }, chunk.remaining());
+    }
+
+    private record StartRequest(
+            FileMetadata file
+    ) {
+    }
+
+    private record FileMetadata(
+            String displayName
+    ) {
+    }
+
+    private record UploadResponse(
+            UploadedFile file
+    ) {
+    }
+}
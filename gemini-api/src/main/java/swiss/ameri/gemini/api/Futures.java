@@ -0,0 +1,88 @@
+package swiss.ameri.gemini.api;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+/**
+ * Helpers for {@link java.util.concurrent.CompletableFuture}s and {@link Flow}s.
+ */
+final class Futures {
+
+    private Futures() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Remove the wrappers added by {@link java.util.concurrent.CompletableFuture}.
+     *
+     * @param throwable to unwrap
+     * @return the actual cause
+     */
+    static Throwable unwrap(Throwable throwable) {
+        Throwable result = throwable;
+        while ((result instanceof CompletionException || result instanceof ExecutionException)
+                && result.getCause() != null) {
+            result = result.getCause();
+        }
+        return result;
+    }
+
+    /**
+     * Signal a failure to a subscriber which has not been subscribed yet.
+     *
+     * @param subscriber to fail
+     * @param throwable  the failure
+     * @param <T>        type of the subscriber
+     */
+    static <T> void fail(Flow.Subscriber<T> subscriber, Throwable throwable) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        subscriber.onError(throwable);
+    }
+
+    /**
+     * Run an action once a publisher has completed successfully, before its subscriber is notified.
+     *
+     * @param publisher to observe
+     * @param action    to run on completion. Not run on failure or cancellation.
+     * @param <T>       type of the published items
+     * @return a publisher which publishes the same items
+     */
+    static <T> Flow.Publisher<T> onComplete(Flow.Publisher<T> publisher, Runnable action) {
+        return subscriber -> publisher.subscribe(new Flow.Subscriber<T>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscriber.onSubscribe(subscription);
+            }
+
+            @Override
+            public void onNext(T item) {
+                subscriber.onNext(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                subscriber.onError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    subscriber.onError(e);
+                    return;
+                }
+                subscriber.onComplete();
+            }
+        });
+    }
+}
@@ -5,20 +5,44 @@ import swiss.ameri.gemini.spi.JsonParser;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.Collections.emptyList;
 
@@ -26,20 +50,39 @@ import static java.util.Collections.emptyList;
 /**
  * Entry point for all interactions with Gemini API.
  * Note that some methods store state (e.g. {@link #generateContent(GenerativeModel)} or ${@link #generateContentStream(GenerativeModel)}).
+ * The state is bounded, see {@link GenAiBuilder#responseMetadataStore(ResponseMetadataStore)}.
  * Call the {@link #close()} method to clean up the state.
  * This class is thread safe.
  */
 public class GenAi implements AutoCloseable {
 
-    private static final String STREAM_LINE_PREFIX = "data: ";
-    private static final int STREAM_LINE_PREFIX_LENGTH = STREAM_LINE_PREFIX.length();
+    private static final int DEFAULT_METADATA_MAXIMUM_SIZE = 10_000;
+    private static final Duration DEFAULT_METADATA_TIME_TO_LIVE = Duration.ofHours(1);
+    private static final int DEFAULT_EMBEDDING_PARALLELISM = 4;
+    // maximum number of requests in a batchEmbedContents call allowed by Gemini API
+    private static final int MAX_EMBEDDING_BATCH_SIZE = 100;
 
-    private final String urlPrefix = "https://generativelanguage.googleapis.com/v1beta";
+    private static final String DEFAULT_BASE_URL = "https://generativelanguage.googleapis.com/v1beta";
+    private static final int CACHED_CONTENTS_PAGE_SIZE = 1000;
+    private static final int FILES_PAGE_SIZE = 100;
+    private static final Duration FILE_POLL_INTERVAL = Duration.ofSeconds(2);
+
+    private final String urlPrefix;
 
     private final String apiKey;
     private final HttpClient client;
     private final JsonParser jsonParser;
-    private final Map<UUID, GenerateContentResponse> responseById = new ConcurrentHashMap<>();
+    private final ResponseMetadataStore responseMetadataStore;
+    private final Retrier retrier;
+    private final RateLimiter rateLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final Hedger hedger;
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
+    private final ResponseCache responseCache;
+    private final EmbeddingCache embeddingCache;
+    private final int embeddingParallelism;
+    private final FileUploader fileUploader;
+    private final MediaUploads mediaUploads;
 
     /**
      * Create a new instance with a default {@link HttpClient}
@@ -70,9 +113,50 @@ public class GenAi implements AutoCloseable {
             JsonParser jsonParser,
             HttpClient client
     ) {
-        this.apiKey = apiKey;
-        this.jsonParser = jsonParser;
-        this.client = client;
+        this(
+                builder()
+                        .apiKey(apiKey)
+                        .jsonParser(jsonParser)
+                        .client(client)
+        );
+    }
+
+    private GenAi(GenAiBuilder builder) {
+        this.apiKey = builder.apiKey;
+        this.urlPrefix = builder.baseUrl;
+        this.jsonParser = builder.jsonParser;
+        this.client = builder.client == null ? HttpClient.newBuilder().build() : builder.client;
+        this.responseMetadataStore = builder.responseMetadataStore;
+        this.retrier = new Retrier(builder.retryPolicy, builder.jsonParser);
+        this.rateLimiter = new RateLimiter(builder.rateLimits);
+        this.concurrencyLimiter = new ConcurrencyLimiter(builder.concurrencyLimitPolicy);
+        this.hedger = new Hedger(builder.hedgingPolicy);
+        this.responseCache = builder.responseCache;
+        this.embeddingCache = builder.embeddingCache;
+        this.embeddingParallelism = builder.embeddingParallelism;
+        this.fileUploader = new FileUploader(this::sendUnlimited, jsonParser, uploadUrl(urlPrefix), apiKey);
+        this.mediaUploads = builder.mediaUploadThreshold < 0 ? null : new MediaUploads(
+                builder.mediaUploadThreshold,
+                (binary, mimeType) -> fileUploader.upload(binary, mimeType, null)
+                        .thenCompose(file -> awaitFileActive(file, FILE_POLL_INTERVAL))
+        );
+    }
+
+    /**
+     * Get the url of the Files API upload endpoint, e.g. https://generativelanguage.googleapis.com/upload/v1beta/files
+     */
+    private static String uploadUrl(String urlPrefix) {
+        int version = urlPrefix.lastIndexOf('/');
+        return urlPrefix.substring(0, version) + "/upload" + urlPrefix.substring(version) + "/files";
+    }
+
+    /**
+     * Create a {@link GenAiBuilder}, for instances which need more configuration than the constructors offer.
+     *
+     * @return an empty {@link GenAiBuilder}
+     */
+    public static GenAiBuilder builder() {
+        return new GenAiBuilder();
     }
 
     /**
@@ -82,16 +166,17 @@ public class GenAi implements AutoCloseable {
      */
     public List<Model> listModels() {
         return execute(() -> {
-            HttpResponse<String> response = client.send(
+            HttpResponse<ModelResponse> response = await(send(
+                    null,
+                    false,
                     HttpRequest.newBuilder()
                             .GET()
                             .uri(URI.create("%s/models?key=%s".formatted(urlPrefix, apiKey)))
                             .build(),
-                    HttpResponse.BodyHandlers.ofString()
-            );
+                    JsonBodySubscriber.handler(jsonParser, ModelResponse.class)
+            ));
 
-            return jsonParser.fromJson(response.body(), ModelResponse.class)
-                    .models();
+            return response.body().models();
         });
     }
 
@@ -114,17 +199,268 @@ public class GenAi implements AutoCloseable {
      */
     public Model getModel(String model) {
         return execute(() -> {
-            HttpResponse<String> response = client.send(
+            HttpResponse<Model> response = await(send(
+                    null,
+                    false,
                     HttpRequest.newBuilder()
                             .GET()
                             .uri(URI.create("%s/%s?key=%s".formatted(urlPrefix, model, apiKey)))
                             .build(),
-                    HttpResponse.BodyHandlers.ofString()
-            );
-            return jsonParser.fromJson(response.body(), Model.class);
+                    JsonBodySubscriber.handler(jsonParser, Model.class)
+            ));
+            return response.body();
+        });
+    }
+
+    /**
+     * Cache the contents, system instruction and functions of a model, so that they do not have to be sent with
+     * every request. Continue the cached content with {@link GenerativeModel.GenerativeModelBuilder#cachedContent(CachedContent)}.
+     * Gemini API requires a minimum size of the cached content, e.g. 32k tokens.
+     *
+     * @param model       whose contents, system instruction and functions are cached. The safety settings and
+     *                    the generation config are not cached.
+     * @param ttl         time after which the cached content is deleted, see
+     *                    {@link #updateCachedContent(String, Duration)}
+     * @param displayName optional, to identify the cached content
+     * @return a {@link CompletableFuture} which completes with the cached content
+     */
+    public CompletableFuture<CachedContent> createCachedContent(GenerativeModel model, Duration ttl, String displayName) {
+        return withUploadedMedia(model, uploaded -> sendCreateCachedContent(uploaded, ttl, displayName));
+    }
+
+    private CompletableFuture<CachedContent> sendCreateCachedContent(GenerativeModel model, Duration ttl, String displayName) {
+        return execute(() -> {
+            var media = new JsonBodyPublisher.MediaPlaceholders();
+            GenerateContentRequest converted = convert(model, media::placeholder);
+            var body = JsonBodyPublisher.of(jsonParser, new CreateCachedContentRequest(
+                    model.modelName(),
+                    converted.contents(),
+                    converted.systemInstruction(),
+                    converted.tools(),
+                    toJsonDuration(ttl),
+                    displayName
+            ), media);
+            HttpRequest request = HttpRequest.newBuilder()
+                    .POST(body)
+                    .uri(URI.create("%s/cachedContents?key=%s".formatted(urlPrefix, apiKey)))
+                    .build();
+            return send(null, false, request, JsonBodySubscriber.handler(jsonParser, CachedContent.class))
+                    .thenApply(HttpResponse::body);
         });
     }
 
+    /**
+     * List the cached contents which have not expired yet.
+     *
+     * @return all cached contents
+     */
+    public List<CachedContent> listCachedContents() {
+        return execute(() -> {
+            List<CachedContent> cachedContents = new ArrayList<>();
+            String pageToken = null;
+            do {
+                String query = pageToken == null ? "" : "&pageToken=" + URLEncoder.encode(pageToken, StandardCharsets.UTF_8);
+                HttpResponse<CachedContentsResponse> response = await(send(
+                        null,
+                        false,
+                        HttpRequest.newBuilder()
+                                .GET()
+                                .uri(URI.create("%s/cachedContents?pageSize=%d%s&key=%s".formatted(
+                                        urlPrefix, CACHED_CONTENTS_PAGE_SIZE, query, apiKey)))
+                                .build(),
+                        JsonBodySubscriber.handler(jsonParser, CachedContentsResponse.class)
+                ));
+                if (response.body().cachedContents() != null) {
+                    cachedContents.addAll(response.body().cachedContents());
+                }
+                pageToken = response.body().nextPageToken();
+            } while (pageToken != null && !pageToken.isEmpty());
+            return cachedContents;
+        });
+    }
+
+    /**
+     * Get a cached content.
+     *
+     * @param name of the cached content, e.g. "cachedContents/abc"
+     * @return the cached content
+     */
+    public CachedContent getCachedContent(String name) {
+        return execute(() -> {
+            HttpResponse<CachedContent> response = await(send(
+                    null,
+                    false,
+                    HttpRequest.newBuilder()
+                            .GET()
+                            .uri(URI.create("%s/%s?key=%s".formatted(urlPrefix, name, apiKey)))
+                            .build(),
+                    JsonBodySubscriber.handler(jsonParser, CachedContent.class)
+            ));
+            return response.body();
+        });
+    }
+
+    /**
+     * Change the time at which a cached content expires.
+     *
+     * @param name of the cached content, e.g. "cachedContents/abc"
+     * @param ttl  new time to live, from now
+     * @return the updated cached content
+     */
+    public CachedContent updateCachedContent(String name, Duration ttl) {
+        return execute(() -> {
+            HttpResponse<CachedContent> response = await(send(
+                    null,
+                    false,
+                    HttpRequest.newBuilder()
+                            .method("PATCH", JsonBodyPublisher.of(jsonParser, new UpdateCachedContentRequest(toJsonDuration(ttl))))
+                            .uri(URI.create("%s/%s?updateMask=ttl&key=%s".formatted(urlPrefix, name, apiKey)))
+                            .build(),
+                    JsonBodySubscriber.handler(jsonParser, CachedContent.class)
+            ));
+            return response.body();
+        });
+    }
+
+    /**
+     * Delete a cached content, before it expires.
+     *
+     * @param name of the cached content, e.g. "cachedContents/abc"
+     */
+    public void deleteCachedContent(String name) {
+        execute(() -> await(send(
+                null,
+                false,
+                HttpRequest.newBuilder()
+                        .DELETE()
+                        .uri(URI.create("%s/%s?key=%s".formatted(urlPrefix, name, apiKey)))
+                        .build(),
+                HttpResponse.BodyHandlers.discarding()
+        )));
+    }
+
+    /**
+     * Upload media to the Files API, so that it can be referenced in requests by {@link Content.MediaData#of(UploadedFile)}
+     * instead of being sent inline. The media is uploaded in chunks, and an interrupted upload is resumed.
+     * Files are deleted by Gemini API after 48 hours.
+     *
+     * @param media       to upload. Must not reference an uploaded file.
+     * @param displayName optional, to identify the file
+     * @return a {@link CompletableFuture} which completes with the uploaded file. The file may still be processed,
+     * see {@link #awaitFileActive(String, Duration)}
+     * @see GenAiBuilder#mediaUploadThreshold(long) to upload large media automatically
+     */
+    public CompletableFuture<UploadedFile> uploadFile(Content.MediaData media, String displayName) {
+        if (media.source() == null) {
+            throw new IllegalArgumentException("Media references an uploaded file: " + media.fileUri());
+        }
+        return fileUploader.upload(media.source().binary(), media.mimeType(), displayName);
+    }
+
+    /**
+     * List the files which have been uploaded and have not expired yet.
+     *
+     * @return all uploaded files
+     */
+    public List<UploadedFile> listFiles() {
+        return execute(() -> {
+            List<UploadedFile> files = new ArrayList<>();
+            String pageToken = null;
+            do {
+                String query = pageToken == null ? "" : "&pageToken=" + URLEncoder.encode(pageToken, StandardCharsets.UTF_8);
+                HttpResponse<FilesResponse> response = await(send(
+                        null,
+                        false,
+                        HttpRequest.newBuilder()
+                                .GET()
+                                .uri(URI.create("%s/files?pageSize=%d%s&key=%s".formatted(
+                                        urlPrefix, FILES_PAGE_SIZE, query, apiKey)))
+                                .build(),
+                        JsonBodySubscriber.handler(jsonParser, FilesResponse.class)
+                ));
+                if (response.body().files() != null) {
+                    files.addAll(response.body().files());
+                }
+                pageToken = response.body().nextPageToken();
+            } while (pageToken != null && !pageToken.isEmpty());
+            return files;
+        });
+    }
+
+    /**
+     * Get an uploaded file, e.g. to check its state.
+     *
+     * @param name of the file, e.g. "files/abc"
+     * @return the uploaded file
+     */
+    public UploadedFile getFile(String name) {
+        return execute(() -> await(fetchFile(name)));
+    }
+
+    /**
+     * Wait until an uploaded file has been processed, and can be used in requests.
+     *
+     * @param name         of the file, e.g. "files/abc"
+     * @param pollInterval time between two checks of the state
+     * @return a {@link CompletableFuture} which completes with the active file. It fails, if the processing failed.
+     */
+    public CompletableFuture<UploadedFile> awaitFileActive(String name, Duration pollInterval) {
+        return fetchFile(name).thenCompose(file -> awaitFileActive(file, pollInterval));
+    }
+
+    private CompletableFuture<UploadedFile> awaitFileActive(UploadedFile file, Duration pollInterval) {
+        if (file.isActive()) {
+            return CompletableFuture.completedFuture(file);
+        }
+        if ("FAILED".equals(file.state())) {
+            return CompletableFuture.failedFuture(new GeminiException(
+                    "Processing of file %s failed: %s".formatted(file.name(), file.error())));
+        }
+        Executor delayed = CompletableFuture.delayedExecutor(pollInterval.toNanos(), TimeUnit.NANOSECONDS);
+        return CompletableFuture.supplyAsync(file::name, delayed)
+                .thenCompose(this::fetchFile)
+                .thenCompose(polled -> awaitFileActive(polled, pollInterval));
+    }
+
+    private CompletableFuture<UploadedFile> fetchFile(String name) {
+        return send(
+                null,
+                false,
+                HttpRequest.newBuilder()
+                        .GET()
+                        .uri(URI.create("%s/%s?key=%s".formatted(urlPrefix, name, apiKey)))
+                        .build(),
+                JsonBodySubscriber.handler(jsonParser, UploadedFile.class)
+        ).thenApply(HttpResponse::body);
+    }
+
+    /**
+     * Delete an uploaded file, before it expires.
+     *
+     * @param name of the file, e.g. "files/abc"
+     */
+    public void deleteFile(String name) {
+        execute(() -> await(send(
+                null,
+                false,
+                HttpRequest.newBuilder()
+                        .DELETE()
+                        .uri(URI.create("%s/%s?key=%s".formatted(urlPrefix, name, apiKey)))
+                        .build(),
+                HttpResponse.BodyHandlers.discarding()
+        )));
+    }
+
+    /**
+     * Format a duration as a protobuf JSON duration, e.g. "3600s" or "1.5s".
+     */
+    private static String toJsonDuration(Duration duration) {
+        if (duration.getNano() == 0) {
+            return duration.getSeconds() + "s";
+        }
+        return "%d.%09ds".formatted(duration.getSeconds(), duration.getNano());
+    }
+
     /**
      * Get the usage metadata of a {@link GeneratedContent#id()}.
      *
@@ -132,8 +468,8 @@ public class GenAi implements AutoCloseable {
      * @return the corresponding metadata, or an empty optional
      */
     public Optional<UsageMetadata> usageMetadata(UUID id) {
-        return Optional.ofNullable(responseById.get(id))
-                .map(GenerateContentResponse::usageMetadata);
+        return responseMetadataStore.get(id)
+                .map(ResponseMetadataStore.ResponseMetadata::usageMetadata);
     }
 
     /**
@@ -143,50 +479,57 @@ public class GenAi implements AutoCloseable {
      * @return the corresponding safety ratings, or an empty optional
      */
     public List<SafetyRating> safetyRatings(UUID id) {
-        GenerateContentResponse response = responseById.get(id);
-        if (response == null) {
-            return emptyList();
-        }
-        return response.candidates().stream()
-                // when streaming, we sometimes don't get a safety rating... (with 1.5 pro)
-                .map(ResponseCandidate::safetyRatings)
-                .filter(Objects::nonNull)
-                .flatMap(Collection::stream)
-                .toList();
+        return responseMetadataStore.get(id)
+                .map(ResponseMetadataStore.ResponseMetadata::safetyRatings)
+                .orElse(emptyList());
     }
 
+    /**
+     * Get the current concurrency limit of a model, if a {@link ConcurrencyLimitPolicy} is configured.
+     *
+     * @param modelName of the model. Must start with "models/"
+     * @return the current limit, in flight and queued requests, or an empty optional if the model has not been used yet
+     * @see GenAiBuilder#concurrencyLimitPolicy(ConcurrencyLimitPolicy)
+     */
+    public Optional<ConcurrencyLimitPolicy.Status> concurrencyLimit(String modelName) {
+        return concurrencyLimiter.status(modelName);
+    }
 
     /**
      * Runs a model's tokenizer on input content and returns the token count.
      * When using long prompts, it might be useful to count tokens before sending any content to the model.
+     * Identical calls, which are in flight at the same time, share a single request.
      *
      * @param model to be analyzed
      * @return the token count
      */
     public CompletableFuture<Long> countTokens(GenerativeModel model) {
+        return withUploadedMedia(model, this::sendCountTokens);
+    }
+
+    private CompletableFuture<Long> sendCountTokens(GenerativeModel model) {
         return execute(() -> {
-            CompletableFuture<HttpResponse<String>> response = client.sendAsync(
-                    HttpRequest.newBuilder()
-                            .POST(HttpRequest.BodyPublishers.ofString(
-                                    jsonParser.toJson(new CountTokenRequest(convert(model)))
-                            ))
-                            .uri(URI.create("%s/%s:countTokens?key=%s".formatted(urlPrefix, model.modelName(), apiKey)))
-                            .build(),
-                    HttpResponse.BodyHandlers.ofString()
-            );
-            return response
+            var media = new JsonBodyPublisher.MediaPlaceholders();
+            var body = JsonBodyPublisher.of(jsonParser, new CountTokenRequest(convert(model, media::placeholder)), media);
+            HttpRequest request = HttpRequest.newBuilder()
+                    .POST(body)
+                    .uri(URI.create("%s/%s:countTokens?key=%s".formatted(urlPrefix, model.modelName(), apiKey)))
+                    .build();
+            // counting does not consume tokens, but it is still a request
+            return requestCoalescer.execute(request.uri().getPath(), body.sha256(""), () -> rateLimiter.acquire(model.modelName(), 0)
+                    .thenCompose(permit -> send(
+                            model.modelName(),
+                            true,
+                            request,
+                            JsonBodySubscriber.handler(jsonParser, CountTokenResponse.class)
+                    ))
                     .thenApply(HttpResponse::body)
-                    .thenApply(body -> {
-                        try {
-                            var ctr = jsonParser.fromJson(body, CountTokenResponse.class);
-                            if (ctr.totalTokens() == null) {
-                                throw new GeminiException("No token field in response");
-                            }
-                            return ctr.totalTokens();
-                        } catch (Exception e) {
-                            throw new GeminiException("Unexpected body:\n" + body, e);
+                    .thenApply(ctr -> {
+                        if (ctr.totalTokens() == null) {
+                            throw new GeminiException("No token field in response:\n" + jsonParser.toJson(ctr));
                         }
-                    });
+                        return ctr.totalTokens();
+                    }));
         });
     }
 
@@ -200,46 +543,126 @@ public class GenAi implements AutoCloseable {
      * @param model with the necessary information for Gemini API to generate content
      * @return A live stream of the response, as it arrives
      * @see #generateContent(GenerativeModel) which returns the whole response at once (asynchronously)
+     * @see #generateContentPublisher(GenerativeModel) which streams the response without blocking
      */
     public Stream<GeneratedContent> generateContentStream(GenerativeModel model) {
-        return execute(() -> {
-            UUID uuid = UUID.randomUUID();
-            HttpRequest request = HttpRequest.newBuilder()
-                    .POST(HttpRequest.BodyPublishers.ofString(
-                            jsonParser.toJson(convert(model))
-                    ))
-                    .uri(URI.create("%s/%s:streamGenerateContent?alt=sse&key=%s".formatted(urlPrefix, model.modelName(), apiKey)))
-                    .build();
+        return execute(() -> BlockingSubscriber.stream(
+                await(streamPublisher(model, true))
+        ));
+    }
 
-            HttpResponse<Stream<String>> response = client.send(
-                    request,
-                    HttpResponse.BodyHandlers.ofLines()
-            );
-            //  e.g. Response code: 503 (Service Unavailable); Time: 5813ms (5 s 813 ms)
-            //
-            //{
-            //  "error": {
-            //    "code": 503,
-            //    "message": "The model is overloaded. Please try again later.",
-            //    "status": "UNAVAILABLE"
-            //  }
-            //}
-
-            if (response.statusCode() != 200) {
-                // in case of an error, we don't stream, but block and give the whole response, because
-                // we don't want to parse it and potentially cause more errors
-                String error = response.body()
-                        .collect(Collectors.joining("\n"));
-                throw new GeminiException(
-                        "Unexpected stream response:\n%s".formatted(error),
-                        response.statusCode()
-                );
+    /**
+     * Generates a response from Gemini API based on the given {@code model}, without blocking any thread.
+     * The response is published in chunks of text as they arrive. The request is only sent once a
+     * {@link Flow.Subscriber} subscribes, and the response body is only read as fast as the subscriber requests
+     * new items. Each subscription sends a new request.
+     * Once the stream has completed, metadata and safety ratings can be obtained by calling
+     * {@link #usageMetadata(UUID)} or {@link #safetyRatings(UUID)}.
+     * <p>
+     * If Gemini API responds with an unexpected status code, the subscriber receives a {@link GeminiException}
+     * containing the response code.
+     *
+     * @param model with the necessary information for Gemini API to generate content
+     * @return a cold publisher of the response
+     * @see #generateContentStream(GenerativeModel) for a blocking variant
+     */
+    public Flow.Publisher<GeneratedContent> generateContentPublisher(GenerativeModel model) {
+        return subscriber -> {
+            CompletableFuture<Flow.Publisher<GeneratedContent>> publisher;
+            try {
+                publisher = streamPublisher(model, false);
+            } catch (RuntimeException e) {
+                Futures.fail(subscriber, e);
+                return;
             }
+            publisher.whenComplete((p, throwable) -> {
+                if (throwable != null) {
+                    Futures.fail(subscriber, Futures.unwrap(throwable));
+                } else {
+                    p.subscribe(subscriber);
+                }
+            });
+        };
+    }
 
-            return response.body()
-                    .filter(l -> l.length() > STREAM_LINE_PREFIX_LENGTH)
-                    .map(line -> parse(line.substring(STREAM_LINE_PREFIX_LENGTH), uuid));
-        });
+    /**
+     * @param blocking see {@link #sendStreamGenerateContent(GenerativeModel, JsonBodyPublisher, URI, boolean)}
+     */
+    private CompletableFuture<Flow.Publisher<GeneratedContent>> streamPublisher(GenerativeModel model, boolean blocking) {
+        return withUploadedMedia(model, uploaded -> sendStreamGenerateContent(uploaded, blocking));
+    }
+
+    private CompletableFuture<Flow.Publisher<GeneratedContent>> sendStreamGenerateContent(
+            GenerativeModel model,
+            boolean blocking
+    ) {
+        var media = new JsonBodyPublisher.MediaPlaceholders();
+        return sendStreamGenerateContent(
+                model,
+                JsonBodyPublisher.of(jsonParser, convert(model, media::placeholder), media),
+                streamGenerateContentUri(model.modelName()),
+                blocking
+        );
+    }
+
+    /**
+     * @param body     the serialized {@code model}
+     * @param uri      see {@link #streamGenerateContentUri(String)}
+     * @param blocking whether the caller waits for the response. Such requests are charged to the rate limit, but
+     *                 not delayed by it, so that the caller's thread is not parked in the limiter
+     */
+    CompletableFuture<Flow.Publisher<GeneratedContent>> sendStreamGenerateContent(
+            GenerativeModel model,
+            JsonBodyPublisher body,
+            URI uri,
+            boolean blocking
+    ) {
+        UUID uuid = UUID.randomUUID();
+        String cacheKey = cacheKey(model, body);
+        if (cacheKey != null) {
+            Optional<List<String>> cached = responseCache.get(cacheKey);
+            if (cached.isPresent()) {
+                return CompletableFuture.completedFuture(new ReplayPublisher<>(cached.get().stream()
+                        .map(chunk -> parse(chunk, uuid, RateLimiter.Permit.UNLIMITED))
+                        .toList()));
+            }
+        }
+        HttpRequest request = HttpRequest.newBuilder()
+                .POST(body)
+                .uri(uri)
+                .build();
+
+        //  e.g. Response code: 503 (Service Unavailable); Time: 5813ms (5 s 813 ms)
+        //
+        //{
+        //  "error": {
+        //    "code": 503,
+        //    "message": "The model is overloaded. Please try again later.",
+        //    "status": "UNAVAILABLE"
+        //  }
+        //}
+        // such errors are handled by send, so the body is only ever an event stream
+        Queue<String> chunks = cacheKey == null ? null : new ConcurrentLinkedQueue<>();
+        long estimatedTokens = RateLimiter.estimateTokens(model);
+        CompletableFuture<RateLimiter.Permit> permitted = blocking
+                ? CompletableFuture.completedFuture(rateLimiter.charge(model.modelName(), estimatedTokens))
+                : rateLimiter.acquire(model.modelName(), estimatedTokens);
+        return permitted
+                .thenCompose(permit -> send(
+                        model.modelName(),
+                        false,
+                        request,
+                        responseInfo -> new SseBodySubscriber<>(data -> {
+                            if (chunks != null) {
+                                chunks.add(StandardCharsets.UTF_8.decode(data.duplicate()).toString());
+                            }
+                            return parse(data, uuid, permit);
+                        })
+                ))
+                .thenApply(HttpResponse::body)
+                .thenApply(publisher -> chunks == null
+                        ? publisher
+                        : Futures.onComplete(publisher, () -> responseCache.put(cacheKey, List.copyOf(chunks))));
     }
 
     /**
@@ -253,20 +676,175 @@ public class GenAi implements AutoCloseable {
      * @see #generateContentStream(GenerativeModel) to stream the response in chunks, instead of receiving all at once
      */
     public CompletableFuture<GeneratedContent> generateContent(GenerativeModel model) {
+        return withUploadedMedia(model, this::sendGenerateContent);
+    }
+
+    /**
+     * Generate content for any number of models, e.g. in a batch job, with at most {@code maxConcurrency} requests in
+     * flight. Each request is sent like {@link #generateContent(GenerativeModel)}, so the configured retries, rate
+     * limits, concurrency limits and caches apply to each of them.
+     * <p>
+     * The models are only pulled from the stream when a request can be started, and the results are only held until
+     * they are consumed, so the memory used does not grow with the number of models. A failed request is reported in
+     * its {@link GenerationResult}, and does not affect the others. The requests are started on the thread which
+     * consumes the returned stream. Closing the returned stream closes {@code models}; requests in flight are not
+     * cancelled.
+     *
+     * @param models         to generate content for
+     * @param maxConcurrency maximum number of requests in flight, and of results which have not been consumed. Must be
+     *                       positive.
+     * @param ordered        {@code true} to return the results in the order of the models, in which case a slow
+     *                       request holds back the following ones; {@code false} to return them as they complete
+     * @return a lazy, sequential stream with one result per model
+     * @see #generateContents(Iterator, int, Consumer) to receive the results without blocking a thread
+     */
+    public Stream<GenerationResult> generateContents(Stream<GenerativeModel> models, int maxConcurrency, boolean ordered) {
+        return generateContents(models.iterator(), maxConcurrency, ordered)
+                .onClose(models::close);
+    }
+
+    /**
+     * Generate content for any number of models, see {@link #generateContents(Stream, int, boolean)}.
+     *
+     * @param models         to generate content for. Only accessed by the thread consuming the returned stream.
+     * @param maxConcurrency maximum number of requests in flight, and of results which have not been consumed. Must be
+     *                       positive.
+     * @param ordered        {@code true} to return the results in the order of the models, {@code false} to return
+     *                       them as they complete
+     * @return a lazy, sequential stream with one result per model
+     */
+    public Stream<GenerationResult> generateContents(Iterator<GenerativeModel> models, int maxConcurrency, boolean ordered) {
+        checkConcurrency(maxConcurrency);
+        int characteristics = ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                BulkGeneration.iterator(models, maxConcurrency, ordered, this::generateContent),
+                characteristics
+        ), false);
+    }
+
+    /**
+     * Generate content for any number of models without blocking a thread, see
+     * {@link #generateContents(Stream, int, boolean)}. The results are handed to the callback as they complete.
+     *
+     * @param models         to generate content for. Accessed by one thread at a time, but not always the same one.
+     * @param maxConcurrency maximum number of requests in flight. Must be positive.
+     * @param callback       called once per model, with its result. Called by one thread at a time, but not always
+     *                       the same one, and must not block for long.
+     * @return a {@link CompletableFuture} which completes once the callback has received all results. It only fails
+     * if {@code models} or the callback throw an exception, after which no further requests are started.
+     */
+    public CompletableFuture<Void> generateContents(
+            Iterator<GenerativeModel> models,
+            int maxConcurrency,
+            Consumer<GenerationResult> callback
+    ) {
+        checkConcurrency(maxConcurrency);
+        return BulkGeneration.forEach(models, maxConcurrency, callback, this::generateContent);
+    }
+
+    private static void checkConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+    }
+
+    /**
+     * Get the endpoint of {@link #generateContent(GenerativeModel)}.
+     *
+     * @param modelName to generate content with. Must start with "models/"
+     * @return the uri, including the api key
+     */
+    URI generateContentUri(String modelName) {
+        return URI.create("%s/%s:generateContent?key=%s".formatted(urlPrefix, modelName, apiKey));
+    }
+
+    /**
+     * Get the endpoint of {@link #generateContentPublisher(GenerativeModel)}.
+     *
+     * @param modelName to generate content with. Must start with "models/"
+     * @return the uri, including the api key
+     */
+    URI streamGenerateContentUri(String modelName) {
+        return URI.create("%s/%s:streamGenerateContent?alt=sse&key=%s".formatted(urlPrefix, modelName, apiKey));
+    }
+
+    /**
+     * Prepare a model, whose configuration is used for many requests with different contents. Everything except the
+     * contents, e.g. the generation config with its response schema, the system instruction and the function
+     * declarations, is only serialized once, instead of with every request.
+     *
+     * @param template with the configuration of the requests. Its contents precede the contents of each request,
+     *                 e.g. examples, and are serialized once as well.
+     * @return a prepared model, which sends requests with this instance
+     */
+    public PreparedModel prepare(GenerativeModel template) {
+        return new PreparedModel(this, template);
+    }
+
+    /**
+     * Start a conversation, which keeps its history. Each message is sent with the history, and the replies of the
+     * model are added to the history. Every turn is only converted and serialized once, instead of with every
+     * subsequent message.
+     *
+     * @param model with the necessary information for Gemini API to generate content. Its contents are the initial
+     *              history of the conversation.
+     * @return a new chat session
+     */
+    public ChatSession startChat(GenerativeModel model) {
+        return new ChatSession(this, model);
+    }
+
+    private CompletableFuture<GeneratedContent> sendGenerateContent(GenerativeModel model) {
         return execute(() -> {
-            UUID uuid = UUID.randomUUID();
-            CompletableFuture<HttpResponse<String>> response = client.sendAsync(
-                    HttpRequest.newBuilder()
-                            .POST(HttpRequest.BodyPublishers.ofString(
-                                    jsonParser.toJson(convert(model))
-                            ))
-                            .uri(URI.create("%s/%s:generateContent?key=%s".formatted(urlPrefix, model.modelName(), apiKey)))
-                            .build(),
-                    HttpResponse.BodyHandlers.ofString()
+            var media = new JsonBodyPublisher.MediaPlaceholders();
+            return sendGenerateContent(
+                    model,
+                    JsonBodyPublisher.of(jsonParser, convert(model, media::placeholder), media),
+                    generateContentUri(model.modelName())
             );
-            return response
-                    .thenApply(HttpResponse::body)
-                    .thenApply(body -> parse(body, uuid));
+        });
+    }
+
+    /**
+     * @param body the serialized {@code model}
+     * @param uri  see {@link #generateContentUri(String)}
+     */
+    CompletableFuture<GeneratedContent> sendGenerateContent(GenerativeModel model, JsonBodyPublisher body, URI uri) {
+        return execute(() -> {
+            UUID uuid = UUID.randomUUID();
+            String cacheKey = cacheKey(model, body);
+            if (cacheKey != null) {
+                Optional<List<String>> cached = responseCache.get(cacheKey);
+                if (cached.isPresent()) {
+                    return CompletableFuture.completedFuture(merge(uuid, cached.get().stream()
+                            .map(chunk -> parse(chunk, uuid, RateLimiter.Permit.UNLIMITED))
+                            .toList()));
+                }
+            }
+            HttpRequest request = HttpRequest.newBuilder()
+                    .POST(body)
+                    .uri(uri)
+                    .build();
+            if (cacheKey == null) {
+                // the response is not cached, so it does not have to be decoded to a string
+                return rateLimiter.acquire(model.modelName(), RateLimiter.estimateTokens(model))
+                        .thenCompose(permit -> send(
+                                model.modelName(),
+                                isDeterministic(model),
+                                request,
+                                JsonBodySubscriber.handler(jsonParser, GenerateContentResponse.class)
+                        )
+                                .thenApply(HttpResponse::body)
+                                .thenApply(gcr -> toGeneratedContent(gcr, uuid, permit, () -> jsonParser.toJson(gcr))));
+            }
+            return rateLimiter.acquire(model.modelName(), RateLimiter.estimateTokens(model))
+                    .thenCompose(permit -> send(model.modelName(), isDeterministic(model), request, HttpResponse.BodyHandlers.ofString())
+                            .thenApply(HttpResponse::body)
+                            .thenApply(responseBody -> {
+                                GeneratedContent generatedContent = parse(responseBody, uuid, permit);
+                                responseCache.put(cacheKey, List.of(responseBody));
+                                return generatedContent;
+                            }));
         });
     }
 
@@ -276,6 +854,11 @@ public class GenAi implements AutoCloseable {
      * making it easier to compare and contrast embeddings.
      * For example, two texts that share a similar subject or sentiment should have similar embeddings,
      * which can be identified through mathematical comparison techniques such as cosine similarity.
+     * Identical calls, which are in flight at the same time, share a single request.
+     * <p>
+     * Any number of contents can be embedded: they are split into batches of up to 100 contents, which are sent
+     * concurrently, see {@link GenAiBuilder#embeddingParallelism(int)}. If any batch fails, the whole call fails.
+     * Contents which are found in the {@link GenAiBuilder#embeddingCache(EmbeddingCache)} are not sent.
      *
      * @param model                to use. Currently, only {@link ModelVariant#TEXT_EMBEDDING_004} is allowed.
      * @param taskType             Optional. Optional task type for which the embeddings will be used. For possible values, see {@link TaskType}
@@ -284,8 +867,9 @@ public class GenAi implements AutoCloseable {
      * @param outputDimensionality Optional. Optional reduced dimension for the output embedding.
      *                             If set, excessive values in the output embedding are truncated from the end.
      *                             Supported by newer models since 2024, and the earlier model (models/embedding-001) cannot specify this value.
-     * @return List of values
+     * @return List of values, in the order of the contents
      * @apiNote Only {@link swiss.ameri.gemini.api.Content.TextContent} are allowed.
+     * @see #embedContentBatches(GenerativeModel, String, String, Long) to keep the successful batches if some fail
      */
     public CompletableFuture<List<ContentEmbedding>> embedContents(
             GenerativeModel model,
@@ -293,10 +877,42 @@ public class GenAi implements AutoCloseable {
             String title,
             Long outputDimensionality
     ) {
-        return execute(() -> {
+        return embedContentBatches(model, taskType, title, outputDimensionality)
+                .thenApply(result -> {
+                    if (!result.failures().isEmpty()) {
+                        // fail with the original exception, as if there was only one batch
+                        throw new CompletionException(result.failures().get(0).cause());
+                    }
+                    return result.embeddings();
+                });
+    }
 
-            var requests = convertGenerationContents(model)
-                    .stream()
+    /**
+     * Embed any number of contents, like {@link #embedContents(GenerativeModel, String, String, Long)}, but report
+     * failed batches instead of failing the whole call. The contents are split into batches of up to 100 contents,
+     * which are sent concurrently, see {@link GenAiBuilder#embeddingParallelism(int)}.
+     * Contents which are found in the {@link GenAiBuilder#embeddingCache(EmbeddingCache)} are not sent, the batches
+     * only consist of the contents which are not cached.
+     *
+     * @param model                to use. Currently, only {@link ModelVariant#TEXT_EMBEDDING_004} is allowed.
+     * @param taskType             Optional. Optional task type for which the embeddings will be used. For possible values, see {@link TaskType}
+     * @param title                Optional. An optional title for the text. Only applicable when TaskType is RETRIEVAL_DOCUMENT.
+     *                             Note: Specifying a title for RETRIEVAL_DOCUMENT provides better quality embeddings for retrieval.
+     * @param outputDimensionality Optional. Optional reduced dimension for the output embedding.
+     *                             If set, excessive values in the output embedding are truncated from the end.
+     *                             Supported by newer models since 2024, and the earlier model (models/embedding-001) cannot specify this value.
+     * @return the embeddings of all successful batches, and the failure of each failed batch.
+     * The returned {@link CompletableFuture} only fails if the request could not be prepared.
+     * @apiNote Only {@link swiss.ameri.gemini.api.Content.TextContent} are allowed.
+     */
+    public CompletableFuture<EmbeddingBatchResult> embedContentBatches(
+            GenerativeModel model,
+            String taskType,
+            String title,
+            Long outputDimensionality
+    ) {
+        return execute(() -> {
+            var requests = convertGenerationContents(model, Content.MediaData::mediaBase64).stream()
                     .map(generationContent -> new EmbedContentRequest(
                             model.modelName(),
                             generationContent,
@@ -305,142 +921,401 @@ public class GenAi implements AutoCloseable {
                             outputDimensionality
                     ))
                     .toList();
-
-            var request = new BatchEmbedContentRequest(requests);
-
-            CompletableFuture<HttpResponse<String>> response = client.sendAsync(
-                    HttpRequest.newBuilder()
-                            .POST(HttpRequest.BodyPublishers.ofString(
-                                    jsonParser.toJson(request)
-                            ))
-                            .uri(URI.create("%s/%s:batchEmbedContents?key=%s".formatted(urlPrefix, model.modelName(), apiKey)))
-                            .build(),
-                    HttpResponse.BodyHandlers.ofString()
+            var embeddings = new ContentEmbedding[requests.size()];
+            // indices of the contents which must be sent, and their cache keys
+            int[] uncached = new int[requests.size()];
+            String[] cacheKeys = embeddingCache == null ? null : new String[requests.size()];
+            int uncachedCount = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                if (embeddingCache != null) {
+                    String cacheKey = Hashes.sha256(jsonParser.toJson(requests.get(i)));
+                    Optional<ContentEmbedding> cached = embeddingCache.get(cacheKey);
+                    if (cached.isPresent()) {
+                        embeddings[i] = cached.get();
+                        continue;
+                    }
+                    cacheKeys[uncachedCount] = cacheKey;
+                }
+                uncached[uncachedCount++] = i;
+            }
+            var batches = new EmbeddingBatches(
+                    model,
+                    requests,
+                    Arrays.copyOf(uncached, uncachedCount),
+                    cacheKeys,
+                    new AtomicInteger(),
+                    embeddings,
+                    new ConcurrentLinkedQueue<>()
             );
-            return response
-                    .thenApply(HttpResponse::body)
-                    .thenApply(body -> {
-                        try {
-                            BatchEmbedContentResponse becr = jsonParser.fromJson(body, BatchEmbedContentResponse.class);
-                            if (becr.embeddings() == null) {
-                                throw new GeminiException("No embeddings field in response:\n" + body);
+            // each worker sends one batch after the other, which limits the batches in flight to the parallelism
+            var workers = new CompletableFuture<?>[Math.min(embeddingParallelism, batches.batchCount())];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = embedBatches(batches);
+            }
+            return CompletableFuture.allOf(workers)
+                    .thenApply(ignored -> new EmbeddingBatchResult(
+                            Collections.unmodifiableList(Arrays.asList(embeddings)),
+                            batches.failures().stream()
+                                    .sorted(Comparator.comparingInt(EmbeddingBatchResult.BatchFailure::fromIndex))
+                                    .toList()
+                    ));
+        });
+    }
+
+    private CompletableFuture<Void> embedBatches(EmbeddingBatches batches) {
+        int batch = batches.nextBatch().getAndIncrement();
+        if (batch >= batches.batchCount()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int fromIndex = batch * MAX_EMBEDDING_BATCH_SIZE;
+        int toIndex = Math.min(batches.uncached().length, fromIndex + MAX_EMBEDDING_BATCH_SIZE);
+        List<EmbedContentRequest> requests = new ArrayList<>(toIndex - fromIndex);
+        long estimatedTokens = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            int index = batches.uncached()[i];
+            requests.add(batches.requests().get(index));
+            estimatedTokens += RateLimiter.estimateTokens(batches.model().contents().get(index));
+        }
+        String modelName = batches.model().modelName();
+        CompletableFuture<List<ContentEmbedding>> response;
+        try {
+            response = embedBatch(modelName, new BatchEmbedContentRequest(requests), estimatedTokens);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response
+                .handle((batchEmbeddings, throwable) -> {
+                    if (throwable == null && batchEmbeddings.size() != requests.size()) {
+                        throwable = new GeminiException("Expected %d embeddings, but got %d"
+                                .formatted(requests.size(), batchEmbeddings.size()));
+                    }
+                    if (throwable != null) {
+                        batches.failures().add(new EmbeddingBatchResult.BatchFailure(
+                                batches.uncached()[fromIndex],
+                                batches.uncached()[toIndex - 1] + 1,
+                                Futures.unwrap(throwable)
+                        ));
+                    } else {
+                        for (int i = 0; i < batchEmbeddings.size(); i++) {
+                            batches.embeddings()[batches.uncached()[fromIndex + i]] = batchEmbeddings.get(i);
+                            if (batches.cacheKeys() != null) {
+                                embeddingCache.put(batches.cacheKeys()[fromIndex + i], batchEmbeddings.get(i));
                             }
-                            return becr
-                                    .embeddings();
-                        } catch (Exception e) {
-                            throw new GeminiException("Unexpected body:\n" + body, e);
                         }
-                    });
+                    }
+                    return null;
+                })
+                .thenCompose(ignored -> embedBatches(batches));
+    }
 
-        });
+    private CompletableFuture<List<ContentEmbedding>> embedBatch(
+            String modelName,
+            BatchEmbedContentRequest request,
+            long estimatedTokens
+    ) {
+        var body = JsonBodyPublisher.of(jsonParser, request);
+
+        HttpRequest httpRequest = HttpRequest.newBuilder()
+                .POST(body)
+                .uri(URI.create("%s/%s:batchEmbedContents?key=%s".formatted(urlPrefix, modelName, apiKey)))
+                .build();
+        // embeddings have no usage metadata, so the estimation is never corrected.
+        // the response is decoded from its bytes, it is only decoded to a string for an error message
+        return requestCoalescer.execute(httpRequest.uri().getPath(), body.sha256(""), () -> rateLimiter
+                .acquire(modelName, estimatedTokens)
+                .thenCompose(permit -> send(modelName, true, httpRequest, HttpResponse.BodyHandlers.ofByteArray()))
+                .thenApply(HttpResponse::body)
+                .thenApply(responseBody -> {
+                    List<ContentEmbedding> embeddings;
+                    try {
+                        embeddings = EmbeddingDecoder.decode(responseBody);
+                    } catch (GeminiException e) {
+                        // already describes the unexpected part of the body
+                        throw e;
+                    } catch (RuntimeException e) {
+                        throw new GeminiException("Unexpected body:\n"
+                                + new String(responseBody, StandardCharsets.UTF_8), e);
+                    }
+                    if (embeddings == null) {
+                        throw new GeminiException("No embeddings field in response:\n"
+                                + new String(responseBody, StandardCharsets.UTF_8));
+                    }
+                    return embeddings;
+                }));
     }
 
-    private static GenerateContentRequest convert(GenerativeModel model) {
-        List<GenerationContent> generationContents = convertGenerationContents(model);
+    /**
+     * @param mediaData maps media to the value of its {@link InlineData#data()}, e.g. a placeholder
+     */
+    private static GenerateContentRequest convert(GenerativeModel model, Function<Content.MediaData, String> mediaData) {
+        return convert(model, convertGenerationContents(model, mediaData));
+    }
+
+    private static GenerateContentRequest convert(GenerativeModel model, List<GenerationContent> generationContents) {
         List<Tool> tools = new ArrayList<>();
         if (!model.functionDeclarations().isEmpty()) {
             tools.add(new Tool(model.functionDeclarations()));
         }
+        // the system instruction and tools are part of a cached content, and must not be sent again
+        boolean cached = model.cachedContent() != null;
         return new GenerateContentRequest(
                 model.modelName(),
                 generationContents,
                 model.safetySettings(),
                 model.generationConfig(),
-                model.systemInstruction().isEmpty() ? null :
+                cached || model.systemInstruction().isEmpty() ? null :
                         new SystemInstruction(
                                 model.systemInstruction().stream()
                                         .map(SystemInstructionPart::new)
                                         .toList()
                         ),
-                tools.isEmpty() ? null :
-                        List.of(new Tool(model.functionDeclarations()))
+                cached || tools.isEmpty() ? null :
+                        List.of(new Tool(model.functionDeclarations())),
+                model.cachedContent()
         );
     }
 
-    private static List<GenerationContent> convertGenerationContents(GenerativeModel model) {
-        return model.contents().stream()
-                .map(content -> {
-                    // change to "switch" over sealed type with jdk 21
-                    if (content instanceof Content.TextContent textContent) {
-                        return new GenerationContent(
-                                textContent.role(),
-                                List.of(
-                                        new GenerationPart(
-                                                textContent.text(),
-                                                null,
-                                                null,
-                                                null
-                                        )
-                                )
-                        );
-                    } else if (content instanceof Content.MediaContent imageContent) {
-                        return new GenerationContent(
-                                imageContent.role(),
-                                List.of(
-                                        new GenerationPart(
-                                                null,
-                                                new InlineData(
-                                                        imageContent.media().mimeType(),
-                                                        imageContent.media().mediaBase64()
-                                                ),
-                                                null,
-                                                null
-                                        )
-                                )
-                        );
-                    } else if (content instanceof Content.TextAndMediaContent textAndImagesContent) {
-                        return new GenerationContent(
-                                textAndImagesContent.role(),
-                                Stream.concat(
-                                        Stream.of(
-                                                new GenerationPart(
-                                                        textAndImagesContent.text(),
-                                                        null,
-                                                        null,
-                                                        null
-                                                )
-                                        ),
-                                        textAndImagesContent.media().stream()
-                                                .map(imageData -> new GenerationPart(
-                                                        null,
-                                                        new InlineData(
-                                                                imageData.mimeType(),
-                                                                imageData.mediaBase64()
-                                                        ),
-                                                        null,
-                                                        null
-                                                ))
-                                ).toList()
-                        );
-                    } else if (content instanceof Content.FunctionCallContent functionCallContent) {
-                        return new GenerationContent(
-                                functionCallContent.role(),
-                                List.of(
-                                        new GenerationPart(
-                                                null,
-                                                null,
-                                                functionCallContent.functionCall(),
-                                                null
-                                        )
-                                )
-                        );
-                    } else if (content instanceof Content.FunctionResponseContent functionResponseContent) {
-                        return new GenerationContent(
-                                functionResponseContent.role(),
-                                List.of(
-                                        new GenerationPart(
-                                                null,
-                                                null,
-                                                null,
-                                                functionResponseContent.functionResponse()
-                                        )
-                                )
-                        );
-                    } else {
-                        throw new GeminiException("Unexpected content:\n" + content);
+    private static List<GenerationContent> convertGenerationContents(
+            GenerativeModel model,
+            Function<Content.MediaData, String> mediaData
+    ) {
+        return model.contents().stream()
+                .map(content -> convertGenerationContent(content, mediaData))
+                .toList();
+    }
+
+    private static GenerationContent convertGenerationContent(
+            Content content,
+            Function<Content.MediaData, String> mediaData
+    ) {
+        // change to "switch" over sealed type with jdk 21
+        if (content instanceof Content.TextContent textContent) {
+            return new GenerationContent(
+                    textContent.role(),
+                    List.of(
+                            new GenerationPart(
+                                    textContent.text(),
+                                    null,
+                                    null,
+                                    null,
+                                    null
+                            )
+                    )
+            );
+        } else if (content instanceof Content.MediaContent imageContent) {
+            return new GenerationContent(
+                    imageContent.role(),
+                    List.of(
+                            mediaPart(imageContent.media(), mediaData)
+                    )
+            );
+        } else if (content instanceof Content.TextAndMediaContent textAndImagesContent) {
+            return new GenerationContent(
+                    textAndImagesContent.role(),
+                    Stream.concat(
+                            Stream.of(
+                                    new GenerationPart(
+                                            textAndImagesContent.text(),
+                                            null,
+                                            null,
+                                            null,
+                                            null
+                                    )
+                            ),
+                            textAndImagesContent.media().stream()
+                                    .map(imageData -> mediaPart(imageData, mediaData))
+                    ).toList()
+            );
+        } else if (content instanceof Content.FunctionCallContent functionCallContent) {
+            return new GenerationContent(
+                    functionCallContent.role(),
+                    List.of(
+                            new GenerationPart(
+                                    null,
+                                    null,
+                                    functionCallContent.functionCall(),
+                                    null,
+                                    null
+                            )
+                    )
+            );
+        } else if (content instanceof Content.FunctionResponseContent functionResponseContent) {
+            return new GenerationContent(
+                    functionResponseContent.role(),
+                    List.of(
+                            new GenerationPart(
+                                    null,
+                                    null,
+                                    null,
+                                    functionResponseContent.functionResponse(),
+                                    null
+                            )
+                    )
+            );
+        } else {
+            throw new GeminiException("Unexpected content:\n" + content);
+        }
+    }
+
+    /**
+     * Media which has been uploaded is referenced by its uri, other media is sent inline.
+     */
+    private static GenerationPart mediaPart(Content.MediaData media, Function<Content.MediaData, String> mediaData) {
+        if (media.fileUri() != null) {
+            return new GenerationPart(null, null, null, null, new FileData(media.mimeType(), media.fileUri()));
+        }
+        return new GenerationPart(null, new InlineData(media.mimeType(), mediaData.apply(media)), null, null, null);
+    }
+
+    /**
+     * Get the key of a request in the {@link ResponseCache}.
+     *
+     * @return the key, or {@code null} if the response must not be cached
+     */
+    private String cacheKey(GenerativeModel model, JsonBodyPublisher body) {
+        if (responseCache == null || !isDeterministic(model)) {
+            return null;
+        }
+        return body.sha256(model.modelName() + "\n");
+    }
+
+    /**
+     * Serialize the parts of a generateContent request, which do not depend on the contents, e.g. the system
+     * instruction, once for all requests of a {@link ChatSession}.
+     *
+     * @param model whose contents are ignored
+     * @return the serialized request, into which the serialized contents are inserted
+     * @see #serializeContent(Content)
+     */
+    JsonBodyPublisher.Frame serializeFrame(GenerativeModel model) {
+        String placeholder = "gemini-contents-" + UUID.randomUUID();
+        GenerateContentRequest request = convert(model, List.of());
+        return JsonBodyPublisher.frame(jsonParser, new GenerateContentFrame(
+                request.model(),
+                placeholder,
+                request.safetySettings(),
+                request.generationConfig(),
+                request.systemInstruction(),
+                request.tools(),
+                request.cachedContent()
+        ), placeholder);
+    }
+
+    /**
+     * Serialize a single content of a generateContent request, see {@link #serializeFrame(GenerativeModel)}.
+     *
+     * @param content to serialize. Its media is only read while a request is sent.
+     * @return the serialized content
+     */
+    JsonBodyPublisher serializeContent(Content content) {
+        var media = new JsonBodyPublisher.MediaPlaceholders();
+        return JsonBodyPublisher.of(jsonParser, convertGenerationContent(content, media::placeholder), media);
+    }
+
+    /**
+     * Upload the large media of a single content, see {@link GenAiBuilder#mediaUploadThreshold(long)}.
+     *
+     * @param modelName the content is sent to
+     * @param content   to upload the media of
+     * @return the content, in which large media references the uploaded files
+     */
+    CompletableFuture<Content> withUploadedMedia(String modelName, Content content) {
+        var model = new GenerativeModel(modelName, List.of(content), List.of(), null, List.of(), List.of());
+        return withUploadedMedia(model, uploaded -> CompletableFuture.completedFuture(uploaded.contents().get(0)));
+    }
+
+    /**
+     * Merge the chunks of a stream into a single response.
+     */
+    static GeneratedContent merge(UUID uuid, List<GeneratedContent> chunks) {
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+        var text = new StringBuilder();
+        FunctionCall functionCall = null;
+        String finishReason = null;
+        for (GeneratedContent chunk : chunks) {
+            if (chunk.text() != null) {
+                text.append(chunk.text());
+            }
+            if (chunk.functionCall() != null) {
+                functionCall = chunk.functionCall();
+            }
+            if (chunk.finishReason() != null) {
+                finishReason = chunk.finishReason();
+            }
+        }
+        return new GeneratedContent(uuid, text.toString(), functionCall, finishReason);
+    }
+
+    /**
+     * Generation is only idempotent, and may therefore be hedged, if the output is not randomized.
+     */
+    private static boolean isDeterministic(GenerativeModel model) {
+        return model.generationConfig() != null
+                && model.generationConfig().temperature() != null
+                && model.generationConfig().temperature() == 0.0;
+    }
+
+    /**
+     * Send a request with a model, in which large media has been uploaded, see
+     * {@link GenAiBuilder#mediaUploadThreshold(long)}. Models without large media are sent immediately.
+     */
+    private <T> CompletableFuture<T> withUploadedMedia(
+            GenerativeModel model,
+            Function<GenerativeModel, CompletableFuture<T>> request
+    ) {
+        if (mediaUploads == null || !mediaUploads.hasLargeMedia(model)) {
+            return request.apply(model);
+        }
+        return mediaUploads.upload(model).thenCompose(request);
+    }
+
+    /**
+     * Send a request which does not belong to a model, see {@link #send(String, boolean, HttpRequest, HttpResponse.BodyHandler)}.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendUnlimited(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return send(null, false, request, bodyHandler);
+    }
+
+    /**
+     * Send a request according to the {@link RetryPolicy}, the {@link ConcurrencyLimitPolicy} and the
+     * {@link HedgingPolicy}.
+     * Responses with an unexpected status code fail with a {@link GeminiException} containing the status code,
+     * the body handler is only used for successful responses.
+     *
+     * @param modelName  the request belongs to, or {@code null}
+     * @param idempotent whether the request may be hedged
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(
+            String modelName,
+            boolean idempotent,
+            HttpRequest request,
+            HttpResponse.BodyHandler<T> bodyHandler
+    ) {
+        HttpResponse.BodyHandler<T> checkedBodyHandler = responseInfo -> {
+            if (responseInfo.statusCode() == 200) {
+                return bodyHandler.apply(responseInfo);
+            }
+            // in case of an error, we don't use the body handler, but wait for the whole response, because
+            // we don't want to parse it and potentially cause more errors
+            return HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+                    body -> {
+                        throw new UnexpectedResponseException(responseInfo.statusCode(), responseInfo.headers(), body);
                     }
-                })
-                .toList();
+            );
+        };
+        // a hedge shares the concurrency slot of its request, since only one of them is kept
+        return retrier.execute(() -> concurrencyLimiter.execute(
+                modelName,
+                request.uri().getPath(),
+                () -> hedger.execute(
+                        request.uri().getPath(),
+                        idempotent,
+                        () -> client.sendAsync(request, checkedBodyHandler)
+                )
+        ));
     }
 
     private <T> T execute(ThrowingSupplier<T> supplier) {
@@ -454,12 +1329,263 @@ public class GenAi implements AutoCloseable {
         }
     }
 
+    /**
+     * Wait for a future, and rethrow its failure like the blocking methods of this class do.
+     *
+     * @param future to wait for
+     * @return the result of the future
+     */
+    <T> T join(CompletableFuture<T> future) {
+        return execute(() -> await(future));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = Futures.unwrap(e);
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new GeminiException("Request failed.", cause);
+        }
+    }
+
     /**
      * Clears the internal state.
      */
     @Override
     public void close() {
-        responseById.clear();
+        responseMetadataStore.clear();
+    }
+
+    /**
+     * A builder for {@link GenAi}. Currently, does not validate the fields when building. Not thread-safe.
+     */
+    public static class GenAiBuilder {
+        private String apiKey;
+        private String baseUrl = DEFAULT_BASE_URL;
+        private JsonParser jsonParser;
+        private HttpClient client;
+        private ResponseMetadataStore responseMetadataStore = ResponseMetadataStore.bounded(
+                DEFAULT_METADATA_MAXIMUM_SIZE,
+                DEFAULT_METADATA_TIME_TO_LIVE
+        );
+        private RetryPolicy retryPolicy = RetryPolicy.none();
+        private final Map<String, RateLimiter.RateLimit> rateLimits = new HashMap<>();
+        private ConcurrencyLimitPolicy concurrencyLimitPolicy;
+        private HedgingPolicy hedgingPolicy;
+        private ResponseCache responseCache;
+        private EmbeddingCache embeddingCache;
+        private int embeddingParallelism = DEFAULT_EMBEDDING_PARALLELISM;
+        private long mediaUploadThreshold = -1;
+
+        private GenAiBuilder() {
+        }
+
+        /**
+         * Set the api key.
+         *
+         * @param apiKey to be used for all communications with Gemini API
+         * @return this
+         */
+        public GenAiBuilder apiKey(String apiKey) {
+            this.apiKey = apiKey;
+            return this;
+        }
+
+        /**
+         * Set the base url of Gemini API, e.g. of a proxy or of a local stand-in server for tests.
+         * Defaults to {@code https://generativelanguage.googleapis.com/v1beta}.
+         *
+         * @param baseUrl including the version, without a trailing slash
+         * @return this
+         */
+        public GenAiBuilder baseUrl(String baseUrl) {
+            this.baseUrl = Objects.requireNonNull(baseUrl, "baseUrl");
+            return this;
+        }
+
+        /**
+         * Set the json parser.
+         *
+         * @param jsonParser used to (de-)serialize JSON objects
+         * @return this
+         */
+        public GenAiBuilder jsonParser(JsonParser jsonParser) {
+            this.jsonParser = jsonParser;
+            return this;
+        }
+
+        /**
+         * Set a custom http client. If not set, a default {@link HttpClient} is created.
+         *
+         * @param client for communication with Gemini API
+         * @return this
+         */
+        public GenAiBuilder client(HttpClient client) {
+            this.client = client;
+            return this;
+        }
+
+        /**
+         * Set the store for the metadata of generated content.
+         * Defaults to a {@link ResponseMetadataStore#bounded(int, Duration) bounded} store of
+         * 10000 entries, which are kept for one hour.
+         *
+         * @param responseMetadataStore to be used. Use {@link ResponseMetadataStore#noTracking()} to disable tracking.
+         * @return this
+         */
+        public GenAiBuilder responseMetadataStore(ResponseMetadataStore responseMetadataStore) {
+            this.responseMetadataStore = Objects.requireNonNull(responseMetadataStore, "responseMetadataStore");
+            return this;
+        }
+
+        /**
+         * Set the policy for retrying requests which failed with a transient error. Applies to all requests,
+         * the asynchronous methods retry without blocking a thread. Defaults to {@link RetryPolicy#none()}.
+         *
+         * @param retryPolicy to be used
+         * @return this
+         */
+        public GenAiBuilder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = Objects.requireNonNull(retryPolicy, "retryPolicy");
+            return this;
+        }
+
+        /**
+         * Limit the requests and tokens per minute sent to a model, to stay within its quota instead of relying on
+         * Gemini API to respond with 429. Requests above the limit are delayed without blocking a thread.
+         * Only {@link #generateContent(GenerativeModel)}, {@link #generateContentPublisher(GenerativeModel)},
+         * {@link #countTokens(GenerativeModel)} and {@link #embedContents(GenerativeModel, String, String, Long)}
+         * are delayed. The blocking {@link #generateContentStream(GenerativeModel)} is charged to the limit, so that
+         * it delays the other requests, but is sent right away instead of parking the calling thread.
+         * Retries of a request are not limited again.
+         * <p>
+         * Input tokens are estimated before the request is sent, and corrected once the {@link UsageMetadata}
+         * of the response is known.
+         *
+         * @param modelName         to limit. Must start with "models/"
+         * @param requestsPerMinute maximum number of requests per minute
+         * @param tokensPerMinute   maximum number of tokens per minute, or 0 to only limit the requests
+         * @return this
+         */
+        public GenAiBuilder rateLimit(String modelName, int requestsPerMinute, long tokensPerMinute) {
+            this.rateLimits.put(modelName, new RateLimiter.RateLimit(requestsPerMinute, tokensPerMinute));
+            return this;
+        }
+
+        /**
+         * Limit the requests and tokens per minute sent to a model.
+         *
+         * @param modelVariant      to limit
+         * @param requestsPerMinute maximum number of requests per minute
+         * @param tokensPerMinute   maximum number of tokens per minute, or 0 to only limit the requests
+         * @return this
+         * @see #rateLimit(String, int, long)
+         */
+        public GenAiBuilder rateLimit(ModelVariant modelVariant, int requestsPerMinute, long tokensPerMinute) {
+            return rateLimit(modelVariant.variant(), requestsPerMinute, tokensPerMinute);
+        }
+
+        /**
+         * Adapt the number of concurrent requests per model to overload responses, and optionally to the latency.
+         * By default, concurrency is not limited.
+         *
+         * @param concurrencyLimitPolicy to apply to each model, or {@code null} to not limit concurrency
+         * @return this
+         * @see #concurrencyLimit(String)
+         */
+        public GenAiBuilder concurrencyLimitPolicy(ConcurrencyLimitPolicy concurrencyLimitPolicy) {
+            this.concurrencyLimitPolicy = concurrencyLimitPolicy;
+            return this;
+        }
+
+        /**
+         * Send a second request if an idempotent request is slower than usual, and use whichever response
+         * arrives first. Reduces the tail latency at the cost of some additional requests.
+         * By default, requests are not hedged.
+         *
+         * @param hedgingPolicy to apply, or {@code null} to not hedge requests
+         * @return this
+         */
+        public GenAiBuilder hedgingPolicy(HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
+        /**
+         * Cache the responses of deterministic generation, i.e. with a {@link GenerationConfig#temperature()} of 0.
+         * Cached responses are returned without sending a request, and without being rate limited.
+         * By default, responses are not cached.
+         *
+         * @param responseCache to use, e.g. {@link ResponseCache#inMemory(int)}, or {@code null} to not cache
+         * @return this
+         */
+        public GenAiBuilder responseCache(ResponseCache responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        /**
+         * Cache embeddings, so that contents which were already embedded with the same model, task type, title and
+         * output dimensionality are not sent again. The cache is not closed by {@link GenAi#close()}.
+         * By default, embeddings are not cached.
+         *
+         * @param embeddingCache to use, e.g. {@link EmbeddingCache#persistent(java.nio.file.Path)}, or {@code null}
+         *                       to not cache
+         * @return this
+         */
+        public GenAiBuilder embeddingCache(EmbeddingCache embeddingCache) {
+            this.embeddingCache = embeddingCache;
+            return this;
+        }
+
+        /**
+         * Set the number of batches of a single {@link #embedContents(GenerativeModel, String, String, Long)} call,
+         * which are sent concurrently. Defaults to 4.
+         *
+         * @param embeddingParallelism to set. Must be positive.
+         * @return this
+         */
+        public GenAiBuilder embeddingParallelism(int embeddingParallelism) {
+            if (embeddingParallelism < 1) {
+                throw new IllegalArgumentException("embeddingParallelism must be positive: " + embeddingParallelism);
+            }
+            this.embeddingParallelism = embeddingParallelism;
+            return this;
+        }
+
+        /**
+         * Upload inline media from the given size on to the Files API, and reference the uploaded file in requests
+         * instead of sending the media inline. Gemini API limits the size of a request to 20 MB, and media which is
+         * sent repeatedly, e.g. in every turn of a chat, is only uploaded once. Uploads are reused until shortly
+         * before the file expires, and requests wait until the uploaded file has been processed.
+         * Disabled by default.
+         *
+         * @param mediaUploadThreshold size of the decoded media in bytes. Must not be negative.
+         * @return this
+         * @see #uploadFile(Content.MediaData, String) to upload media explicitly
+         */
+        public GenAiBuilder mediaUploadThreshold(long mediaUploadThreshold) {
+            if (mediaUploadThreshold < 0) {
+                throw new IllegalArgumentException("mediaUploadThreshold must not be negative: " + mediaUploadThreshold);
+            }
+            this.mediaUploadThreshold = mediaUploadThreshold;
+            return this;
+        }
+
+        /**
+         * Build the {@link GenAi} based on this builder.
+         *
+         * @return a new {@link GenAi}
+         */
+        public GenAi build() {
+            return new GenAi(this);
+        }
     }
 
     /**
@@ -481,15 +1607,28 @@ public class GenAi implements AutoCloseable {
     /**
      * Usage metadata for a given request.
      *
-     * @param promptTokenCount     Number of tokens in the prompt.
-     * @param candidatesTokenCount Total number of tokens for the generated response.
-     * @param totalTokenCount      Total token count for the generation request (prompt + candidates).
+     * @param promptTokenCount        Number of tokens in the prompt.
+     * @param candidatesTokenCount    Total number of tokens for the generated response.
+     * @param totalTokenCount         Total token count for the generation request (prompt + candidates).
+     * @param cachedContentTokenCount Number of tokens of the prompt, which are read from a {@link CachedContent}.
      */
     public record UsageMetadata(
             int promptTokenCount,
             int candidatesTokenCount,
-            int totalTokenCount
+            int totalTokenCount,
+            int cachedContentTokenCount
     ) {
+
+        /**
+         * Create usage metadata of a request without a cached content.
+         *
+         * @param promptTokenCount     Number of tokens in the prompt.
+         * @param candidatesTokenCount Total number of tokens for the generated response.
+         * @param totalTokenCount      Total token count for the generation request (prompt + candidates).
+         */
+        public UsageMetadata(int promptTokenCount, int candidatesTokenCount, int totalTokenCount) {
+            this(promptTokenCount, candidatesTokenCount, totalTokenCount, 0);
+        }
     }
 
     /**
@@ -531,13 +1670,177 @@ public class GenAi implements AutoCloseable {
     }
 
     /**
-     * A list of floats representing an embedding.
+     * Result of a single model of {@link #generateContents(Stream, int, boolean)}.
+     *
+     * @param index   of the model, in the order in which the models were given
+     * @param model   the content was generated for
+     * @param content the generated content, or {@code null} if the request failed
+     * @param error   the failure of the request, or {@code null} if it was successful
+     */
+    public record GenerationResult(
+            long index,
+            GenerativeModel model,
+            GeneratedContent content,
+            Throwable error
+    ) {
+
+        /**
+         * Check whether the request was successful.
+         *
+         * @return {@code true} if content was generated
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Result of {@link #embedContentBatches(GenerativeModel, String, String, Long)}.
+     *
+     * @param embeddings one per content, in the order of the contents. {@code null} for contents of failed batches.
+     * @param failures   of the failed batches, ordered by {@link BatchFailure#fromIndex()}
+     */
+    public record EmbeddingBatchResult(
+            List<ContentEmbedding> embeddings,
+            List<BatchFailure> failures
+    ) {
+
+        /**
+         * Check whether all batches were successful.
+         *
+         * @return {@code true} if there are no failures
+         */
+        public boolean isComplete() {
+            return failures.isEmpty();
+        }
+
+        /**
+         * A failed batch of contents. With an {@link GenAiBuilder#embeddingCache(EmbeddingCache)}, a batch only
+         * consists of the contents which were not cached, so that cached contents within the range still have their
+         * embeddings.
+         *
+         * @param fromIndex index of the first content of the batch, inclusive
+         * @param toIndex   index of the last content of the batch, exclusive
+         * @param cause     of the failure
+         */
+        public record BatchFailure(
+                int fromIndex,
+                int toIndex,
+                Throwable cause
+        ) {
+        }
+    }
+
+    /**
+     * A list of floats representing an embedding, backed by a primitive {@code float[]}.
+     * Embeddings are decoded directly into the array, and {@link #values()} is only a view of it.
      *
-     * @param values A list of floats representing an embedding.
+     * @param vector the values of the embedding. Not copied, must not be modified.
      */
     public record ContentEmbedding(
-            List<Double> values
+            float[] vector
     ) {
+
+        /**
+         * Validates the vector.
+         */
+        public ContentEmbedding {
+            Objects.requireNonNull(vector, "vector");
+        }
+
+        /**
+         * Create an embedding from boxed values, for compatibility. The values are copied.
+         *
+         * @param values A list of floats representing an embedding.
+         */
+        public ContentEmbedding(List<Double> values) {
+            this(toFloats(values));
+        }
+
+        /**
+         * Create an embedding from a buffer. The remaining values are copied, the position of the buffer is not
+         * changed.
+         *
+         * @param buffer with the values of the embedding
+         */
+        public ContentEmbedding(FloatBuffer buffer) {
+            this(toFloats(buffer));
+        }
+
+        /**
+         * Get the values as a list.
+         *
+         * @return an unmodifiable view of {@link #vector()}, which boxes each value when it is accessed
+         */
+        public List<Double> values() {
+            return new DoubleView(vector);
+        }
+
+        /**
+         * Get the values as a buffer, without copying them.
+         *
+         * @return a read-only buffer of {@link #vector()}
+         */
+        public FloatBuffer asFloatBuffer() {
+            return FloatBuffer.wrap(vector).asReadOnlyBuffer();
+        }
+
+        /**
+         * Get the number of values.
+         *
+         * @return the dimension of the embedding
+         */
+        public int dimension() {
+            return vector.length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ContentEmbedding other && Arrays.equals(vector, other.vector);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(vector);
+        }
+
+        @Override
+        public String toString() {
+            return "ContentEmbedding[vector=" + Arrays.toString(vector) + "]";
+        }
+
+        private static float[] toFloats(List<Double> values) {
+            float[] vector = new float[values.size()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = values.get(i).floatValue();
+            }
+            return vector;
+        }
+
+        private static float[] toFloats(FloatBuffer buffer) {
+            float[] vector = new float[buffer.remaining()];
+            buffer.duplicate().get(vector);
+            return vector;
+        }
+
+        private static final class DoubleView extends AbstractList<Double> implements RandomAccess {
+
+            private final float[] vector;
+
+            private DoubleView(float[] vector) {
+                this.vector = vector;
+            }
+
+            @Override
+            public Double get(int index) {
+                return (double) vector[index];
+            }
+
+            @Override
+            public int size() {
+                return vector.length;
+            }
+        }
     }
 
     /**
@@ -593,11 +1896,44 @@ public class GenAi implements AutoCloseable {
     ) {
     }
 
-    private GeneratedContent parse(String body, UUID uuid) {
+    private GeneratedContent parse(ByteBuffer body, UUID uuid, RateLimiter.Permit permit) {
+        GenerateContentResponse gcr;
+        try {
+            gcr = jsonParser.fromJson(body.duplicate(), GenerateContentResponse.class);
+        } catch (Exception e) {
+            throw new GeminiException("Unexpected body:\n" + StandardCharsets.UTF_8.decode(body), e);
+        }
+        return toGeneratedContent(gcr, uuid, permit, () -> StandardCharsets.UTF_8.decode(body).toString());
+    }
+
+    private GeneratedContent parse(String body, UUID uuid, RateLimiter.Permit permit) {
+        GenerateContentResponse gcr;
+        try {
+            gcr = jsonParser.fromJson(body, GenerateContentResponse.class);
+        } catch (Exception e) {
+            throw new GeminiException("Unexpected body:\n" + body, e);
+        }
+        return toGeneratedContent(gcr, uuid, permit, () -> body);
+    }
+
+    private GeneratedContent toGeneratedContent(
+            GenerateContentResponse gcr,
+            UUID uuid,
+            RateLimiter.Permit permit,
+            Supplier<String> body
+    ) {
         try {
-            var gcr = jsonParser.fromJson(body, GenerateContentResponse.class);
+            permit.usage(gcr.usageMetadata());
             // each element can just replace the previous one
-            this.responseById.put(uuid, gcr);
+            responseMetadataStore.put(uuid, new ResponseMetadataStore.ResponseMetadata(
+                    gcr.usageMetadata(),
+                    gcr.candidates().stream()
+                            // when streaming, we sometimes don't get a safety rating... (with 1.5 pro)
+                            .map(ResponseCandidate::safetyRatings)
+                            .filter(Objects::nonNull)
+                            .flatMap(Collection::stream)
+                            .toList()
+            ));
             // we assume we always get a candidate. Otherwise, there is probably something wrong with the input
             var candidate = gcr.candidates().get(0);
             if (candidate.content() == null) {
@@ -606,7 +1942,35 @@ public class GenAi implements AutoCloseable {
             GenerationPart firstPart = candidate.content().parts().get(0);
             return new GeneratedContent(uuid, firstPart.text(), firstPart.functionCall(), candidate.finishReason());
         } catch (Exception e) {
-            throw new GeminiException("Unexpected body:\n" + body, e);
+            throw new GeminiException("Unexpected body:\n" + body.get(), e);
+        }
+    }
+
+    /**
+     * State of a single {@link #embedContentBatches(GenerativeModel, String, String, Long)} call, shared by its
+     * workers.
+     *
+     * @param model      of the call
+     * @param requests   one per content
+     * @param uncached   indices of the contents which must be sent, in ascending order
+     * @param cacheKeys  of the contents which must be sent, in the order of {@code uncached}, or {@code null} if
+     *                   there is no embedding cache
+     * @param nextBatch  index of the next batch of {@code uncached} to send
+     * @param embeddings one per content, filled in as the batches complete
+     * @param failures   of the failed batches
+     */
+    private record EmbeddingBatches(
+            GenerativeModel model,
+            List<EmbedContentRequest> requests,
+            int[] uncached,
+            String[] cacheKeys,
+            AtomicInteger nextBatch,
+            ContentEmbedding[] embeddings,
+            Queue<EmbeddingBatchResult.BatchFailure> failures
+    ) {
+
+        int batchCount() {
+            return (uncached.length + MAX_EMBEDDING_BATCH_SIZE - 1) / MAX_EMBEDDING_BATCH_SIZE;
         }
     }
 
@@ -624,11 +1988,6 @@ public class GenAi implements AutoCloseable {
     ) {
     }
 
-    private record BatchEmbedContentResponse(
-            List<ContentEmbedding> embeddings
-    ) {
-    }
-
     private record CountTokenRequest(
             GenerateContentRequest generateContentRequest
     ) {
@@ -661,7 +2020,52 @@ public class GenAi implements AutoCloseable {
             List<SafetySetting> safetySettings,
             GenerationConfig generationConfig,
             SystemInstruction systemInstruction,
-            List<Tool> tools
+            List<Tool> tools,
+            String cachedContent
+    ) {
+    }
+
+    /**
+     * A {@link GenerateContentRequest}, whose contents are replaced by a placeholder.
+     */
+    private record GenerateContentFrame(
+            String model,
+            String contents,
+            List<SafetySetting> safetySettings,
+            GenerationConfig generationConfig,
+            SystemInstruction systemInstruction,
+            List<Tool> tools,
+            String cachedContent
+    ) {
+    }
+
+    /**
+     * See <a href="https://ai.google.dev/api/caching#CachedContent">CachedContent</a>
+     */
+    private record CreateCachedContentRequest(
+            String model,
+            List<GenerationContent> contents,
+            SystemInstruction systemInstruction,
+            List<Tool> tools,
+            String ttl,
+            String displayName
+    ) {
+    }
+
+    private record UpdateCachedContentRequest(
+            String ttl
+    ) {
+    }
+
+    private record CachedContentsResponse(
+            List<CachedContent> cachedContents,
+            String nextPageToken
+    ) {
+    }
+
+    private record FilesResponse(
+            List<UploadedFile> files,
+            String nextPageToken
     ) {
     }
 
@@ -698,7 +2102,8 @@ public class GenAi implements AutoCloseable {
             String text,
             InlineData inline_data,
             FunctionCall functionCall,
-            FunctionResponse functionResponse
+            FunctionResponse functionResponse,
+            FileData file_data
     ) {
     }
 
@@ -708,6 +2113,12 @@ public class GenAi implements AutoCloseable {
     ) {
     }
 
+    private record FileData(
+            String mime_type,
+            String file_uri
+    ) {
+    }
+
     private record ModelResponse(List<Model> models) {
     }
 
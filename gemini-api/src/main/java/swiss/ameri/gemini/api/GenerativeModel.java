@@ -12,6 +12,10 @@ import java.util.List;
  * @param generationConfig     optional, to configure the prompt
  * @param systemInstruction    optional, system instruction
  * @param functionDeclarations optional, functions the model may call
+ * @param cachedContent        optional, name of a {@link CachedContent} to continue, e.g. "cachedContents/abc".
+ *                             The cached contents are not sent again, {@code contents} only holds what follows them.
+ *                             The system instruction and functions are part of the cached content, the ones of this
+ *                             model are not sent.
  */
 public record GenerativeModel(
         String modelName,
@@ -19,9 +23,31 @@ public record GenerativeModel(
         List<SafetySetting> safetySettings,
         GenerationConfig generationConfig,
         List<String> systemInstruction,
-        List<FunctionDeclaration> functionDeclarations
+        List<FunctionDeclaration> functionDeclarations,
+        String cachedContent
 ) {
 
+    /**
+     * Create a model which does not use a cached content.
+     *
+     * @param modelName            to be used. see {@link ModelVariant}. Must start with "models/"
+     * @param contents             given as input to Gemini API
+     * @param safetySettings       optional, to adjust safety settings
+     * @param generationConfig     optional, to configure the prompt
+     * @param systemInstruction    optional, system instruction
+     * @param functionDeclarations optional, functions the model may call
+     */
+    public GenerativeModel(
+            String modelName,
+            List<Content> contents,
+            List<SafetySetting> safetySettings,
+            GenerationConfig generationConfig,
+            List<String> systemInstruction,
+            List<FunctionDeclaration> functionDeclarations
+    ) {
+        this(modelName, contents, safetySettings, generationConfig, systemInstruction, functionDeclarations, null);
+    }
+
     /**
      * Create a {@link GenerativeModelBuilder}.
      *
@@ -37,6 +63,7 @@ public record GenerativeModel(
     public static class GenerativeModelBuilder {
         private String modelName;
         private GenerationConfig generationConfig;
+        private String cachedContent;
         private final List<Content> contents = new ArrayList<>();
         private final List<SafetySetting> safetySettings = new ArrayList<>();
         private final List<String> systemInstructions = new ArrayList<>();
@@ -121,6 +148,29 @@ public record GenerativeModel(
             return this;
         }
 
+        /**
+         * Continue a cached content. Its model must be the same as the one of this builder.
+         *
+         * @param cachedContent name of the cached content, e.g. "cachedContents/abc", or {@code null}
+         * @return this
+         * @see GenAi#createCachedContent(GenerativeModel, java.time.Duration, String)
+         */
+        public GenerativeModelBuilder cachedContent(String cachedContent) {
+            this.cachedContent = cachedContent;
+            return this;
+        }
+
+        /**
+         * Continue a cached content, and use its model.
+         *
+         * @param cachedContent to be continued
+         * @return this
+         */
+        public GenerativeModelBuilder cachedContent(CachedContent cachedContent) {
+            this.cachedContent = cachedContent.name();
+            return modelName(cachedContent.model());
+        }
+
         /**
          * Build the model based on this builder.
          *
@@ -133,7 +183,8 @@ public record GenerativeModel(
                     safetySettings,
                     generationConfig,
                     systemInstructions,
-                    functionDeclarations
+                    functionDeclarations,
+                    cachedContent
             );
         }
     }
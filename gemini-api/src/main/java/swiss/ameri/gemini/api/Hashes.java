@@ -0,0 +1,41 @@
+package swiss.ameri.gemini.api;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Helpers to identify requests by their content.
+ */
+final class Hashes {
+
+    private Hashes() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Hash a text with SHA-256.
+     *
+     * @param text to hash, encoded as UTF-8
+     * @return the lowercase hex encoded hash
+     */
+    static String sha256(String text) {
+        MessageDigest digest = newSha256();
+        return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Create a SHA-256 digest, e.g. to hash data which is not available as a whole.
+     *
+     * @return a new digest
+     */
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
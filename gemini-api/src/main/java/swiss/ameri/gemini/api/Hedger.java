@@ -0,0 +1,160 @@
+package swiss.ameri.gemini.api;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Sends hedged requests according to a {@link HedgingPolicy}. A hedger without a policy only sends the request.
+ * Thread safe.
+ */
+final class Hedger {
+
+    // number of recent latencies per endpoint
+    private static final int WINDOW_SIZE = 1000;
+    // the percentile is only recomputed after this many new latencies
+    private static final int RECOMPUTE_INTERVAL = 50;
+    // the budget is kept in thousandths of a hedge, to allow fractional ratios
+    private static final long BUDGET_SCALE = 1000;
+    private static final long MAX_BUDGET = 10 * BUDGET_SCALE;
+
+    private final HedgingPolicy policy;
+    private final long budgetRatio;
+    private final Map<String, LatencyWindow> windowsByEndpoint = new ConcurrentHashMap<>();
+    private final AtomicLong budget = new AtomicLong();
+
+    /**
+     * @param policy to apply, or {@code null} to never hedge
+     */
+    Hedger(HedgingPolicy policy) {
+        this.policy = policy;
+        this.budgetRatio = policy == null ? 0 : (long) (policy.budgetRatio() * BUDGET_SCALE);
+    }
+
+    /**
+     * Send a request, and a hedge if the request is slow.
+     *
+     * @param endpoint   identifies requests with a comparable latency, e.g. the path of the request
+     * @param idempotent whether the request may be sent twice
+     * @param request    sends the request. Is called a second time to send the hedge.
+     * @param <T>        type of the response
+     * @return the first successful response, or the last failure
+     */
+    <T> CompletableFuture<T> execute(String endpoint, boolean idempotent, Supplier<CompletableFuture<T>> request) {
+        if (policy == null) {
+            return request.get();
+        }
+        LatencyWindow window = windowsByEndpoint.computeIfAbsent(endpoint, e -> new LatencyWindow());
+        CompletableFuture<T> primary = timed(window, request);
+        long delay = window.hedgeDelay();
+        if (!idempotent || delay < 0) {
+            return primary;
+        }
+        budget.getAndUpdate(b -> Math.min(MAX_BUDGET, b + budgetRatio));
+
+        var result = new CompletableFuture<T>();
+        var hedge = new AtomicReference<CompletableFuture<T>>();
+        var outstanding = new AtomicInteger(1);
+        BiConsumer<T, Throwable> onResponse = (value, throwable) -> {
+            if (throwable == null) {
+                result.complete(value);
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(throwable);
+            }
+        };
+        primary.whenComplete(onResponse);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+            if (result.isDone() || !withdrawHedge()) {
+                return;
+            }
+            outstanding.incrementAndGet();
+            CompletableFuture<T> second;
+            try {
+                second = timed(window, request);
+            } catch (RuntimeException e) {
+                onResponse.accept(null, e);
+                return;
+            }
+            hedge.set(second);
+            second.whenComplete(onResponse);
+            if (result.isDone()) {
+                second.cancel(true);
+            }
+        });
+        result.whenComplete((value, throwable) -> {
+            // cancel the loser, or both if the caller cancelled
+            primary.cancel(true);
+            CompletableFuture<T> second = hedge.get();
+            if (second != null) {
+                second.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> timed(LatencyWindow window, Supplier<CompletableFuture<T>> request) {
+        long start = System.nanoTime();
+        CompletableFuture<T> response = request.get();
+        // the response itself is returned, so that cancelling it also cancels the exchange
+        response.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                window.add(System.nanoTime() - start);
+            }
+        });
+        return response;
+    }
+
+    private boolean withdrawHedge() {
+        while (true) {
+            long current = budget.get();
+            if (current < BUDGET_SCALE) {
+                return false;
+            }
+            if (budget.compareAndSet(current, current - BUDGET_SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ring buffer of the recent latencies of an endpoint.
+     */
+    private final class LatencyWindow {
+
+        // guarded by this
+        private final long[] latencies = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private int sinceRecompute;
+        private long percentile = -1;
+
+        synchronized void add(long latency) {
+            latencies[next] = latency;
+            next = (next + 1) % WINDOW_SIZE;
+            count = Math.min(WINDOW_SIZE, count + 1);
+            if (++sinceRecompute >= RECOMPUTE_INTERVAL || count == policy.minimumSamples()) {
+                long[] sorted = Arrays.copyOf(latencies, count);
+                Arrays.sort(sorted);
+                percentile = sorted[(int) Math.min(count - 1, Math.ceil(policy.latencyPercentile() * count) - 1)];
+                sinceRecompute = 0;
+            }
+        }
+
+        /**
+         * @return the delay in nanoseconds, or -1 if not enough latencies have been observed
+         */
+        synchronized long hedgeDelay() {
+            if (count < policy.minimumSamples() || percentile < 0) {
+                return -1;
+            }
+            return Math.max(policy.minimumDelay().toNanos(), percentile);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package swiss.ameri.gemini.api;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Configures hedged requests: if an idempotent request has not been answered within a percentile of the recently
+ * observed latency of the same endpoint, a second identical request is sent. The first successful response is used,
+ * the other request is cancelled.
+ * <p>
+ * Only idempotent requests are hedged: {@link GenAi#countTokens(GenerativeModel)},
+ * {@link GenAi#embedContents(GenerativeModel, String, String, Long)} and
+ * {@link GenAi#generateContent(GenerativeModel)} with a {@link GenerationConfig#temperature()} of 0.
+ * <p>
+ * The hedge budget limits the additional load: every request earns {@code budgetRatio} hedges, and a hedge is only
+ * sent if one has been earned. E.g. a ratio of 0.05 adds at most 5% of requests.
+ *
+ * @param latencyPercentile percentile within (0.0, 1.0) of the recent latencies, after which a hedge is sent
+ * @param minimumDelay      lower bound of the delay before a hedge is sent
+ * @param budgetRatio       hedges earned per request, within (0.0, 1.0)
+ * @param minimumSamples    latencies which must have been observed for an endpoint before it is hedged
+ */
+public record HedgingPolicy(
+        double latencyPercentile,
+        Duration minimumDelay,
+        double budgetRatio,
+        int minimumSamples
+) {
+
+    /**
+     * Validates the policy.
+     */
+    public HedgingPolicy {
+        Objects.requireNonNull(minimumDelay, "minimumDelay");
+        if (latencyPercentile <= 0.0 || latencyPercentile >= 1.0) {
+            throw new IllegalArgumentException("latencyPercentile must be within (0.0, 1.0): " + latencyPercentile);
+        }
+        if (minimumDelay.isNegative()) {
+            throw new IllegalArgumentException("minimumDelay must not be negative: " + minimumDelay);
+        }
+        if (budgetRatio <= 0.0 || budgetRatio >= 1.0) {
+            throw new IllegalArgumentException("budgetRatio must be within (0.0, 1.0): " + budgetRatio);
+        }
+        if (minimumSamples < 1) {
+            throw new IllegalArgumentException("minimumSamples must be positive: " + minimumSamples);
+        }
+    }
+
+    /**
+     * Create a {@link HedgingPolicyBuilder} with default values: hedge after the 95th percentile, but not before
+     * 50 milliseconds, with a budget ratio of 0.05, once 20 latencies have been observed.
+     *
+     * @return a new builder
+     */
+    public static HedgingPolicyBuilder builder() {
+        return new HedgingPolicyBuilder();
+    }
+
+    /**
+     * Builder for {@link HedgingPolicy}. Not thread-safe.
+     */
+    public static class HedgingPolicyBuilder {
+        private double latencyPercentile = 0.95;
+        private Duration minimumDelay = Duration.ofMillis(50);
+        private double budgetRatio = 0.05;
+        private int minimumSamples = 20;
+
+        private HedgingPolicyBuilder() {
+        }
+
+        /**
+         * Set the percentile of the recent latencies, after which a hedge is sent.
+         *
+         * @param latencyPercentile within (0.0, 1.0)
+         * @return this
+         */
+        public HedgingPolicyBuilder latencyPercentile(double latencyPercentile) {
+            this.latencyPercentile = latencyPercentile;
+            return this;
+        }
+
+        /**
+         * Set the lower bound of the delay before a hedge is sent.
+         *
+         * @param minimumDelay to set
+         * @return this
+         */
+        public HedgingPolicyBuilder minimumDelay(Duration minimumDelay) {
+            this.minimumDelay = minimumDelay;
+            return this;
+        }
+
+        /**
+         * Set the hedges earned per request.
+         *
+         * @param budgetRatio within (0.0, 1.0)
+         * @return this
+         */
+        public HedgingPolicyBuilder budgetRatio(double budgetRatio) {
+            this.budgetRatio = budgetRatio;
+            return this;
+        }
+
+        /**
+         * Set the number of latencies which must have been observed before an endpoint is hedged.
+         *
+         * @param minimumSamples to set
+         * @return this
+         */
+        public HedgingPolicyBuilder minimumSamples(int minimumSamples) {
+            this.minimumSamples = minimumSamples;
+            return this;
+        }
+
+        /**
+         * Build the policy.
+         *
+         * @return a validated {@link HedgingPolicy}
+         */
+        public HedgingPolicy build() {
+            return new HedgingPolicy(
+                    latencyPercentile,
+                    minimumDelay,
+                    budgetRatio,
+                    minimumSamples
+            );
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package swiss.ameri.gemini.api;
+
+import swiss.ameri.gemini.spi.JsonParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link HttpRequest.BodyPublisher} of an object serialized to JSON.
+ * <p>
+ * The object is serialized once, with {@link JsonParser#toJson(Object, OutputStream)}, directly into a list of
+ * fixed size chunks. Unlike {@link HttpRequest.BodyPublishers#ofString(String)}, neither a {@link String} nor a copy
+ * of the whole body in a single array is created.
+ * <p>
+ * Media is not serialized with the object. {@link MediaPlaceholders} replaces it with short placeholders, which are
+ * substituted while the body is sent: each chunk of media is only read from its {@link MediaSource}, and base64
+ * encoded if necessary, once the http client requests it. The memory used by a request therefore does not grow with
+ * its media. The chunks are allocated per request, since the http client
+ * does not signal when it has written a chunk, after which the chunk could be reused.
+ * <p>
+ * The body can be sent any number of times, e.g. when a request is retried or hedged.
+ */
+final class JsonBodyPublisher implements HttpRequest.BodyPublisher {
+
+    // the http client sends the body in chunks of this size, larger chunks would be split again
+    private static final int CHUNK_SIZE = 16 * 1024;
+    // shared by all arrays, only published through views
+    private static final Segment ARRAY_START = new Fixed(ascii("["));
+    private static final Segment ARRAY_SEPARATOR = new Fixed(ascii(","));
+    private static final Segment ARRAY_END = new Fixed(ascii("]"));
+
+    private final List<Segment> segments;
+    private final long contentLength;
+
+    private JsonBodyPublisher(List<Segment> segments) {
+        this.segments = segments;
+        this.contentLength = segments.stream()
+                .mapToLong(Segment::length)
+                .sum();
+    }
+
+    /**
+     * Serialize an object.
+     *
+     * @param jsonParser to serialize the object with
+     * @param object     to serialize
+     * @return a publisher of the serialized object
+     */
+    static JsonBodyPublisher of(JsonParser jsonParser, Object object) {
+        return new JsonBodyPublisher(serialize(jsonParser, object).stream()
+                .<Segment>map(Fixed::new)
+                .toList());
+    }
+
+    /**
+     * Serialize an object, which contains the placeholders of media.
+     *
+     * @param jsonParser   to serialize the object with
+     * @param object       to serialize
+     * @param placeholders used while creating the object
+     * @return a publisher of the serialized object, with the placeholders replaced by their media
+     */
+    static JsonBodyPublisher of(JsonParser jsonParser, Object object, MediaPlaceholders placeholders) {
+        if (placeholders.media.isEmpty()) {
+            return of(jsonParser, object);
+        }
+        return new JsonBodyPublisher(placeholders.substitute(serialize(jsonParser, object)));
+    }
+
+    /**
+     * Serialize an object, and split it at a placeholder, so that a value which has been serialized separately can
+     * be inserted, see {@link Frame#withArray(List)}.
+     *
+     * @param jsonParser  to serialize the object with
+     * @param object      to serialize. Must not contain media.
+     * @param placeholder a string value of the object, which only consists of characters that are not escaped, and
+     *                    which is unique
+     * @return the serialized object before and after the placeholder
+     */
+    static Frame frame(JsonParser jsonParser, Object object, String placeholder) {
+        byte[] bytes = join(serialize(jsonParser, object));
+        byte[] quoted = ("\"" + placeholder + "\"").getBytes(StandardCharsets.US_ASCII);
+        int index = MediaPlaceholders.indexOf(bytes, quoted, 0);
+        if (index < 0) {
+            throw new IllegalArgumentException("Placeholder not found: " + placeholder);
+        }
+        int end = index + quoted.length;
+        return new Frame(
+                new JsonBodyPublisher(List.of(new Fixed(ByteBuffer.wrap(bytes, 0, index).slice()))),
+                new JsonBodyPublisher(List.of(new Fixed(ByteBuffer.wrap(bytes, end, bytes.length - end).slice())))
+        );
+    }
+
+    private static List<ByteBuffer> serialize(JsonParser jsonParser, Object object) {
+        var out = new ChunkedOutputStream();
+        try {
+            jsonParser.toJson(object, out);
+        } catch (IOException e) {
+            // writing to memory does not fail, but a parser may still report an error this way
+            throw new UncheckedIOException(e);
+        }
+        return out.finish();
+    }
+
+    private static byte[] join(List<ByteBuffer> chunks) {
+        var json = ByteBuffer.allocate(chunks.stream().mapToInt(ByteBuffer::remaining).sum());
+        chunks.forEach(chunk -> json.put(chunk.duplicate()));
+        return json.array();
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Hash the serialized object, to identify identical requests. Media is not encoded for the hash, and files are
+     * not even read, see {@link MediaSource#digest(MessageDigest)}. Segments are separated in the hash, so that media
+     * cannot collide with the json around it.
+     *
+     * @param prefix to hash before the serialized object, e.g. the model name
+     * @return the hex encoded SHA-256 hash
+     */
+    String sha256(String prefix) {
+        MessageDigest digest = Hashes.newSha256();
+        digest.update(prefix.getBytes(StandardCharsets.UTF_8));
+        for (Segment segment : segments) {
+            if (segment instanceof MediaSegment media) {
+                digest.update((byte) 0);
+                media.source().digest(digest);
+                digest.update((byte) 0);
+            } else {
+                digest.update(((Fixed) segment).bytes().duplicate());
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new BodySubscription(subscriber));
+    }
+
+    /**
+     * Replaces media by placeholders while a request object is created, see
+     * {@link #of(JsonParser, Object, MediaPlaceholders)}. Not thread safe, use a new instance per request.
+     */
+    static final class MediaPlaceholders {
+
+        // only consists of characters which no json parser escapes, and is unique, so that it cannot appear in a text
+        private final String prefix = "gemini-media-" + UUID.randomUUID() + "-";
+        private final List<MediaSource> media = new ArrayList<>();
+
+        /**
+         * Get the value to serialize instead of the base64 encoded media.
+         *
+         * @param mediaData to send
+         * @return a placeholder, or the base64 encoded media, if it is a text which contains characters which must be
+         * escaped
+         */
+        String placeholder(Content.MediaData mediaData) {
+            MediaSource source = mediaData.source();
+            if (source instanceof MediaSource.Base64Text base64Text && !isUnescaped(base64Text.text())) {
+                return base64Text.text();
+            }
+            media.add(source);
+            return prefix + (media.size() - 1);
+        }
+
+        /**
+         * @return whether the text only consists of base64 characters (standard or url safe), which are never
+         * escaped in json
+         */
+        private static boolean isUnescaped(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                boolean base64 = c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9'
+                        || c == '+' || c == '/' || c == '=' || c == '-' || c == '_';
+                if (!base64) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Split the serialized object at the placeholders.
+         *
+         * @param chunks of the serialized object
+         * @return the serialized object, with the placeholders replaced by segments of their media
+         */
+        private List<Segment> substitute(List<ByteBuffer> chunks) {
+            // without the media, the serialized object is small enough to search it as a whole
+            byte[] bytes = join(chunks);
+            byte[] placeholder = prefix.getBytes(StandardCharsets.US_ASCII);
+            List<Segment> segments = new ArrayList<>();
+            int start = 0;
+            int index = indexOf(bytes, placeholder, 0);
+            while (index >= 0) {
+                int end = index + placeholder.length;
+                int mediaIndex = 0;
+                while (bytes[end] >= '0' && bytes[end] <= '9') {
+                    mediaIndex = mediaIndex * 10 + bytes[end++] - '0';
+                }
+                segments.add(new Fixed(ByteBuffer.wrap(bytes, start, index - start).slice()));
+                MediaSource source = media.get(mediaIndex);
+                long length = source.base64Length();
+                if (length > 0) {
+                    segments.add(new MediaSegment(source, length));
+                }
+                start = end;
+                index = indexOf(bytes, placeholder, end);
+            }
+            segments.add(new Fixed(ByteBuffer.wrap(bytes, start, bytes.length - start).slice()));
+            return List.copyOf(segments);
+        }
+
+        private static int indexOf(byte[] bytes, byte[] part, int from) {
+            outer:
+            for (int i = from; i <= bytes.length - part.length; i++) {
+                for (int j = 0; j < part.length; j++) {
+                    if (bytes[i + j] != part[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A serialized object, into which a JSON array of separately serialized elements is inserted. The serialized parts
+     * are shared by all bodies created from them, so that a request only serializes what changed since the last one,
+     * e.g. the latest turn of a chat.
+     *
+     * @param before the serialized object up to the array
+     * @param after  the serialized object after the array
+     */
+    record Frame(JsonBodyPublisher before, JsonBodyPublisher after) {
+
+        /**
+         * Create a body with an array.
+         *
+         * @param elements serialized elements of the array, e.g. with {@link #of(JsonParser, Object, MediaPlaceholders)}
+         * @return a body, which is equal to the serialized object with the array instead of the placeholder
+         */
+        JsonBodyPublisher withArray(List<JsonBodyPublisher> elements) {
+            List<Segment> segments = new ArrayList<>(before.segments);
+            segments.add(ARRAY_START);
+            for (int i = 0; i < elements.size(); i++) {
+                if (i > 0) {
+                    segments.add(ARRAY_SEPARATOR);
+                }
+                segments.addAll(elements.get(i).segments);
+            }
+            segments.add(ARRAY_END);
+            segments.addAll(after.segments);
+            return new JsonBodyPublisher(segments);
+        }
+    }
+
+    /**
+     * Part of the body.
+     */
+    private interface Segment {
+
+        /**
+         * @return number of bytes of this segment
+         */
+        long length();
+
+        /**
+         * @return a reader of the bytes of this segment, from the start
+         */
+        MediaSource.Reader open();
+    }
+
+    /**
+     * Serialized part of the body, which is kept in memory.
+     */
+    private record Fixed(ByteBuffer bytes) implements Segment {
+
+        @Override
+        public long length() {
+            return bytes.remaining();
+        }
+
+        @Override
+        public MediaSource.Reader open() {
+            ByteBuffer remaining = bytes.duplicate();
+            return chunk -> {
+                int length = Math.min(chunk.remaining(), remaining.remaining());
+                chunk.put(remaining.slice(remaining.position(), length));
+                remaining.position(remaining.position() + length);
+                return !remaining.hasRemaining();
+            };
+        }
+    }
+
+    /**
+     * Base64 encoded media, which is copied into the body without escaping.
+     *
+     * @param source of the media
+     * @param length of the base64 encoded media, when the request was created
+     */
+    private record MediaSegment(MediaSource source, long length) implements Segment {
+
+        @Override
+        public MediaSource.Reader open() {
+            MediaSource.Reader reader = source.open();
+            var read = new long[1];
+            return chunk -> {
+                int start = chunk.position();
+                boolean done = reader.read(chunk);
+                read[0] += chunk.position() - start;
+                // the content length has already been sent, e.g. a file must not change until the request is sent
+                if (read[0] > length || done && read[0] != length) {
+                    throw new IllegalStateException("Media changed while it was sent: " + source);
+                }
+                return done;
+            };
+        }
+    }
+
+    /**
+     * Publishes the segments of the body. Fixed segments are published as read only views, the others are read into
+     * new chunks, one per requested item.
+     */
+    private final class BodySubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        // only accessed within the drain loop
+        private int index;
+        private MediaSource.Reader reader;
+
+        BodySubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                if (cancelled.compareAndSet(false, true)) {
+                    subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                }
+                return;
+            }
+            demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        private void drain() {
+            // onNext may call request again, which must not deliver chunks concurrently or out of order
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                long requested = demand.get();
+                long emitted = 0;
+                while (emitted != requested && index < segments.size() && !cancelled.get()) {
+                    ByteBuffer chunk;
+                    try {
+                        chunk = next();
+                    } catch (RuntimeException e) {
+                        if (cancelled.compareAndSet(false, true)) {
+                            subscriber.onError(e);
+                        }
+                        break;
+                    }
+                    subscriber.onNext(chunk);
+                    emitted++;
+                }
+                if (emitted > 0 && requested != Long.MAX_VALUE) {
+                    demand.addAndGet(-emitted);
+                }
+                if (index == segments.size() && cancelled.compareAndSet(false, true)) {
+                    subscriber.onComplete();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private ByteBuffer next() {
+            Segment segment = segments.get(index);
+            if (reader == null && segment instanceof Fixed fixed) {
+                index++;
+                return fixed.bytes().asReadOnlyBuffer();
+            }
+            if (reader == null) {
+                reader = segment.open();
+            }
+            var chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            if (reader.read(chunk)) {
+                reader = null;
+                index++;
+            }
+            return chunk.flip();
+        }
+    }
+
+    /**
+     * Collects the written bytes in chunks of {@link #CHUNK_SIZE}. Not thread safe.
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current = ByteBuffer.allocate(CHUNK_SIZE);
+
+        @Override
+        public void write(int b) {
+            if (!current.hasRemaining()) {
+                next();
+            }
+            current.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (!current.hasRemaining()) {
+                    next();
+                }
+                int written = Math.min(length, current.remaining());
+                current.put(bytes, offset, written);
+                offset += written;
+                length -= written;
+            }
+        }
+
+        private void next() {
+            chunks.add(current.flip());
+            current = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+
+        /**
+         * @return the written chunks, ready to be read
+         */
+        List<ByteBuffer> finish() {
+            if (current.position() > 0) {
+                chunks.add(current.flip());
+            }
+            return List.copyOf(chunks);
+        }
+    }
+}
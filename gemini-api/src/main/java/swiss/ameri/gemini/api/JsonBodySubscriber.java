@@ -0,0 +1,141 @@
+package swiss.ameri.gemini.api;
+
+import swiss.ameri.gemini.spi.JsonParser;
+
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * {@link HttpResponse.BodySubscriber} which deserializes a JSON body into an object.
+ * <p>
+ * The chunks of the body are kept as they arrive, and read by {@link JsonParser#fromJson(InputStream, Class)} once
+ * the body is complete. Unlike {@link HttpResponse.BodySubscribers#ofString(java.nio.charset.Charset)}, the body is
+ * neither joined into a single array nor decoded to a {@link String}, except for the error message if it cannot be
+ * deserialized.
+ *
+ * @param <T> type of the deserialized body
+ */
+final class JsonBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+    private final JsonParser jsonParser;
+    private final Class<T> type;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final CompletableFuture<T> body = new CompletableFuture<>();
+
+    /**
+     * @param jsonParser to deserialize the body with
+     * @param type       of the deserialized body
+     */
+    JsonBodySubscriber(JsonParser jsonParser, Class<T> type) {
+        this.jsonParser = jsonParser;
+        this.type = type;
+    }
+
+    /**
+     * Create a body handler, which deserializes every response with a new {@link JsonBodySubscriber}.
+     *
+     * @param jsonParser to deserialize the body with
+     * @param type       of the deserialized body
+     * @param <T>        type of the deserialized body
+     * @return a new body handler
+     */
+    static <T> HttpResponse.BodyHandler<T> handler(JsonParser jsonParser, Class<T> type) {
+        return responseInfo -> new JsonBodySubscriber<>(jsonParser, type);
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+        return body;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        // the whole body is needed anyway, and the http client does not reuse the delivered buffers
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        chunks.addAll(items);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        chunks.clear();
+        body.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            body.complete(jsonParser.fromJson(new ChunksInputStream(chunks), type));
+        } catch (Exception e) {
+            body.completeExceptionally(new GeminiException("Unexpected body:\n" + text(), e));
+        } finally {
+            chunks.clear();
+        }
+    }
+
+    private String text() {
+        var bytes = ByteBuffer.allocate(chunks.stream().mapToInt(ByteBuffer::remaining).sum());
+        for (ByteBuffer chunk : chunks) {
+            // the input stream only moved duplicates
+            bytes.put(chunk.duplicate());
+        }
+        return new String(bytes.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the remaining bytes of a list of buffers, without modifying them. Not thread safe.
+     */
+    private static final class ChunksInputStream extends InputStream {
+
+        private final List<ByteBuffer> chunks;
+        private int index;
+        private ByteBuffer current;
+
+        ChunksInputStream(List<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer chunk = current();
+            return chunk == null ? -1 : chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            ByteBuffer chunk = current();
+            if (chunk == null) {
+                return -1;
+            }
+            int read = Math.min(length, chunk.remaining());
+            chunk.get(bytes, offset, read);
+            return read;
+        }
+
+        /**
+         * @return the chunk with remaining bytes, or {@code null} at the end
+         */
+        private ByteBuffer current() {
+            while (current == null || !current.hasRemaining()) {
+                if (index == chunks.size()) {
+                    return null;
+                }
+                current = chunks.get(index++).duplicate();
+            }
+            return current;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package swiss.ameri.gemini.api;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link EmbeddingCache} in two memory mapped files.
+ * <p>
+ * The data file starts with a header of its magic number, format version and the end of the written records. It is
+ * mapped in segments of 64 MiB, and each record is appended as its 32 byte key, its dimension and its floats. A record
+ * never spans two segments: if it does not fit into the rest of a segment, the rest is marked as unused by a
+ * dimension of 0, and the record starts at the next segment. The end in the header is only advanced after a record is complete.
+ * <p>
+ * The index file is an open addressing hash table with linear probing. Its header holds the magic number, format
+ * version, capacity, number of entries and the end of the data file up to which records are indexed. Each slot holds
+ * the first 8 bytes of a key, and the offset of its record in the data file, or 0 if the slot is empty. The table is
+ * rebuilt into a new file with twice the capacity when it is half full. Records which are not indexed, e.g. after a
+ * crash, are indexed when the cache is opened.
+ * <p>
+ * All values are little endian. Lookups share a read lock, writes take the write lock.
+ */
+final class MappedEmbeddingCache implements EmbeddingCache {
+
+    private static final String DATA_FILE = "embeddings.data";
+    private static final String INDEX_FILE = "embeddings.index";
+    private static final int DATA_MAGIC = 0x454D4244; // "EMBD"
+    private static final int INDEX_MAGIC = 0x454D4249; // "EMBI"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int KEY_BYTES = 32;
+    private static final int RECORD_HEADER = KEY_BYTES + Integer.BYTES;
+    private static final int SEGMENT_SHIFT = 26;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    // magic, version, end
+    private static final int DATA_HEADER = 16;
+    private static final int DATA_END = 8;
+
+    // magic, version, capacity, unused, count, indexed end
+    private static final int INDEX_HEADER = 32;
+    private static final int INDEX_CAPACITY = 8;
+    private static final int INDEX_COUNT = 16;
+    private static final int INDEX_END = 24;
+    private static final int SLOT_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // keeps the index file below the maximum size of a single mapping
+    private static final int MAXIMUM_CAPACITY = 1 << 26;
+
+    private final Path directory;
+    private final FileChannel data;
+    private final FileLock fileLock;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    // guarded by lock
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long end;
+    private MappedByteBuffer index;
+    private int capacity;
+    private long count;
+    private boolean closed;
+
+    MappedEmbeddingCache(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            this.data = FileChannel.open(directory.resolve(DATA_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            this.fileLock = lock(data, directory);
+            openData();
+            openIndex();
+        } catch (IOException | RuntimeException e) {
+            try {
+                data.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            if (e instanceof IOException ioException) {
+                throw new UncheckedIOException(ioException);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    private static FileLock lock(FileChannel channel, Path directory) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            throw new IllegalStateException("Embedding cache is already in use: " + directory);
+        }
+        return fileLock;
+    }
+
+    private void openData() throws IOException {
+        long size = data.size();
+        MappedByteBuffer first = mapSegment(0);
+        if (size == 0) {
+            first.putInt(0, DATA_MAGIC);
+            first.putInt(4, FORMAT_VERSION);
+            first.putLong(DATA_END, DATA_HEADER);
+        } else if (first.getInt(0) != DATA_MAGIC || first.getInt(4) != FORMAT_VERSION) {
+            throw new IllegalStateException("Not an embedding cache of version %d: %s"
+                    .formatted(FORMAT_VERSION, directory.resolve(DATA_FILE)));
+        }
+        end = first.getLong(DATA_END);
+        if (end < DATA_HEADER || end > Math.max(size, SEGMENT_SIZE)) {
+            throw new IllegalStateException("Corrupt embedding cache, end %d is outside of %s"
+                    .formatted(end, directory.resolve(DATA_FILE)));
+        }
+        while ((long) segments.size() << SEGMENT_SHIFT < end) {
+            mapSegment(segments.size());
+        }
+    }
+
+    private MappedByteBuffer mapSegment(int segment) throws IOException {
+        // mapping beyond the end of the file grows it
+        MappedByteBuffer buffer = data.map(FileChannel.MapMode.READ_WRITE, (long) segment << SEGMENT_SHIFT, SEGMENT_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        segments.add(buffer);
+        return buffer;
+    }
+
+    private void openIndex() throws IOException {
+        Path file = directory.resolve(INDEX_FILE);
+        long indexedEnd = DATA_HEADER;
+        if (Files.exists(file)) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = channel.size();
+                if (size >= INDEX_HEADER) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    mapped.order(ByteOrder.LITTLE_ENDIAN);
+                    int storedCapacity = mapped.getInt(INDEX_CAPACITY);
+                    long storedEnd = mapped.getLong(INDEX_END);
+                    if (mapped.getInt(0) == INDEX_MAGIC && mapped.getInt(4) == FORMAT_VERSION
+                            && Integer.bitCount(storedCapacity) == 1
+                            && size == INDEX_HEADER + (long) storedCapacity * SLOT_BYTES
+                            && storedEnd >= DATA_HEADER && storedEnd <= end) {
+                        index = mapped;
+                        capacity = storedCapacity;
+                        count = mapped.getLong(INDEX_COUNT);
+                        indexedEnd = storedEnd;
+                    }
+                }
+            }
+        }
+        if (index == null) {
+            // missing or unreadable, the index is rebuilt from the data file
+            index = createIndex(INITIAL_CAPACITY);
+        }
+        long position = indexedEnd;
+        while (position < end) {
+            position = alignRecord(position);
+            insert(segments.get(segment(position)).getLong(offset(position)), position);
+            position += recordSize(position);
+        }
+        index.putLong(INDEX_END, end);
+    }
+
+    /**
+     * Create an empty index, and replace the index file with it.
+     */
+    private MappedByteBuffer createIndex(int newCapacity) throws IOException {
+        Path temporary = Files.createTempFile(directory, INDEX_FILE, ".tmp");
+        try {
+            MappedByteBuffer mapped;
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) newCapacity * SLOT_BYTES);
+            }
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            mapped.putInt(0, INDEX_MAGIC);
+            mapped.putInt(4, FORMAT_VERSION);
+            mapped.putInt(INDEX_CAPACITY, newCapacity);
+            mapped.putLong(INDEX_COUNT, 0);
+            mapped.putLong(INDEX_END, DATA_HEADER);
+            mapped.force();
+            Files.move(temporary, directory.resolve(INDEX_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            capacity = newCapacity;
+            count = 0;
+            return mapped;
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Optional<GenAi.ContentEmbedding> get(String key) {
+        byte[] keyBytes = parseKey(key);
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long position = find(keyBytes);
+            if (position == 0) {
+                misses.increment();
+                return Optional.empty();
+            }
+            hits.increment();
+            MappedByteBuffer segment = segments.get(segment(position));
+            int offset = offset(position);
+            int dimension = segment.getInt(offset + KEY_BYTES);
+            return Optional.of(new GenAi.ContentEmbedding(segment
+                    .slice(offset + RECORD_HEADER, dimension * Float.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, GenAi.ContentEmbedding embedding) {
+        byte[] keyBytes = parseKey(key);
+        float[] vector = embedding.vector();
+        if (vector.length == 0) {
+            // a dimension of 0 marks the unused rest of a segment
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (find(keyBytes) == 0) {
+                append(keyBytes, vector);
+            }
+        } catch (IOException | FullException e) {
+            // the files could not be grown, or the index is full. a closed cache fails like the other methods
+            errors.increment();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // must hold the write lock
+    private void append(byte[] key, float[] vector) throws IOException {
+        // grow first, so that a full index does not leave a record behind which is not indexed
+        if ((count + 1) * 2 > capacity) {
+            grow();
+        }
+        long position = end;
+        int size = RECORD_HEADER + vector.length * Float.BYTES;
+        if (SEGMENT_SIZE - offset(position) < size) {
+            if (SEGMENT_SIZE - offset(position) >= RECORD_HEADER) {
+                // mark the rest of the segment as unused, it may contain records from before a clear
+                segments.get(segment(position)).putInt(offset(position) + KEY_BYTES, 0);
+            }
+            position = (long) (segment(position) + 1) << SEGMENT_SHIFT;
+        }
+        if (segment(position) == segments.size()) {
+            mapSegment(segments.size());
+        }
+        MappedByteBuffer segment = segments.get(segment(position));
+        int offset = offset(position);
+        segment.put(offset, key);
+        segment.putInt(offset + KEY_BYTES, vector.length);
+        segment.slice(offset + RECORD_HEADER, vector.length * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer()
+                .put(vector);
+        end = position + size;
+        segments.get(0).putLong(DATA_END, end);
+        insert(segment.getLong(offset), position);
+        index.putLong(INDEX_END, end);
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            // the files keep their size, and are overwritten by later records
+            end = DATA_HEADER;
+            segments.get(0).putLong(DATA_END, end);
+            segments.subList(1, segments.size()).clear();
+            index = createIndex(INITIAL_CAPACITY);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), errors.sum());
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            index.force();
+            fileLock.release();
+            data.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Embedding cache is closed: " + directory);
+        }
+    }
+
+    /**
+     * Find the record of a key.
+     *
+     * @return the position of the record in the data file, or 0 if the key is not cached
+     */
+    private long find(byte[] key) {
+        long prefix = prefix(key);
+        int mask = capacity - 1;
+        byte[] stored = new byte[KEY_BYTES];
+        for (int slot = (int) prefix & mask; ; slot = (slot + 1) & mask) {
+            int slotOffset = INDEX_HEADER + slot * SLOT_BYTES;
+            long position = index.getLong(slotOffset + Long.BYTES);
+            if (position == 0) {
+                return 0;
+            }
+            if (index.getLong(slotOffset) == prefix) {
+                segments.get(segment(position)).get(offset(position), stored);
+                if (Arrays.equals(stored, key)) {
+                    return position;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a record to the index. The key must not be indexed yet, and the index must have a free slot.
+     */
+    private void insert(long prefix, long position) throws IOException {
+        if ((count + 1) * 2 > capacity) {
+            grow();
+        }
+        insert(index, capacity, prefix, position);
+        count++;
+        index.putLong(INDEX_COUNT, count);
+    }
+
+    private static void insert(MappedByteBuffer index, int capacity, long prefix, long position) {
+        int mask = capacity - 1;
+        int slot = (int) prefix & mask;
+        while (index.getLong(INDEX_HEADER + slot * SLOT_BYTES + Long.BYTES) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index.putLong(INDEX_HEADER + slot * SLOT_BYTES, prefix);
+        index.putLong(INDEX_HEADER + slot * SLOT_BYTES + Long.BYTES, position);
+    }
+
+    private void grow() throws IOException {
+        if (capacity >= MAXIMUM_CAPACITY) {
+            throw new FullException("Embedding cache is full: " + directory);
+        }
+        MappedByteBuffer previous = index;
+        int previousCapacity = capacity;
+        long entries = count;
+        MappedByteBuffer grown = createIndex(previousCapacity * 2);
+        for (int slot = 0; slot < previousCapacity; slot++) {
+            long position = previous.getLong(INDEX_HEADER + slot * SLOT_BYTES + Long.BYTES);
+            if (position != 0) {
+                insert(grown, capacity, previous.getLong(INDEX_HEADER + slot * SLOT_BYTES), position);
+            }
+        }
+        count = entries;
+        grown.putLong(INDEX_COUNT, count);
+        grown.putLong(INDEX_END, previous.getLong(INDEX_END));
+        index = grown;
+    }
+
+    /**
+     * Skip the unused rest of a segment, if a record cannot start at a position.
+     */
+    private long alignRecord(long position) {
+        int offset = offset(position);
+        if (SEGMENT_SIZE - offset < RECORD_HEADER
+                || segments.get(segment(position)).getInt(offset + KEY_BYTES) == 0) {
+            return (long) (segment(position) + 1) << SEGMENT_SHIFT;
+        }
+        return position;
+    }
+
+    private int recordSize(long position) {
+        return RECORD_HEADER + segments.get(segment(position)).getInt(offset(position) + KEY_BYTES) * Float.BYTES;
+    }
+
+    private static int segment(long position) {
+        return (int) (position >>> SEGMENT_SHIFT);
+    }
+
+    private static int offset(long position) {
+        return (int) (position & (SEGMENT_SIZE - 1));
+    }
+
+    /**
+     * Get the first 8 bytes of a key, as they are stored in a record.
+     */
+    private static long prefix(byte[] key) {
+        long prefix = 0;
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            prefix = (prefix << 8) | (key[i] & 0xFF);
+        }
+        return prefix;
+    }
+
+    private static byte[] parseKey(String key) {
+        byte[] bytes = HexFormat.of().parseHex(key);
+        if (bytes.length != KEY_BYTES) {
+            throw new IllegalArgumentException("Expected a hex encoded SHA-256 hash, but got: " + key);
+        }
+        return bytes;
+    }
+
+    /**
+     * Thrown if the index cannot grow any further, which only fails a single {@link #put(String, GenAi.ContentEmbedding)}.
+     */
+    private static final class FullException extends IllegalStateException {
+
+        FullException(String message) {
+            super(message);
+        }
+    }
+}
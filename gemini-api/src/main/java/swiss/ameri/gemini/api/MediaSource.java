@@ -0,0 +1,345 @@
+package swiss.ameri.gemini.api;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Source of the data of a {@link Content.MediaData}. Binary data is only base64 encoded while it is read, chunk by
+ * chunk, see {@link #open()}. Either {@link Base64Text}, or {@link Binary} data.
+ */
+sealed interface MediaSource {
+
+    /**
+     * Get the length of the base64 encoded data.
+     *
+     * @return number of base64 characters, which are all ascii
+     * @throws UncheckedIOException if the size of a file cannot be read
+     */
+    long base64Length();
+
+    /**
+     * Start reading the base64 encoded data from the beginning.
+     *
+     * @return a new reader, which is not thread safe
+     * @throws UncheckedIOException if a file cannot be opened
+     */
+    Reader open();
+
+    /**
+     * Get the size of the binary data.
+     *
+     * @return number of bytes, after base64 decoding
+     * @throws UncheckedIOException if the size of a file cannot be read
+     */
+    long size();
+
+    /**
+     * Get the source of the binary data, e.g. to upload it.
+     *
+     * @return this, or a decoded copy of base64 encoded data
+     */
+    Binary binary();
+
+    /**
+     * Update a digest with data which identifies the media, without reading files: files are identified by their
+     * path, size and modification time, data in memory by its length and content.
+     *
+     * @param digest to update
+     * @throws UncheckedIOException if the attributes of a file cannot be read
+     */
+    void digest(MessageDigest digest);
+
+    /**
+     * Get the whole base64 encoded data. Encodes binary data into a new {@link String}.
+     *
+     * @return the base64 encoded data
+     * @throws UncheckedIOException if a file cannot be read
+     */
+    String base64();
+
+    /**
+     * Reads base64 encoded data in chunks.
+     */
+    interface Reader {
+
+        /**
+         * Copy the next base64 characters into {@code chunk}, until it is full or the data ends.
+         *
+         * @param chunk to fill
+         * @return true, if the data has ended
+         * @throws UncheckedIOException if a file cannot be read
+         */
+        boolean read(ByteBuffer chunk);
+    }
+
+    /**
+     * Binary data, whose parts can be read without decoding the whole data.
+     */
+    sealed interface Binary extends MediaSource {
+
+        /**
+         * Get a part of the binary data.
+         *
+         * @param offset of the first byte
+         * @param length number of bytes
+         * @return a read only view of the part
+         * @throws UncheckedIOException if a file cannot be read
+         */
+        ByteBuffer slice(long offset, int length);
+
+        @Override
+        default Binary binary() {
+            return this;
+        }
+    }
+
+    /**
+     * Data which is already base64 encoded.
+     *
+     * @param text the base64 encoded data
+     */
+    record Base64Text(String text) implements MediaSource {
+
+        @Override
+        public long base64Length() {
+            return text.length();
+        }
+
+        @Override
+        public Reader open() {
+            var position = new int[1];
+            return chunk -> {
+                int end = (int) Math.min(text.length(), position[0] + (long) chunk.remaining());
+                for (int i = position[0]; i < end; i++) {
+                    // callers only stream texts which consist of base64 characters
+                    chunk.put((byte) text.charAt(i));
+                }
+                position[0] = end;
+                return end == text.length();
+            };
+        }
+
+        @Override
+        public long size() {
+            int padding = text.endsWith("==") ? 2 : text.endsWith("=") ? 1 : 0;
+            return (long) text.length() / 4 * 3 - padding;
+        }
+
+        @Override
+        public Binary binary() {
+            return new Bytes(ByteBuffer.wrap(Base64.getDecoder().decode(text)));
+        }
+
+        @Override
+        public void digest(MessageDigest digest) {
+            digest.update((byte) 't');
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(text.length()).flip());
+            Reader reader = open();
+            var chunk = ByteBuffer.allocate(DIGEST_CHUNK_SIZE);
+            boolean ended;
+            do {
+                ended = reader.read(chunk.clear());
+                digest.update(chunk.flip());
+            } while (!ended);
+        }
+
+        @Override
+        public String base64() {
+            return text;
+        }
+    }
+
+    /**
+     * Binary data in memory.
+     *
+     * @param bytes from position to limit. Only read through duplicates.
+     */
+    record Bytes(ByteBuffer bytes) implements Binary {
+
+        @Override
+        public long base64Length() {
+            return encodedLength(bytes.remaining());
+        }
+
+        @Override
+        public Reader open() {
+            return new EncodingReader(List.of(bytes.duplicate()));
+        }
+
+        @Override
+        public long size() {
+            return bytes.remaining();
+        }
+
+        @Override
+        public ByteBuffer slice(long offset, int length) {
+            return bytes.slice(bytes.position() + Math.toIntExact(offset), length).asReadOnlyBuffer();
+        }
+
+        @Override
+        public void digest(MessageDigest digest) {
+            digest.update((byte) 'b');
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(bytes.remaining()).flip());
+            digest.update(bytes.duplicate());
+        }
+
+        @Override
+        public String base64() {
+            return new String(Base64.getEncoder().encode(bytes.duplicate()).array(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Binary data in a file, which is read through a memory mapping.
+     *
+     * @param path of the file
+     */
+    record File(Path path) implements Binary {
+
+        // a single mapping is limited to Integer.MAX_VALUE bytes
+        private static final long WINDOW_SIZE = 1L << 30;
+
+        @Override
+        public long base64Length() {
+            return encodedLength(size());
+        }
+
+        @Override
+        public long size() {
+            try {
+                return Files.size(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Identify the file without reading it. A file which is changed without changing its size and modification
+         * time is not noticed.
+         *
+         * @return the absolute path, size and modification time
+         * @throws UncheckedIOException if the attributes cannot be read
+         */
+        String identity() {
+            try {
+                return "%s\n%d\n%s".formatted(path.toAbsolutePath(), Files.size(path), Files.getLastModifiedTime(path));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void digest(MessageDigest digest) {
+            digest.update((byte) 'f');
+            digest.update(identity().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public ByteBuffer slice(long offset, int length) {
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (offset + length > channel.size()) {
+                    throw new IllegalStateException("File is shorter than expected: " + path);
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Reader open() {
+            // the mappings stay valid after the channel is closed, and are only backed by the page cache
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                List<ByteBuffer> windows = new ArrayList<>();
+                for (long position = 0; position < size; position += WINDOW_SIZE) {
+                    windows.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position)));
+                }
+                return new EncodingReader(windows);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String base64() {
+            try {
+                return Base64.getEncoder().encodeToString(Files.readAllBytes(path));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // base64 text is digested in chunks of this size
+    int DIGEST_CHUNK_SIZE = 16 * 1024;
+
+    private static long encodedLength(long bytes) {
+        return (bytes + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes binary data in blocks, which are a multiple of 3 bytes, so that only the last block is padded.
+     */
+    final class EncodingReader implements Reader {
+
+        private static final int BLOCK_SIZE = 12 * 1024;
+
+        private final List<ByteBuffer> windows;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final ByteBuffer encoded = ByteBuffer.allocate(BLOCK_SIZE / 3 * 4).limit(0);
+        private int window;
+
+        /**
+         * @param windows binary data, in order. They are consumed.
+         */
+        private EncodingReader(List<ByteBuffer> windows) {
+            this.windows = windows;
+        }
+
+        @Override
+        public boolean read(ByteBuffer chunk) {
+            while (true) {
+                if (encoded.hasRemaining()) {
+                    int length = Math.min(chunk.remaining(), encoded.remaining());
+                    chunk.put(encoded.slice(encoded.position(), length));
+                    encoded.position(encoded.position() + length);
+                    if (!chunk.hasRemaining()) {
+                        return !encoded.hasRemaining() && window == windows.size();
+                    }
+                }
+                if (window == windows.size()) {
+                    return true;
+                }
+                encodeNextBlock();
+            }
+        }
+
+        private void encodeNextBlock() {
+            int length = 0;
+            while (length < BLOCK_SIZE && window < windows.size()) {
+                ByteBuffer current = windows.get(window);
+                int read = Math.min(BLOCK_SIZE - length, current.remaining());
+                current.get(block, length, read);
+                length += read;
+                if (!current.hasRemaining()) {
+                    window++;
+                }
+            }
+            byte[] source = length == BLOCK_SIZE ? block : Arrays.copyOf(block, length);
+            int encodedLength = Base64.getEncoder().encode(source, encoded.array());
+            encoded.clear().limit(encodedLength);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package swiss.ameri.gemini.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replaces inline media, which exceeds a size threshold, by a reference to a file uploaded to the Files API.
+ * Each distinct media is uploaded once, and the upload is reused by all requests until shortly before the file
+ * expires. Concurrent requests with the same media share a single upload. Failed uploads are not remembered.
+ * Thread safe.
+ */
+final class MediaUploads {
+
+    // a request may be queued for a while, and the file must not expire before it is processed
+    private static final Duration EXPIRATION_MARGIN = Duration.ofHours(1);
+    // media is hashed in chunks of its base64 encoding
+    private static final int HASH_CHUNK_SIZE = 16 * 1024;
+
+    private final long threshold;
+    private final Uploader uploader;
+    private final Map<String, CompletableFuture<UploadedFile>> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * @param threshold size in bytes, from which media is uploaded
+     * @param uploader  uploads the media
+     */
+    MediaUploads(long threshold, Uploader uploader) {
+        this.threshold = threshold;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Uploads media. Can be implemented by a lambda.
+     */
+    interface Uploader {
+
+        /**
+         * @param binary   source of the media, see {@link MediaSource#binary()}
+         * @param mimeType of the media
+         * @return the uploaded file, once it is active
+         */
+        CompletableFuture<UploadedFile> upload(MediaSource.Binary binary, String mimeType);
+    }
+
+    /**
+     * Check whether a model contains media which must be uploaded.
+     *
+     * @param model to check
+     * @return true, if {@link #upload(GenerativeModel)} replaces any media
+     */
+    boolean hasLargeMedia(GenerativeModel model) {
+        return model.contents().stream()
+                .flatMap(content -> media(content).stream())
+                .anyMatch(this::isLarge);
+    }
+
+    /**
+     * Upload the large media of a model.
+     *
+     * @param model to upload the media of
+     * @return a copy of the model, in which large media references the uploaded files
+     */
+    CompletableFuture<GenerativeModel> upload(GenerativeModel model) {
+        Map<Content.MediaData, CompletableFuture<Content.MediaData>> replacements = new IdentityHashMap<>();
+        for (Content content : model.contents()) {
+            for (Content.MediaData media : media(content)) {
+                if (isLarge(media)) {
+                    replacements.computeIfAbsent(media, this::uploaded);
+                }
+            }
+        }
+        return CompletableFuture.allOf(replacements.values().toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> new GenerativeModel(
+                        model.modelName(),
+                        model.contents().stream()
+                                .map(content -> replace(content, replacements))
+                                .toList(),
+                        model.safetySettings(),
+                        model.generationConfig(),
+                        model.systemInstruction(),
+                        model.functionDeclarations(),
+                        model.cachedContent()
+                ));
+    }
+
+    private boolean isLarge(Content.MediaData media) {
+        return media.source() != null && media.source().size() >= threshold;
+    }
+
+    private CompletableFuture<Content.MediaData> uploaded(Content.MediaData media) {
+        String key = key(media.mimeType(), media.source());
+        while (true) {
+            CompletableFuture<UploadedFile> existing = uploads.get(key);
+            if (existing != null) {
+                if (!isStale(existing)) {
+                    return existing.thenApply(Content.MediaData::of);
+                }
+                uploads.remove(key, existing);
+                continue;
+            }
+            var upload = new CompletableFuture<UploadedFile>();
+            if (uploads.putIfAbsent(key, upload) != null) {
+                continue;
+            }
+            // uploads which have been replaced or are no longer used are only dropped here, which is rare enough
+            uploads.values().removeIf(MediaUploads::isStale);
+            // base64 encoded media is only decoded once it is actually uploaded
+            CompletableFuture<UploadedFile> started;
+            try {
+                started = uploader.upload(media.source().binary(), media.mimeType());
+            } catch (RuntimeException e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            started.whenComplete((file, throwable) -> {
+                if (throwable != null) {
+                    uploads.remove(key, upload);
+                    upload.completeExceptionally(Futures.unwrap(throwable));
+                } else {
+                    upload.complete(file);
+                }
+            });
+            return upload.thenApply(Content.MediaData::of);
+        }
+    }
+
+    /**
+     * An upload is stale, once its file expires soon. Failed uploads are removed by their uploader.
+     */
+    private static boolean isStale(CompletableFuture<UploadedFile> upload) {
+        if (!upload.isDone() || upload.isCompletedExceptionally()) {
+            return false;
+        }
+        UploadedFile file = upload.join();
+        return file.expirationTime() != null && file.expiration().isBefore(Instant.now().plus(EXPIRATION_MARGIN));
+    }
+
+    /**
+     * Identify media by its content. Files are identified by their path, size and modification time, so that they
+     * are only read when they are uploaded. Other media is identified by the hash of its base64 encoding, which is
+     * read in chunks, so that neither base64 encoded media is decoded, nor binary media encoded as a whole.
+     */
+    private static String key(String mimeType, MediaSource source) {
+        if (source instanceof MediaSource.File file) {
+            return mimeType + "\n" + file.identity();
+        }
+        MessageDigest digest = Hashes.newSha256();
+        digest.update((mimeType + "\n").getBytes(StandardCharsets.UTF_8));
+        MediaSource.Reader reader = source.open();
+        var chunk = ByteBuffer.allocate(HASH_CHUNK_SIZE);
+        boolean ended;
+        do {
+            ended = reader.read(chunk.clear());
+            digest.update(chunk.flip());
+        } while (!ended);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static List<Content.MediaData> media(Content content) {
+        if (content instanceof Content.MediaContent mediaContent) {
+            return List.of(mediaContent.media());
+        } else if (content instanceof Content.TextAndMediaContent textAndMediaContent) {
+            return textAndMediaContent.media();
+        }
+        return List.of();
+    }
+
+    private static Content replace(
+            Content content,
+            Map<Content.MediaData, CompletableFuture<Content.MediaData>> replacements
+    ) {
+        if (content instanceof Content.MediaContent mediaContent) {
+            return new Content.MediaContent(mediaContent.role(), replace(mediaContent.media(), replacements));
+        } else if (content instanceof Content.TextAndMediaContent textAndMediaContent) {
+            List<Content.MediaData> media = new ArrayList<>();
+            for (Content.MediaData mediaData : textAndMediaContent.media()) {
+                media.add(replace(mediaData, replacements));
+            }
+            return new Content.TextAndMediaContent(textAndMediaContent.role(), textAndMediaContent.text(), media);
+        }
+        return content;
+    }
+
+    private static Content.MediaData replace(
+            Content.MediaData media,
+            Map<Content.MediaData, CompletableFuture<Content.MediaData>> replacements
+    ) {
+        CompletableFuture<Content.MediaData> replacement = replacements.get(media);
+        return replacement == null ? media : replacement.join();
+    }
+}
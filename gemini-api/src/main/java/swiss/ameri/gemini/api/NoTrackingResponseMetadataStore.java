@@ -0,0 +1,30 @@
+package swiss.ameri.gemini.api;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * {@link ResponseMetadataStore} which discards everything.
+ */
+final class NoTrackingResponseMetadataStore implements ResponseMetadataStore {
+
+    static final NoTrackingResponseMetadataStore INSTANCE = new NoTrackingResponseMetadataStore();
+
+    private NoTrackingResponseMetadataStore() {
+    }
+
+    @Override
+    public void put(UUID id, ResponseMetadata metadata) {
+        // nothing to do
+    }
+
+    @Override
+    public Optional<ResponseMetadata> get(UUID id) {
+        return Optional.empty();
+    }
+
+    @Override
+    public void clear() {
+        // nothing to do
+    }
+}
@@ -0,0 +1,160 @@
+package swiss.ameri.gemini.api;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * A model whose configuration is used for many requests, which only differ in their contents.
+ * <p>
+ * The parts of a request which do not depend on the contents, e.g. the safety settings, the generation config with
+ * its response schema, the system instruction and the function declarations, are serialized once when the model is
+ * prepared, and so are the contents of the template and the endpoints. Each request only converts and serializes its
+ * own contents, and joins them with the prepared parts without copying them. The request bodies are equal to the
+ * ones {@link GenAi#generateContent(GenerativeModel)} sends for the same model.
+ * <p>
+ * This class is thread safe.
+ *
+ * @see GenAi#prepare(GenerativeModel)
+ */
+public final class PreparedModel {
+
+    private final GenAi genAi;
+    private final GenerativeModel template;
+    private final JsonBodyPublisher.Frame frame;
+    private final URI generateContentUri;
+    private final URI streamGenerateContentUri;
+    // the contents of the template, serialized once their media has been uploaded. replaced if that failed
+    private final AtomicReference<CompletableFuture<List<JsonBodyPublisher>>> templateContents = new AtomicReference<>();
+
+    /**
+     * @param genAi    to send the requests with
+     * @param template with the configuration of the requests
+     */
+    PreparedModel(GenAi genAi, GenerativeModel template) {
+        this.genAi = genAi;
+        this.template = template;
+        this.frame = genAi.serializeFrame(template);
+        this.generateContentUri = genAi.generateContentUri(template.modelName());
+        this.streamGenerateContentUri = genAi.streamGenerateContentUri(template.modelName());
+        this.templateContents.set(serialize(template.contents()));
+    }
+
+    /**
+     * Get the model this instance was prepared with.
+     *
+     * @return the template
+     */
+    public GenerativeModel template() {
+        return template;
+    }
+
+    /**
+     * Generate a response for the contents, see {@link GenAi#generateContent(GenerativeModel)}.
+     *
+     * @param contents which follow the contents of the template
+     * @return a {@link CompletableFuture} which completes once the response from Gemini API has arrived
+     */
+    public CompletableFuture<GenAi.GeneratedContent> generateContent(List<Content> contents) {
+        GenerativeModel model = withContents(contents);
+        return body(contents).thenCompose(body -> genAi.sendGenerateContent(model, body, generateContentUri));
+    }
+
+    /**
+     * Generate a response for the contents, and stream it in chunks of text, see
+     * {@link GenAi#generateContentStream(GenerativeModel)}.
+     *
+     * @param contents which follow the contents of the template
+     * @return a live stream of the response, as it arrives
+     */
+    public Stream<GenAi.GeneratedContent> generateContentStream(List<Content> contents) {
+        return BlockingSubscriber.stream(genAi.join(streamPublisher(contents, true)));
+    }
+
+    /**
+     * Generate a response for the contents without blocking any thread, see
+     * {@link GenAi#generateContentPublisher(GenerativeModel)}. Each subscription sends a new request.
+     *
+     * @param contents which follow the contents of the template
+     * @return a cold publisher of the response
+     */
+    public Flow.Publisher<GenAi.GeneratedContent> generateContentPublisher(List<Content> contents) {
+        return subscriber -> {
+            CompletableFuture<Flow.Publisher<GenAi.GeneratedContent>> publisher;
+            try {
+                publisher = streamPublisher(contents, false);
+            } catch (RuntimeException e) {
+                Futures.fail(subscriber, e);
+                return;
+            }
+            publisher.whenComplete((p, throwable) -> {
+                if (throwable != null) {
+                    Futures.fail(subscriber, Futures.unwrap(throwable));
+                } else {
+                    p.subscribe(subscriber);
+                }
+            });
+        };
+    }
+
+    private CompletableFuture<Flow.Publisher<GenAi.GeneratedContent>> streamPublisher(
+            List<Content> contents,
+            boolean blocking
+    ) {
+        GenerativeModel model = withContents(contents);
+        return body(contents).thenCompose(body -> genAi.sendStreamGenerateContent(
+                model,
+                body,
+                streamGenerateContentUri,
+                blocking
+        ));
+    }
+
+    /**
+     * @return the template with its contents followed by {@code contents}, e.g. to estimate the tokens of a request
+     */
+    private GenerativeModel withContents(List<Content> contents) {
+        List<Content> all = new ArrayList<>(template.contents().size() + contents.size());
+        all.addAll(template.contents());
+        all.addAll(contents);
+        return new GenerativeModel(
+                template.modelName(),
+                all,
+                template.safetySettings(),
+                template.generationConfig(),
+                template.systemInstruction(),
+                template.functionDeclarations(),
+                template.cachedContent()
+        );
+    }
+
+    private CompletableFuture<JsonBodyPublisher> body(List<Content> contents) {
+        CompletableFuture<List<JsonBodyPublisher>> prepared = templateContents.get();
+        if (prepared.isCompletedExceptionally()) {
+            // e.g. the upload of media of the template failed, which is tried again
+            CompletableFuture<List<JsonBodyPublisher>> retry = serialize(template.contents());
+            prepared = templateContents.compareAndSet(prepared, retry) ? retry : templateContents.get();
+        }
+        return prepared.thenCombine(serialize(contents), (templateParts, parts) -> {
+            List<JsonBodyPublisher> all = new ArrayList<>(templateParts.size() + parts.size());
+            all.addAll(templateParts);
+            all.addAll(parts);
+            return frame.withArray(all);
+        });
+    }
+
+    private CompletableFuture<List<JsonBodyPublisher>> serialize(List<Content> contents) {
+        List<CompletableFuture<JsonBodyPublisher>> parts = new ArrayList<>(contents.size());
+        for (Content content : contents) {
+            parts.add(genAi.withUploadedMedia(template.modelName(), content).thenApply(genAi::serializeContent));
+        }
+        return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> parts.stream()
+                        .map(CompletableFuture::join)
+                        .toList());
+    }
+}
@@ -0,0 +1,233 @@
+package swiss.ameri.gemini.api;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Client side rate limiter, with a requests per minute (RPM) and a tokens per minute (TPM) limit per model.
+ * <p>
+ * Each limit is a lock-free token bucket, implemented as a generic cell rate algorithm: the bucket only stores the
+ * theoretical arrival time of the next request, which is moved forward by the cost of each request. A request which
+ * exceeds the limit is not rejected, but reserves its slot and is delayed until the bucket allows it.
+ * Delayed requests do not block a thread, they are released by {@link CompletableFuture#delayedExecutor(long, TimeUnit)}.
+ * <p>
+ * Input tokens are estimated before a request is sent. Once the {@link GenAi.UsageMetadata} of a response is known,
+ * the charged tokens are corrected.
+ * Thread safe.
+ */
+final class RateLimiter {
+
+    private static final long ONE_MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // rough average for gemini tokenizers
+    private static final int CHARACTERS_PER_TOKEN = 4;
+    // an image costs a fixed amount of tokens, see https://ai.google.dev/gemini-api/docs/tokens
+    private static final int TOKENS_PER_MEDIA = 258;
+
+    private final Map<String, ModelLimits> limitsByModel;
+
+    /**
+     * @param limitsByModel limits keyed by {@link GenerativeModel#modelName()}. Models without a limit are not limited.
+     */
+    RateLimiter(Map<String, RateLimit> limitsByModel) {
+        this.limitsByModel = limitsByModel.entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(
+                        Map.Entry::getKey,
+                        e -> new ModelLimits(e.getValue())
+                ));
+    }
+
+    /**
+     * Acquire a permit for one request.
+     *
+     * @param modelName       of the request
+     * @param estimatedTokens charged to the tokens per minute limit until the actual usage is known
+     * @return a future which completes once the request may be sent
+     */
+    CompletableFuture<Permit> acquire(String modelName, long estimatedTokens) {
+        ModelLimits limits = limitsByModel.get(modelName);
+        if (limits == null) {
+            return CompletableFuture.completedFuture(Permit.UNLIMITED);
+        }
+        long now = System.nanoTime();
+        long delay = limits.requests().reserve(1, now);
+        if (limits.tokens() != null) {
+            delay = Math.max(delay, limits.tokens().reserve(estimatedTokens, now));
+        }
+        Permit permit = limits.permit(estimatedTokens);
+        if (delay <= 0) {
+            return CompletableFuture.completedFuture(permit);
+        }
+        Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS);
+        return CompletableFuture.supplyAsync(() -> permit, delayed);
+    }
+
+    /**
+     * Charge one request, without waiting for the limit. Used by blocking callers, which must not park their thread
+     * in the limiter, but whose requests still delay the following ones.
+     *
+     * @param modelName       of the request
+     * @param estimatedTokens charged to the tokens per minute limit until the actual usage is known
+     * @return the permit, which may exceed the limit
+     */
+    Permit charge(String modelName, long estimatedTokens) {
+        ModelLimits limits = limitsByModel.get(modelName);
+        if (limits == null) {
+            return Permit.UNLIMITED;
+        }
+        long now = System.nanoTime();
+        limits.requests().reserve(1, now);
+        if (limits.tokens() != null) {
+            limits.tokens().reserve(estimatedTokens, now);
+        }
+        return limits.permit(estimatedTokens);
+    }
+
+    /**
+     * Roughly estimate the input tokens of a model, without calling Gemini API.
+     *
+     * @param model to estimate
+     * @return the estimated input tokens
+     */
+    static long estimateTokens(GenerativeModel model) {
+        long tokens = 0;
+        for (Content content : model.contents()) {
+            tokens += estimateTokens(content);
+        }
+        for (String systemInstruction : model.systemInstruction()) {
+            tokens += length(systemInstruction) / CHARACTERS_PER_TOKEN;
+        }
+        return tokens;
+    }
+
+    /**
+     * Roughly estimate the input tokens of a single content, without calling Gemini API.
+     *
+     * @param content to estimate
+     * @return the estimated input tokens
+     */
+    static long estimateTokens(Content content) {
+        long characters = 0;
+        long media = 0;
+        if (content instanceof Content.TextContent textContent) {
+            characters += length(textContent.text());
+        } else if (content instanceof Content.MediaContent) {
+            media++;
+        } else if (content instanceof Content.TextAndMediaContent textAndMediaContent) {
+            characters += length(textAndMediaContent.text());
+            media += textAndMediaContent.media().size();
+        } else if (content instanceof Content.FunctionCallContent functionCallContent) {
+            characters += length(String.valueOf(functionCallContent.functionCall()));
+        } else if (content instanceof Content.FunctionResponseContent functionResponseContent) {
+            characters += length(String.valueOf(functionResponseContent.functionResponse()));
+        }
+        return characters / CHARACTERS_PER_TOKEN + media * TOKENS_PER_MEDIA;
+    }
+
+    private static long length(String text) {
+        return text == null ? 0 : text.length();
+    }
+
+    /**
+     * Limits of one model.
+     *
+     * @param requestsPerMinute maximum number of requests per minute
+     * @param tokensPerMinute   maximum number of tokens per minute, or 0 if tokens are not limited
+     */
+    record RateLimit(
+            int requestsPerMinute,
+            long tokensPerMinute
+    ) {
+        RateLimit {
+            if (requestsPerMinute <= 0) {
+                throw new IllegalArgumentException("requestsPerMinute must be positive: " + requestsPerMinute);
+            }
+            if (tokensPerMinute < 0) {
+                throw new IllegalArgumentException("tokensPerMinute must not be negative: " + tokensPerMinute);
+            }
+        }
+    }
+
+    /**
+     * Charged tokens of a request, which are corrected once the actual usage is known.
+     */
+    static final class Permit {
+
+        static final Permit UNLIMITED = new Permit(null, 0);
+
+        private final Bucket tokens;
+        private final AtomicLong charged;
+
+        private Permit(Bucket tokens, long charged) {
+            this.tokens = tokens;
+            this.charged = new AtomicLong(charged);
+        }
+
+        /**
+         * Correct the charged tokens. Can be called multiple times with a growing usage, e.g. for every chunk
+         * of a stream.
+         *
+         * @param usageMetadata the usage so far, may be {@code null}
+         */
+        void usage(GenAi.UsageMetadata usageMetadata) {
+            if (tokens == null || usageMetadata == null) {
+                return;
+            }
+            long actual = usageMetadata.totalTokenCount();
+            long previous = charged.getAndSet(actual);
+            tokens.adjust(actual - previous);
+        }
+    }
+
+    private record ModelLimits(
+            Bucket requests,
+            Bucket tokens
+    ) {
+        ModelLimits(RateLimit limit) {
+            this(
+                    new Bucket(limit.requestsPerMinute()),
+                    limit.tokensPerMinute() == 0 ? null : new Bucket(limit.tokensPerMinute())
+            );
+        }
+
+        Permit permit(long estimatedTokens) {
+            return tokens == null ? Permit.UNLIMITED : new Permit(tokens, estimatedTokens);
+        }
+    }
+
+    /**
+     * Token bucket, which allows a full minute of the limit as burst.
+     */
+    private static final class Bucket {
+
+        private final double intervalNanos;
+        private final AtomicLong theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+
+        Bucket(long perMinute) {
+            this.intervalNanos = (double) ONE_MINUTE_NANOS / perMinute;
+        }
+
+        /**
+         * @return nanoseconds until the reserved cost may be used
+         */
+        long reserve(long cost, long now) {
+            long increment = (long) (cost * intervalNanos);
+            while (true) {
+                long current = theoreticalArrivalTime.get();
+                long next = (current - now > 0 ? current : now) + increment;
+                if (theoreticalArrivalTime.compareAndSet(current, next)) {
+                    return next - ONE_MINUTE_NANOS - now;
+                }
+            }
+        }
+
+        void adjust(long cost) {
+            if (cost != 0) {
+                theoreticalArrivalTime.addAndGet((long) (cost * intervalNanos));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package swiss.ameri.gemini.api;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cold {@link Flow.Publisher} of a fixed list of items, e.g. of a cached response. Every subscriber receives all
+ * items, as fast as it requests them.
+ *
+ * @param <T> type of the published items
+ */
+final class ReplayPublisher<T> implements Flow.Publisher<T> {
+
+    private final List<T> items;
+
+    /**
+     * @param items to publish, in order
+     */
+    ReplayPublisher(List<T> items) {
+        this.items = List.copyOf(items);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new Replay(subscriber));
+    }
+
+    private final class Replay implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        // only accessed within the drain loop
+        private int index;
+
+        Replay(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                if (cancelled.compareAndSet(false, true)) {
+                    subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                }
+                return;
+            }
+            demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        private void drain() {
+            // onNext may call request again, which must not deliver items concurrently or out of order
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                long requested = demand.get();
+                long emitted = 0;
+                while (emitted != requested && index < items.size() && !cancelled.get()) {
+                    subscriber.onNext(items.get(index++));
+                    emitted++;
+                }
+                if (emitted > 0 && requested != Long.MAX_VALUE) {
+                    demand.addAndGet(-emitted);
+                }
+                if (index == items.size() && cancelled.compareAndSet(false, true)) {
+                    subscriber.onComplete();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
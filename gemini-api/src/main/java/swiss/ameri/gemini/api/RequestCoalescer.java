@@ -0,0 +1,58 @@
+package swiss.ameri.gemini.api;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical requests, which are in flight at the same time, into a single request.
+ * Requests are identical if they are sent to the same endpoint with the same serialized body. The body is only
+ * identified by its SHA-256 hash. Once the request completes, the next identical request is sent again.
+ * Thread safe.
+ */
+final class RequestCoalescer {
+
+    private final Map<Key, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Send a request, unless an identical request is already in flight.
+     *
+     * @param endpoint of the request, e.g. the model name and method
+     * @param bodyHash SHA-256 hash of the serialized body of the request, see {@link JsonBodyPublisher#sha256(String)}
+     * @param request  sends the request, if it is not already in flight
+     * @param <T>      type of the result
+     * @return the result of the request. Each caller receives its own future, so that cancelling it does not
+     * affect the other callers.
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> execute(String endpoint, String bodyHash, Supplier<CompletableFuture<T>> request) {
+        Key key = new Key(endpoint, bodyHash);
+        var shared = new CompletableFuture<T>();
+        CompletableFuture<?> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            return ((CompletableFuture<T>) existing).copy();
+        }
+        try {
+            request.get().whenComplete((value, throwable) -> {
+                // remove before completing, so that callers which see the result never join a finished request
+                inFlight.remove(key, shared);
+                if (throwable == null) {
+                    shared.complete(value);
+                } else {
+                    shared.completeExceptionally(throwable);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, shared);
+            shared.completeExceptionally(e);
+        }
+        return shared.copy();
+    }
+
+    private record Key(
+            String endpoint,
+            String bodyHash
+    ) {
+    }
+}
@@ -0,0 +1,102 @@
+package swiss.ameri.gemini.api;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Caches the responses of deterministic generation, i.e. of {@link GenAi#generateContent(GenerativeModel)},
+ * {@link GenAi#generateContentStream(GenerativeModel)} and {@link GenAi#generateContentPublisher(GenerativeModel)}
+ * with a {@link GenerationConfig#temperature()} of 0.
+ * <p>
+ * Entries are keyed by a hash of the model name and the serialized request. A response is stored as the list of its
+ * raw JSON chunks: a single chunk for {@link GenAi#generateContent(GenerativeModel)}, one chunk per event for a
+ * stream. A cached stream is replayed chunk by chunk, a cached response is replayed as a stream with a single item.
+ * Only complete and successful responses are stored.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface ResponseCache {
+
+    /**
+     * Get a cached response.
+     *
+     * @param key hex encoded hash of the request
+     * @return the raw JSON chunks of the response, or an empty optional on a miss
+     */
+    Optional<List<String>> get(String key);
+
+    /**
+     * Cache a response.
+     *
+     * @param key      hex encoded hash of the request
+     * @param response the raw JSON chunks of the response
+     */
+    void put(String key, List<String> response);
+
+    /**
+     * Remove all cached responses.
+     */
+    void clear();
+
+    /**
+     * Get the hit and miss counts since this cache was created.
+     *
+     * @return the current counts
+     */
+    Stats stats();
+
+    /**
+     * Create a cache which keeps at most {@code maximumSize} responses in memory. The least recently used responses
+     * are evicted first.
+     *
+     * @param maximumSize maximum number of responses to keep. Must be positive.
+     * @return a new in-memory cache
+     */
+    static ResponseCache inMemory(int maximumSize) {
+        return new TieredResponseCache(maximumSize, null);
+    }
+
+    /**
+     * Create a cache which keeps at most {@code maximumSize} responses in memory, and all responses in
+     * {@code directory}, so that they survive a restart. Responses evicted from memory are read from disk again
+     * when needed. The directory is created if it does not exist.
+     * <p>
+     * The directory is not bounded, call {@link #clear()} to delete its entries. If the directory cannot be read or
+     * written, the cache behaves as if the response was not cached, and counts a {@link Stats#diskErrors()}.
+     *
+     * @param maximumSize maximum number of responses to keep in memory. Must be positive.
+     * @param directory   to store the responses in
+     * @return a new persistent cache
+     */
+    static ResponseCache persistent(int maximumSize, Path directory) {
+        return new TieredResponseCache(maximumSize, directory);
+    }
+
+    /**
+     * Hit and miss counts of a cache.
+     *
+     * @param memoryHits responses found in memory
+     * @param diskHits   responses found on disk, but not in memory
+     * @param misses     responses which were not cached
+     * @param diskErrors failed reads or writes of the disk tier
+     */
+    record Stats(
+            long memoryHits,
+            long diskHits,
+            long misses,
+            long diskErrors
+    ) {
+
+        /**
+         * Get the ratio of hits to all lookups.
+         *
+         * @return the hit rate within [0.0, 1.0], or 0.0 if nothing was looked up yet
+         */
+        public double hitRate() {
+            long hits = memoryHits + diskHits;
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+    }
+}
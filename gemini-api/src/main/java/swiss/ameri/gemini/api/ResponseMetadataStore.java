@@ -0,0 +1,71 @@
+package swiss.ameri.gemini.api;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Keeps the metadata of generated content, so it can be queried with {@link GenAi#usageMetadata(UUID)} and
+ * {@link GenAi#safetyRatings(UUID)} once the response has arrived.
+ * Only the metadata is stored, never the generated candidates.
+ * Implementations must be thread safe.
+ */
+public interface ResponseMetadataStore {
+
+    /**
+     * Store the metadata of a response. When streaming, this is called for every chunk, and the latest chunk
+     * replaces the previous one.
+     *
+     * @param id       of the corresponding {@link GenAi.GeneratedContent}
+     * @param metadata to store
+     */
+    void put(UUID id, ResponseMetadata metadata);
+
+    /**
+     * Get the metadata of a response.
+     *
+     * @param id of the corresponding {@link GenAi.GeneratedContent}
+     * @return the metadata, or an empty optional if it was never stored or has already been evicted
+     */
+    Optional<ResponseMetadata> get(UUID id);
+
+    /**
+     * Remove all stored metadata.
+     */
+    void clear();
+
+    /**
+     * Create a store which keeps at most {@code maximumSize} entries. The oldest entries are evicted first.
+     * Entries are also evicted once they have not been updated for {@code timeToLive}.
+     *
+     * @param maximumSize maximum number of responses to keep. Must not be negative.
+     * @param timeToLive  how long an entry is kept after its last update. Must be positive.
+     * @return a new bounded store
+     */
+    static ResponseMetadataStore bounded(int maximumSize, Duration timeToLive) {
+        return new BoundedResponseMetadataStore(maximumSize, timeToLive);
+    }
+
+    /**
+     * Create a store which does not keep anything. {@link GenAi#usageMetadata(UUID)} and
+     * {@link GenAi#safetyRatings(UUID)} will always return empty results.
+     *
+     * @return a store which does not track any response
+     */
+    static ResponseMetadataStore noTracking() {
+        return NoTrackingResponseMetadataStore.INSTANCE;
+    }
+
+    /**
+     * Metadata of a single response.
+     *
+     * @param usageMetadata of the response, may be {@code null}
+     * @param safetyRatings of all candidates of the response
+     */
+    record ResponseMetadata(
+            GenAi.UsageMetadata usageMetadata,
+            List<GenAi.SafetyRating> safetyRatings
+    ) {
+    }
+}
@@ -0,0 +1,196 @@
+package swiss.ameri.gemini.api;
+
+import swiss.ameri.gemini.spi.JsonParser;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executes requests according to a {@link RetryPolicy}. Retries are scheduled with
+ * {@link CompletableFuture#delayedExecutor(long, TimeUnit)}, so no thread is blocked while waiting.
+ * Thread safe.
+ */
+final class Retrier {
+
+    private static final String RETRY_INFO_TYPE = "type.googleapis.com/google.rpc.RetryInfo";
+    // budget tokens are kept in thousandths, to allow fractional token ratios
+    private static final long TOKEN_SCALE = 1000;
+
+    private final RetryPolicy policy;
+    private final JsonParser jsonParser;
+    private final long maxTokens;
+    private final long tokenRatio;
+    private final AtomicLong tokens;
+
+    Retrier(RetryPolicy policy, JsonParser jsonParser) {
+        this.policy = policy;
+        this.jsonParser = jsonParser;
+        this.maxTokens = policy.budgetMaxTokens() * TOKEN_SCALE;
+        this.tokenRatio = (long) (policy.budgetTokenRatio() * TOKEN_SCALE);
+        this.tokens = new AtomicLong(maxTokens);
+    }
+
+    /**
+     * Execute the attempts until one succeeds, a failure is not retryable, or the attempts are exhausted.
+     * Cancelling the returned future stops further retries.
+     *
+     * @param attempt starts a new attempt
+     * @param <T>     type of the result
+     * @return the result of the last attempt
+     */
+    <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> attempt) {
+        if (policy.maxAttempts() == 1) {
+            return attempt.get();
+        }
+        var result = new CompletableFuture<T>();
+        run(attempt, 1, result);
+        return result;
+    }
+
+    private <T> void run(Supplier<CompletableFuture<T>> attempt, int number, CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            future = attempt.get();
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        future.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                onSuccess();
+                result.complete(value);
+                return;
+            }
+            Throwable cause = Futures.unwrap(throwable);
+            Optional<Duration> delay = retryDelay(cause, number);
+            if (delay.isEmpty() || result.isDone()) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            CompletableFuture.delayedExecutor(delay.get().toNanos(), TimeUnit.NANOSECONDS)
+                    .execute(() -> {
+                        if (!result.isDone()) {
+                            run(attempt, number + 1, result);
+                        }
+                    });
+        });
+    }
+
+    private Optional<Duration> retryDelay(Throwable cause, int number) {
+        Optional<Duration> serverDelay;
+        if (cause instanceof UnexpectedResponseException e
+                && policy.retryableStatusCodes().contains(e.getCode().orElse(-1))) {
+            serverDelay = serverDelay(e);
+        } else if (cause instanceof IOException && policy.retryOnIOException()) {
+            serverDelay = Optional.empty();
+        } else {
+            return Optional.empty();
+        }
+        // the last attempt, or a longer delay than the policy allows, is not retried, and does not cost a token
+        if (number >= policy.maxAttempts()
+                || serverDelay.isPresent() && serverDelay.get().compareTo(policy.maxBackoff()) > 0
+                || !withdrawToken()) {
+            return Optional.empty();
+        }
+        return serverDelay.or(() -> Optional.of(policy.backoff(number, ThreadLocalRandom.current().nextDouble())));
+    }
+
+    private void onSuccess() {
+        if (maxTokens == 0) {
+            return;
+        }
+        tokens.getAndUpdate(t -> Math.min(maxTokens, t + tokenRatio));
+    }
+
+    /**
+     * @return whether a retry is allowed by the budget
+     */
+    private boolean withdrawToken() {
+        if (maxTokens == 0) {
+            return true;
+        }
+        long remaining = tokens.updateAndGet(t -> Math.max(0, t - TOKEN_SCALE));
+        return remaining > maxTokens / 2;
+    }
+
+    private Optional<Duration> serverDelay(UnexpectedResponseException e) {
+        return e.headers().firstValue("Retry-After")
+                .flatMap(Retrier::parseRetryAfter)
+                .or(() -> retryInfoDelay(e.body()));
+    }
+
+    private static Optional<Duration> parseRetryAfter(String value) {
+        try {
+            return Optional.of(Duration.ofSeconds(Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            // not seconds, so it must be a http date
+        }
+        try {
+            var date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            Duration delay = Duration.between(ZonedDateTime.now(date.getZone()), date);
+            return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Parse e.g.
+     * <pre>{@code
+     * {
+     *   "error": {
+     *     "code": 429,
+     *     "status": "RESOURCE_EXHAUSTED",
+     *     "details": [{"@type": "type.googleapis.com/google.rpc.RetryInfo", "retryDelay": "37s"}]
+     *   }
+     * }
+     * }</pre>
+     */
+    private Optional<Duration> retryInfoDelay(String body) {
+        try {
+            ErrorResponse response = jsonParser.fromJson(body, ErrorResponse.class);
+            if (response == null || response.error() == null || response.error().details() == null) {
+                return Optional.empty();
+            }
+            return response.error().details().stream()
+                    .filter(detail -> RETRY_INFO_TYPE.equals(detail.get("@type")))
+                    .map(detail -> detail.get("retryDelay"))
+                    .filter(String.class::isInstance)
+                    .map(String.class::cast)
+                    .findFirst()
+                    .map(Retrier::parseProtobufDuration);
+        } catch (RuntimeException e) {
+            // the error body is only a hint, so it does not matter if it cannot be parsed
+            return Optional.empty();
+        }
+    }
+
+    private static Duration parseProtobufDuration(String value) {
+        String seconds = value.endsWith("s") ? value.substring(0, value.length() - 1) : value;
+        return Duration.ofNanos(new BigDecimal(seconds).movePointRight(9).longValueExact());
+    }
+
+    private record ErrorResponse(
+            ErrorBody error
+    ) {
+    }
+
+    private record ErrorBody(
+            Integer code,
+            String message,
+            String status,
+            List<Map<String, Object>> details
+    ) {
+    }
+}
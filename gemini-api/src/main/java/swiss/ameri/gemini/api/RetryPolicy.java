@@ -0,0 +1,231 @@
+package swiss.ameri.gemini.api;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Configures how {@link GenAi} retries requests which failed with a transient error, e.g. a 429 (quota exceeded) or a
+ * 503 (model is overloaded).
+ * <p>
+ * Retries are delayed with an exponential backoff. The delay is randomly reduced by up to {@code jitter}, to avoid
+ * many clients retrying at the same time. If Gemini API tells how long to wait, either with a {@code Retry-After}
+ * header or a {@code RetryInfo} in the error {@code details}, that delay is used instead. If it is longer than
+ * {@code maxBackoff}, the request is not retried, since retrying earlier would most likely fail again.
+ * <p>
+ * The retry budget limits the amount of retries while Gemini API is failing: each retryable failure costs one token,
+ * each success earns {@code budgetTokenRatio} tokens, up to {@code budgetMaxTokens}. Retries are only attempted while
+ * more than half of the tokens are available.
+ * <p>
+ * Streaming responses are only retried until the response starts. Once content has been received, failures are
+ * passed on to the caller.
+ *
+ * @param maxAttempts          maximum number of attempts, including the first one. 1 disables retries.
+ * @param initialBackoff       delay before the first retry
+ * @param maxBackoff           upper limit of the computed delay, and of the delay requested by Gemini API
+ * @param multiplier           factor by which the delay grows after each retry
+ * @param jitter               fraction [0.0, 1.0] by which a delay is randomly reduced
+ * @param retryableStatusCodes http response codes which are retried
+ * @param retryOnIOException   whether requests which failed with an {@link java.io.IOException} (e.g. a connection
+ *                             reset) are retried. Note that such requests might have reached Gemini API.
+ * @param budgetMaxTokens      size of the retry budget. 0 disables the budget.
+ * @param budgetTokenRatio     tokens earned by a successful request
+ */
+public record RetryPolicy(
+        int maxAttempts,
+        Duration initialBackoff,
+        Duration maxBackoff,
+        double multiplier,
+        double jitter,
+        Set<Integer> retryableStatusCodes,
+        boolean retryOnIOException,
+        int budgetMaxTokens,
+        double budgetTokenRatio
+) {
+
+    /**
+     * Validates the policy.
+     */
+    public RetryPolicy {
+        Objects.requireNonNull(initialBackoff, "initialBackoff");
+        Objects.requireNonNull(maxBackoff, "maxBackoff");
+        retryableStatusCodes = Set.copyOf(retryableStatusCodes);
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+        }
+        if (initialBackoff.isNegative() || maxBackoff.isNegative()) {
+            throw new IllegalArgumentException("Backoff must not be negative");
+        }
+        if (multiplier < 1.0) {
+            throw new IllegalArgumentException("multiplier must be at least 1.0: " + multiplier);
+        }
+        if (jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("jitter must be within [0.0, 1.0]: " + jitter);
+        }
+        if (budgetMaxTokens < 0 || budgetTokenRatio < 0.0) {
+            throw new IllegalArgumentException("Retry budget must not be negative");
+        }
+    }
+
+    /**
+     * A policy which never retries.
+     *
+     * @return a policy with a single attempt
+     */
+    public static RetryPolicy none() {
+        return builder().maxAttempts(1).build();
+    }
+
+    /**
+     * Create a {@link RetryPolicyBuilder} with default values: 3 attempts, an initial backoff of 1 second which doubles
+     * up to 30 seconds, a jitter of 0.5, retries on 429, 500, 502, 503 and 504 as well as on {@link java.io.IOException}s,
+     * and a retry budget of 100 tokens with a token ratio of 0.1.
+     *
+     * @return a new builder
+     */
+    public static RetryPolicyBuilder builder() {
+        return new RetryPolicyBuilder();
+    }
+
+    /**
+     * Compute the delay before the given retry, without the server's hint.
+     *
+     * @param retry  number of the retry, starting at 1
+     * @param random value within [0.0, 1.0)
+     * @return the delay
+     */
+    Duration backoff(int retry, double random) {
+        double nanos = initialBackoff.toNanos() * Math.pow(multiplier, retry - 1);
+        nanos = Math.min(nanos, maxBackoff.toNanos());
+        nanos = nanos * (1.0 - jitter * random);
+        return Duration.ofNanos((long) nanos);
+    }
+
+    /**
+     * Builder for {@link RetryPolicy}. Not thread-safe.
+     */
+    public static class RetryPolicyBuilder {
+        private int maxAttempts = 3;
+        private Duration initialBackoff = Duration.ofSeconds(1);
+        private Duration maxBackoff = Duration.ofSeconds(30);
+        private double multiplier = 2.0;
+        private double jitter = 0.5;
+        private Set<Integer> retryableStatusCodes = Set.of(429, 500, 502, 503, 504);
+        private boolean retryOnIOException = true;
+        private int budgetMaxTokens = 100;
+        private double budgetTokenRatio = 0.1;
+
+        private RetryPolicyBuilder() {
+        }
+
+        /**
+         * Set the maximum number of attempts.
+         *
+         * @param maxAttempts including the first attempt
+         * @return this
+         */
+        public RetryPolicyBuilder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Set the delay before the first retry.
+         *
+         * @param initialBackoff to set
+         * @return this
+         */
+        public RetryPolicyBuilder initialBackoff(Duration initialBackoff) {
+            this.initialBackoff = initialBackoff;
+            return this;
+        }
+
+        /**
+         * Set the upper limit of the computed delay. Requests for which Gemini API asks for a longer delay are not
+         * retried.
+         *
+         * @param maxBackoff to set
+         * @return this
+         */
+        public RetryPolicyBuilder maxBackoff(Duration maxBackoff) {
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * Set the factor by which the delay grows after each retry.
+         *
+         * @param multiplier to set
+         * @return this
+         */
+        public RetryPolicyBuilder multiplier(double multiplier) {
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Set the fraction by which a delay is randomly reduced.
+         *
+         * @param jitter within [0.0, 1.0]
+         * @return this
+         */
+        public RetryPolicyBuilder jitter(double jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Set the http response codes which are retried.
+         *
+         * @param retryableStatusCodes to set
+         * @return this
+         */
+        public RetryPolicyBuilder retryableStatusCodes(Set<Integer> retryableStatusCodes) {
+            this.retryableStatusCodes = retryableStatusCodes;
+            return this;
+        }
+
+        /**
+         * Set whether requests which failed with an {@link java.io.IOException} are retried.
+         *
+         * @param retryOnIOException to set
+         * @return this
+         */
+        public RetryPolicyBuilder retryOnIOException(boolean retryOnIOException) {
+            this.retryOnIOException = retryOnIOException;
+            return this;
+        }
+
+        /**
+         * Set the retry budget.
+         *
+         * @param maxTokens  size of the budget. 0 disables the budget.
+         * @param tokenRatio tokens earned by a successful request
+         * @return this
+         */
+        public RetryPolicyBuilder budget(int maxTokens, double tokenRatio) {
+            this.budgetMaxTokens = maxTokens;
+            this.budgetTokenRatio = tokenRatio;
+            return this;
+        }
+
+        /**
+         * Build the policy.
+         *
+         * @return a validated {@link RetryPolicy}
+         */
+        public RetryPolicy build() {
+            return new RetryPolicy(
+                    maxAttempts,
+                    initialBackoff,
+                    maxBackoff,
+                    multiplier,
+                    jitter,
+                    retryableStatusCodes,
+                    retryOnIOException,
+                    budgetMaxTokens,
+                    budgetTokenRatio
+            );
+        }
+    }
+}
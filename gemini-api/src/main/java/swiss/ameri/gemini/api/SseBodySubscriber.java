@@ -0,0 +1,219 @@
+package swiss.ameri.gemini.api;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * {@link HttpResponse.BodySubscriber} for a server sent event stream. The body is a {@link Flow.Publisher} of the
+ * mapped events, which is available as soon as the response headers have arrived.
+ * <p>
+ * The raw body chunks are decoded with a {@link SseDecoder}. A new chunk is only requested from the http client once
+ * all previously decoded events have been delivered, and the subscriber of the body has outstanding demand.
+ * The body publisher can only be subscribed once.
+ *
+ * @param <T> type of the published events
+ */
+final class SseBodySubscriber<T> implements HttpResponse.BodySubscriber<Flow.Publisher<T>>, Flow.Publisher<T> {
+
+    private final Function<ByteBuffer, T> mapper;
+    private final SseDecoder decoder = new SseDecoder();
+    private final Queue<T> events = new ConcurrentLinkedQueue<>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean upstreamRequested = new AtomicBoolean();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final CompletableFuture<Flow.Publisher<T>> body = CompletableFuture.completedFuture(this);
+
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super T> downstream;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+    private boolean terminated;
+
+    /**
+     * @param mapper maps the data of an event to an item. The buffer is only valid during the call.
+     */
+    SseBodySubscriber(Function<ByteBuffer, T> mapper) {
+        this.mapper = mapper;
+    }
+
+    @Override
+    public CompletionStage<Flow.Publisher<T>> getBody() {
+        return body;
+    }
+
+    // http client side
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        if (cancelled || done) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> chunks) {
+        upstreamRequested.set(false);
+        if (done) {
+            return;
+        }
+        try {
+            for (ByteBuffer chunk : chunks) {
+                decoder.decode(chunk, data -> events.add(mapper.apply(data)));
+            }
+        } catch (RuntimeException e) {
+            upstream.cancel();
+            fail(e);
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (done) {
+            return;
+        }
+        try {
+            decoder.finish(data -> events.add(mapper.apply(data)));
+        } catch (RuntimeException e) {
+            fail(e);
+            return;
+        }
+        done = true;
+        drain();
+    }
+
+    // body subscriber side
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            Futures.fail(subscriber, new IllegalStateException("The body can only be subscribed once"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    // signal the error before cancelling the upstream, since nothing is delivered once cancelled.
+                    // also if the body has already completed, but not all events have been delivered
+                    if (error == null) {
+                        error = new IllegalArgumentException("Non-positive request: " + n);
+                    }
+                    done = true;
+                    drain();
+                    Flow.Subscription subscription = upstream;
+                    if (subscription != null) {
+                        subscription.cancel();
+                    }
+                    return;
+                }
+                demand.getAndAccumulate(n, SseBodySubscriber::addCapped);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                Flow.Subscription subscription = upstream;
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            }
+        });
+        downstream = subscriber;
+        drain();
+    }
+
+    private void fail(Throwable throwable) {
+        if (done) {
+            return;
+        }
+        error = throwable;
+        done = true;
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super T> subscriber = downstream;
+            if (subscriber != null && !terminated) {
+                if (cancelled) {
+                    events.clear();
+                } else {
+                    deliver(subscriber);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void deliver(Flow.Subscriber<? super T> subscriber) {
+        long requested = demand.get();
+        long emitted = 0;
+        while (emitted != requested && !cancelled) {
+            T event = events.poll();
+            if (event == null) {
+                break;
+            }
+            subscriber.onNext(event);
+            emitted++;
+        }
+        if (emitted > 0 && requested != Long.MAX_VALUE) {
+            demand.addAndGet(-emitted);
+        }
+        if (cancelled) {
+            return;
+        }
+        if (done && (error != null || events.isEmpty())) {
+            terminated = true;
+            events.clear();
+            if (error != null) {
+                subscriber.onError(error);
+            } else {
+                subscriber.onComplete();
+            }
+            return;
+        }
+        Flow.Subscription subscription = upstream;
+        if (!done && events.isEmpty() && demand.get() > 0 && subscription != null
+                && upstreamRequested.compareAndSet(false, true)) {
+            subscription.request(1);
+        }
+    }
+
+    private static long addCapped(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+}
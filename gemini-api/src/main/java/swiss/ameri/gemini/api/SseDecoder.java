@@ -0,0 +1,198 @@
+package swiss.ameri.gemini.api;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Decodes <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html#event-stream-interpretation">server sent events</a>
+ * directly from the raw chunks of a response body, without decoding lines to {@link String}s.
+ * <p>
+ * Only the {@code data} field is of interest. Multiple {@code data} lines of one event are joined with a line feed,
+ * comments and other fields are ignored. Lines may end with CRLF, LF or CR, and may be split across chunks.
+ * <p>
+ * The data of an event is passed to the consumer as a {@link ByteBuffer}, which is only valid during the call and
+ * must not be modified. If an event lies completely within one chunk and has a single {@code data} line, the buffer is
+ * a slice of that chunk. Otherwise, the data is copied into an internal buffer, which is reused for subsequent events.
+ * Not thread-safe.
+ */
+final class SseDecoder {
+
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    private static final byte COLON = ':';
+    private static final byte SPACE = ' ';
+    private static final byte[] DATA_FIELD = {'d', 'a', 't', 'a'};
+
+    // bytes of a line which did not end within the previous chunk
+    private byte[] line = new byte[256];
+    private int lineLength;
+    // data of the current event, if it had to be copied
+    private byte[] data = new byte[1024];
+    private int dataLength;
+    private boolean hasData;
+    // data of the current event, if it is a single line within the current chunk
+    private ByteBuffer dataChunk;
+    private int dataStart = -1;
+    private int dataEnd;
+    // previous chunk ended with CR, so a LF at the start of the next chunk belongs to the same line break
+    private boolean skipLineFeed;
+
+    /**
+     * Decode a chunk of the response body. The chunk is fully consumed.
+     *
+     * @param chunk  of the response body
+     * @param onData receives the data of each completed event
+     */
+    void decode(ByteBuffer chunk, Consumer<ByteBuffer> onData) {
+        int position = chunk.position();
+        int limit = chunk.limit();
+        if (skipLineFeed && position < limit && chunk.get(position) == LF) {
+            position++;
+        }
+        skipLineFeed = false;
+        int lineStart = position;
+        for (int i = position; i < limit; i++) {
+            byte b = chunk.get(i);
+            if (b != LF && b != CR) {
+                continue;
+            }
+            if (lineLength > 0) {
+                appendLine(chunk, lineStart, i);
+                processLine(ByteBuffer.wrap(line), 0, lineLength, false, onData);
+                lineLength = 0;
+            } else {
+                processLine(chunk, lineStart, i, true, onData);
+            }
+            if (b == CR) {
+                if (i + 1 < limit) {
+                    if (chunk.get(i + 1) == LF) {
+                        i++;
+                    }
+                } else {
+                    skipLineFeed = true;
+                }
+            }
+            lineStart = i + 1;
+        }
+        appendLine(chunk, lineStart, limit);
+        if (dataStart >= 0) {
+            // the chunk must not be retained, so the pending data has to be copied
+            appendData(dataChunk, dataStart, dataEnd);
+            dataChunk = null;
+            dataStart = -1;
+        }
+        chunk.position(limit);
+    }
+
+    /**
+     * Signal the end of the response body. An event which has not been terminated by an empty line is dispatched
+     * anyway, to be lenient with servers which omit the final empty line.
+     *
+     * @param onData receives the data of the last event, if any
+     */
+    void finish(Consumer<ByteBuffer> onData) {
+        if (lineLength > 0) {
+            processLine(ByteBuffer.wrap(line), 0, lineLength, false, onData);
+            lineLength = 0;
+        }
+        dispatch(onData);
+    }
+
+    private void processLine(ByteBuffer buffer, int start, int end, boolean inChunk, Consumer<ByteBuffer> onData) {
+        if (start == end) {
+            dispatch(onData);
+            return;
+        }
+        if (buffer.get(start) == COLON) {
+            // comment
+            return;
+        }
+        int colon = start;
+        while (colon < end && buffer.get(colon) != COLON) {
+            colon++;
+        }
+        if (!isDataField(buffer, start, colon)) {
+            return;
+        }
+        int valueStart = Math.min(colon + 1, end);
+        if (valueStart < end && buffer.get(valueStart) == SPACE) {
+            valueStart++;
+        }
+        if (!hasData && inChunk) {
+            dataChunk = buffer;
+            dataStart = valueStart;
+            dataEnd = end;
+            hasData = true;
+            return;
+        }
+        if (dataStart >= 0) {
+            appendData(dataChunk, dataStart, dataEnd);
+            dataChunk = null;
+            dataStart = -1;
+        }
+        if (hasData) {
+            ensureDataCapacity(1);
+            data[dataLength++] = LF;
+        }
+        appendData(buffer, valueStart, end);
+        hasData = true;
+    }
+
+    private void dispatch(Consumer<ByteBuffer> onData) {
+        if (!hasData) {
+            return;
+        }
+        ByteBuffer event;
+        if (dataStart >= 0) {
+            event = dataChunk.duplicate()
+                    .limit(dataEnd)
+                    .position(dataStart)
+                    .slice();
+        } else {
+            event = ByteBuffer.wrap(data, 0, dataLength);
+        }
+        hasData = false;
+        dataLength = 0;
+        dataChunk = null;
+        dataStart = -1;
+        onData.accept(event);
+    }
+
+    private static boolean isDataField(ByteBuffer buffer, int start, int end) {
+        if (end - start != DATA_FIELD.length) {
+            return false;
+        }
+        for (int i = 0; i < DATA_FIELD.length; i++) {
+            if (buffer.get(start + i) != DATA_FIELD[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendLine(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return;
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        }
+        buffer.get(start, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void appendData(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        ensureDataCapacity(length);
+        buffer.get(start, data, dataLength, length);
+        dataLength += length;
+    }
+
+    private void ensureDataCapacity(int additional) {
+        if (dataLength + additional > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + additional));
+        }
+    }
+}
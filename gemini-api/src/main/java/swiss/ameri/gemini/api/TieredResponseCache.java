@@ -0,0 +1,178 @@
+package swiss.ameri.gemini.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ResponseCache} with a least recently used in-memory tier and an optional disk tier.
+ * Each response is stored in its own file, which is written to a temporary file first and then moved into place,
+ * so that concurrent readers and a crash never see a partial entry.
+ */
+final class TieredResponseCache implements ResponseCache {
+
+    private static final String SUFFIX = ".response";
+    // written at the start of each file, so that the format can be changed later
+    private static final int FORMAT_VERSION = 1;
+
+    private final int maximumSize;
+    private final Path directory;
+    // guarded by itself
+    private final LinkedHashMap<String, List<String>> memory;
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder diskErrors = new LongAdder();
+
+    /**
+     * @param maximumSize of the in-memory tier
+     * @param directory   of the disk tier, or {@code null} to only cache in memory
+     */
+    TieredResponseCache(int maximumSize, Path directory) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.directory = directory;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                return size() > TieredResponseCache.this.maximumSize;
+            }
+        };
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public Optional<List<String>> get(String key) {
+        List<String> response;
+        synchronized (memory) {
+            response = memory.get(key);
+        }
+        if (response != null) {
+            memoryHits.increment();
+            return Optional.of(response);
+        }
+        if (directory != null) {
+            response = read(key);
+            if (response != null) {
+                diskHits.increment();
+                synchronized (memory) {
+                    memory.put(key, response);
+                }
+                return Optional.of(response);
+            }
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    @Override
+    public void put(String key, List<String> response) {
+        List<String> copy = List.copyOf(response);
+        synchronized (memory) {
+            memory.put(key, copy);
+        }
+        if (directory != null) {
+            write(key, copy);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+        if (directory == null) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            diskErrors.increment();
+        }
+    }
+
+    @Override
+    public Stats stats() {
+        return new Stats(memoryHits.sum(), diskHits.sum(), misses.sum(), diskErrors.sum());
+    }
+
+    private List<String> read(String key) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file(key))))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int chunks = in.readInt();
+            List<String> response = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                int length = in.readInt();
+                byte[] bytes = in.readNBytes(length);
+                if (bytes.length != length) {
+                    throw new EOFException("Truncated response: " + file(key));
+                }
+                response.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return List.copyOf(response);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            diskErrors.increment();
+            return null;
+        }
+    }
+
+    private void write(String key, List<String> response) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(response.size());
+                for (String chunk : response) {
+                    byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            Files.move(temporary, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            diskErrors.increment();
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // the write has already been counted as failed
+                }
+            }
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+}
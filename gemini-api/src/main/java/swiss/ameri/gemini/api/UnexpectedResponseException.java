@@ -0,0 +1,27 @@
+package swiss.ameri.gemini.api;
+
+import java.net.http.HttpHeaders;
+
+/**
+ * Thrown if Gemini API responds with an unexpected status code. Keeps the headers and the body of the response,
+ * so that retries can take the hints of Gemini API into account.
+ */
+final class UnexpectedResponseException extends GeminiException {
+
+    private final transient HttpHeaders headers;
+    private final String body;
+
+    UnexpectedResponseException(int code, HttpHeaders headers, String body) {
+        super("Unexpected response:\n%s".formatted(body), code);
+        this.headers = headers;
+        this.body = body;
+    }
+
+    HttpHeaders headers() {
+        return headers;
+    }
+
+    String body() {
+        return body;
+    }
+}
@@ -0,0 +1,65 @@
+package swiss.ameri.gemini.api;
+
+import java.time.Instant;
+
+/**
+ * A file uploaded to the Files API of Gemini API, which can be referenced in requests instead of sending its
+ * content inline, see {@link Content.MediaData#of(UploadedFile)}. Files are deleted by Gemini API after 48 hours.
+ * See <a href="https://ai.google.dev/api/files#File">File</a>.
+ *
+ * @param name           identifier of the file, e.g. "files/abc"
+ * @param displayName    optional, given when the file was uploaded
+ * @param mimeType       of the file
+ * @param sizeBytes      size of the file
+ * @param createTime     RFC 3339 timestamp of the upload
+ * @param updateTime     RFC 3339 timestamp of the last update
+ * @param expirationTime RFC 3339 timestamp, after which the file is deleted
+ * @param sha256Hash     base64 encoded SHA-256 hash of the file
+ * @param uri            to reference the file in requests
+ * @param state          PROCESSING, ACTIVE or FAILED. Only active files can be used.
+ * @param error          details, if the processing failed
+ */
+public record UploadedFile(
+        String name,
+        String displayName,
+        String mimeType,
+        long sizeBytes,
+        String createTime,
+        String updateTime,
+        String expirationTime,
+        String sha256Hash,
+        String uri,
+        String state,
+        Status error
+) {
+
+    /**
+     * Whether the file has been processed, and can be used in requests.
+     *
+     * @return true, if the state is ACTIVE
+     */
+    public boolean isActive() {
+        return "ACTIVE".equals(state);
+    }
+
+    /**
+     * Get the time after which the file is deleted.
+     *
+     * @return the parsed {@link #expirationTime()}
+     */
+    public Instant expiration() {
+        return Instant.parse(expirationTime);
+    }
+
+    /**
+     * Error of a failed file.
+     *
+     * @param code    status code
+     * @param message describing the error
+     */
+    public record Status(
+            int code,
+            String message
+    ) {
+    }
+}
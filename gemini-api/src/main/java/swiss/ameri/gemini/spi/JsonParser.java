@@ -1,9 +1,21 @@
 package swiss.ameri.gemini.spi;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Used to (un-) marshal java objects (mainly {@code record}s) to JSON Strings.
  * To keep this library dependency free, no implementation is provided directly.
  * {@code swiss.ameri:gemini-gson} provides an example implementation using a gson dependency.
+ * <p>
+ * Only {@link #toJson(Object)} and {@link #fromJson(String, Class)} must be implemented. The streaming methods
+ * default to them, implementations should override them to avoid materializing large bodies as {@link String}s.
  */
 public interface JsonParser {
 
@@ -25,4 +37,85 @@ public interface JsonParser {
      */
     <T> T fromJson(String json, Class<T> clazz);
 
+    /**
+     * This method deserializes the specified UTF-8 encoded JSON into an object of the specified class.
+     * The buffer is only valid during the call, and must not be modified.
+     * The default implementation decodes the buffer to a {@link String} and calls {@link #fromJson(String, Class)}.
+     *
+     * @param json  to be deserialized, from its position to its limit
+     * @param clazz to be created from the json
+     * @param <T>   type of the class
+     * @return the deserialized object
+     */
+    default <T> T fromJson(ByteBuffer json, Class<T> clazz) {
+        String string;
+        if (json.hasArray()) {
+            string = new String(json.array(), json.arrayOffset() + json.position(), json.remaining(), StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[json.remaining()];
+            json.duplicate().get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return fromJson(string, clazz);
+    }
+
+    /**
+     * This method serializes the specified object into its equivalent JSON representation, and appends it to
+     * {@code out}. The default implementation appends the result of {@link #toJson(Object)}.
+     *
+     * @param object to be serialized
+     * @param out    to append the JSON to
+     * @throws IOException if appending fails
+     */
+    default void toJson(Object object, Appendable out) throws IOException {
+        out.append(toJson(object));
+    }
+
+    /**
+     * This method serializes the specified object into its equivalent UTF-8 encoded JSON representation, and writes
+     * it to {@code out}. The stream is flushed, but not closed.
+     * The default implementation writes the result of {@link #toJson(Object)}.
+     *
+     * @param object to be serialized
+     * @param out    to write the JSON to
+     * @throws IOException if writing fails
+     */
+    default void toJson(Object object, OutputStream out) throws IOException {
+        out.write(toJson(object).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * This method deserializes the JSON read from {@code json} into an object of the specified class.
+     * The reader is not closed.
+     * The default implementation reads everything into a {@link String} and calls {@link #fromJson(String, Class)}.
+     *
+     * @param json  to be deserialized
+     * @param clazz to be created from the json
+     * @param <T>   type of the class
+     * @return the deserialized object
+     * @throws IOException if reading fails
+     */
+    default <T> T fromJson(Reader json, Class<T> clazz) throws IOException {
+        var string = new StringWriter();
+        json.transferTo(string);
+        return fromJson(string.toString(), clazz);
+    }
+
+    /**
+     * This method deserializes the UTF-8 encoded JSON read from {@code json} into an object of the specified class.
+     * The stream is not closed.
+     * The default implementation decodes the stream with an {@link InputStreamReader}, and calls
+     * {@link #fromJson(Reader, Class)}.
+     *
+     * @param json  to be deserialized
+     * @param clazz to be created from the json
+     * @param <T>   type of the class
+     * @return the deserialized object
+     * @throws IOException if reading fails
+     */
+    default <T> T fromJson(InputStream json, Class<T> clazz) throws IOException {
+        return fromJson(new InputStreamReader(json, StandardCharsets.UTF_8), clazz);
+    }
+
 }
@@ -0,0 +1,121 @@
+package swiss.ameri.gemini.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EmbeddingDecoderTest {
+
+    @Test
+    void decodesPrettyPrintedResponse() {
+        String json = """
+                {
+                  "embeddings": [
+                    {
+                      "other": 1,
+                      "values": [
+                        0.5,
+                        -0.25
+                      ]
+                    },
+                    {
+                      "values": [1e-3, 2E+2],
+                      "statistics": {"truncated": false, "tokenCount": 3}
+                    }
+                  ]
+                }
+                """;
+
+        List<GenAi.ContentEmbedding> embeddings = decode(json);
+
+        assertEquals(2, embeddings.size());
+        assertArrayEquals(new float[]{0.5f, -0.25f}, embeddings.get(0).vector());
+        assertArrayEquals(new float[]{1e-3f, 2e2f}, embeddings.get(1).vector());
+    }
+
+    @Test
+    void decodesCompactResponse() {
+        List<GenAi.ContentEmbedding> embeddings = decode(
+                "{\"embeddings\":[{\"other\":1,\"values\":[0.5,-0.25]},{\"values\":[]}]}"
+        );
+
+        assertEquals(2, embeddings.size());
+        assertArrayEquals(new float[]{0.5f, -0.25f}, embeddings.get(0).vector());
+        assertArrayEquals(new float[0], embeddings.get(1).vector());
+    }
+
+    @Test
+    void skipsFieldsInAnyOrder() {
+        List<GenAi.ContentEmbedding> embeddings = decode("""
+                {
+                  "metadata": {"nested": [1, "two", {"three": null}], "flag": true},
+                  "embeddings": [ { "statistics": {}, "values": [ 3 ] } ],
+                  "tail": "x"
+                }""");
+
+        assertEquals(1, embeddings.size());
+        assertArrayEquals(new float[]{3f}, embeddings.get(0).vector());
+    }
+
+    @Test
+    void decodesEscapedKeys() {
+        List<GenAi.ContentEmbedding> embeddings = decode(
+                "{\"k\\\"ey\": \"\\u00e9\", \"embe\\u0064dings\": [{\"valu\\u0065s\": [1.5]}]}"
+        );
+
+        assertArrayEquals(new float[]{1.5f}, embeddings.get(0).vector());
+    }
+
+    @Test
+    void returnsNullWithoutEmbeddings() {
+        assertNull(decode("{ \"error\": {} }"));
+    }
+
+    @Test
+    void rejectsInvalidJson() {
+        assertThrows(GeminiException.class, () -> decode("{\"embeddings\": [{\"values\": [1, -]}]}"));
+        assertThrows(GeminiException.class, () -> decode("{\"embeddings\": [{\"values\": [1]}]} trailing"));
+        assertThrows(GeminiException.class, () -> decode("{\"embeddings\": [{\"other\": 1}]}"));
+    }
+
+    @Test
+    void parsesFloatsLikeFloatParseFloat() {
+        var random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            String number = switch (i % 5) {
+                case 0 -> Float.toString((random.nextFloat() - 0.5f) * 0.2f);
+                case 1 -> String.format(Locale.ROOT, "%.9f", (random.nextDouble() - 0.5) * 0.2);
+                case 2 -> String.format(Locale.ROOT, "%.15f", random.nextDouble() - 0.5);
+                case 3 -> Double.toString((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(60) - 30));
+                default -> String.format(Locale.ROOT, "%de%d", random.nextInt(2_000_000) - 1_000_000,
+                        random.nextInt(50) - 25);
+            };
+            assertSameFloat(number);
+        }
+        for (String number : List.of("0", "-0", "-0.0", "1E5", "1e+5", "1.5e-3", "123456789012345678901234567890",
+                "0.000000000000000000000000000000000000000000001", "3.4028235e38", "1e39")) {
+            assertSameFloat(number);
+        }
+    }
+
+    private static void assertSameFloat(String number) {
+        float decoded = decode("{\"embeddings\": [{\"values\": [" + number + "]}]}").get(0).vector()[0];
+        assertEquals(
+                Float.floatToRawIntBits(Float.parseFloat(number)),
+                Float.floatToRawIntBits(decoded),
+                number
+        );
+    }
+
+    private static List<GenAi.ContentEmbedding> decode(String json) {
+        return EmbeddingDecoder.decode(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
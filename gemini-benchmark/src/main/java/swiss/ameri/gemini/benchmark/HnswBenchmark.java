@@ -0,0 +1,102 @@
+package swiss.ameri.gemini.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import swiss.ameri.gemini.vector.HnswIndex;
+import swiss.ameri.gemini.vector.Match;
+import swiss.ameri.gemini.vector.VectorStore;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the latency of an approximate {@link HnswIndex} search to the exact {@link VectorStore} scan, on the same
+ * vectors. The recall@10 of the index, measured against the exact scan, is printed during the setup.
+ * The vectors are drawn around a number of topics, see {@link VectorSearchBenchmark#nearTopic(float[][], Random)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class HnswBenchmark {
+
+    private static final int DIMENSION = 768;
+    private static final int QUERIES = 100;
+    private static final int K = 10;
+
+    @Param({"20000"})
+    private int vectors;
+
+    @Param({"16", "64", "256"})
+    private int efSearch;
+
+    private VectorStore store;
+    private HnswIndex index;
+    private float[][] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(42);
+        float[][] topics = VectorSearchBenchmark.topics(random);
+        store = VectorStore.builder()
+                .dimension(DIMENSION)
+                .build();
+        index = HnswIndex.builder()
+                .dimension(DIMENSION)
+                .build();
+        long start = System.nanoTime();
+        for (int i = 0; i < vectors; i++) {
+            float[] vector = VectorSearchBenchmark.nearTopic(topics, random);
+            store.add(vector);
+            index.add(vector);
+        }
+        System.out.printf("%nBuilt index of %d vectors in %d ms%n", vectors, (System.nanoTime() - start) / 1_000_000);
+        queries = new float[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = VectorSearchBenchmark.nearTopic(topics, random);
+        }
+        System.out.printf("recall@%d with efSearch %d: %.3f%n", K, efSearch, recall());
+    }
+
+    @Benchmark
+    public List<Match> exactTop10() {
+        return store.search(nextQuery(), K);
+    }
+
+    @Benchmark
+    public List<Match> hnswTop10() {
+        return index.search(nextQuery(), K, efSearch);
+    }
+
+    private float[] nextQuery() {
+        return queries[next++ % QUERIES];
+    }
+
+    private double recall() {
+        int found = 0;
+        for (float[] query : queries) {
+            Set<Integer> exact = store.search(query, K).stream()
+                    .map(Match::id)
+                    .collect(Collectors.toSet());
+            found += (int) index.search(query, K, efSearch).stream()
+                    .filter(match -> exact.contains(match.id()))
+                    .count();
+        }
+        return found / (double) (QUERIES * K);
+    }
+}
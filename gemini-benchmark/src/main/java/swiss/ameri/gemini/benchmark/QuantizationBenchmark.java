@@ -0,0 +1,111 @@
+package swiss.ameri.gemini.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import swiss.ameri.gemini.vector.Match;
+import swiss.ameri.gemini.vector.QuantizedVectorStore;
+import swiss.ameri.gemini.vector.Quantization;
+import swiss.ameri.gemini.vector.VectorStore;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the latency of a {@link QuantizedVectorStore} scan, with and without rescoring, to the exact
+ * {@link VectorStore} scan. The recall@10 of the rescored search is printed during the setup. The vectors are drawn
+ * around a number of topics, see {@link VectorSearchBenchmark#nearTopic(float[][], Random)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class QuantizationBenchmark {
+
+    private static final int DIMENSION = 768;
+    private static final int QUERIES = 100;
+    private static final int K = 10;
+
+    @Param({"INT8", "BINARY"})
+    private Quantization quantization;
+
+    @Param({"100000"})
+    private int vectors;
+
+    @Param({"100", "1000"})
+    private int candidates;
+
+    private VectorStore store;
+    private QuantizedVectorStore quantized;
+    private float[][] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(42);
+        float[][] topics = VectorSearchBenchmark.topics(random);
+        store = VectorStore.builder()
+                .dimension(DIMENSION)
+                .build();
+        quantized = QuantizedVectorStore.builder()
+                .dimension(DIMENSION)
+                .quantization(quantization)
+                .build();
+        for (int i = 0; i < vectors; i++) {
+            float[] vector = VectorSearchBenchmark.nearTopic(topics, random);
+            store.add(vector);
+            quantized.add(vector);
+        }
+        queries = new float[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = VectorSearchBenchmark.nearTopic(topics, random);
+        }
+        System.out.printf("%n%s: %d bytes per vector, recall@%d with %d candidates: %.3f%n",
+                quantization, quantization.bytesPerVector(DIMENSION), K, candidates, recall());
+    }
+
+    @Benchmark
+    public List<Match> exactTop10() {
+        return store.search(nextQuery(), K);
+    }
+
+    @Benchmark
+    public List<Match> quantizedTop10() {
+        return quantized.search(nextQuery(), K);
+    }
+
+    @Benchmark
+    public List<Match> rescoredTop10() {
+        return quantized.search(nextQuery(), K, candidates, store::vector);
+    }
+
+    private float[] nextQuery() {
+        return queries[next++ % QUERIES];
+    }
+
+    private double recall() {
+        int found = 0;
+        for (float[] query : queries) {
+            Set<Integer> exact = store.search(query, K).stream()
+                    .map(Match::id)
+                    .collect(Collectors.toSet());
+            found += (int) quantized.search(query, K, candidates, store::vector).stream()
+                    .filter(match -> exact.contains(match.id()))
+                    .count();
+        }
+        return found / (double) (QUERIES * K);
+    }
+}
@@ -0,0 +1,114 @@
+package swiss.ameri.gemini.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import swiss.ameri.gemini.vector.DotProduct;
+import swiss.ameri.gemini.vector.Match;
+import swiss.ameri.gemini.vector.VectorStore;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scalar and the vectorized {@link DotProduct} kernels, on single dot products and on a full
+ * {@link VectorStore} scan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class VectorSearchBenchmark {
+
+    /**
+     * Dimension of text-embedding-004.
+     */
+    private static final int DIMENSION = 768;
+    private static final int TOPICS = 100;
+
+    @Param({"scalar", "vectorized"})
+    private String kernel;
+
+    @Param({"100000"})
+    private int vectors;
+
+    private DotProduct dotProduct;
+    private float[] a;
+    private float[] b;
+    private VectorStore store;
+    private float[] query;
+
+    @Setup
+    public void setUp() {
+        dotProduct = kernel.equals("scalar")
+                ? DotProduct.scalar()
+                : DotProduct.vectorized().orElseThrow(() -> new IllegalStateException("jdk.incubator.vector is missing"));
+        var random = new Random(42);
+        a = randomVector(random);
+        b = randomVector(random);
+        store = VectorStore.builder()
+                .dimension(DIMENSION)
+                .dotProduct(dotProduct)
+                .build();
+        for (int i = 0; i < vectors; i++) {
+            store.add(randomVector(random));
+        }
+        query = randomVector(random);
+    }
+
+    @Benchmark
+    public float dotProduct() {
+        return dotProduct.dot(a, b);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Match> searchTop10() {
+        return store.search(query, 10);
+    }
+
+    static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    static float[][] topics(Random random) {
+        float[][] topics = new float[TOPICS][];
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = randomVector(random);
+        }
+        return topics;
+    }
+
+    /**
+     * Create a vector close to one of the topics. Random vectors of a high dimension are almost orthogonal to each
+     * other, which is the worst case for any approximate search. Like real embeddings, the vectors of benchmarks of
+     * approximate searches are therefore drawn around a number of topics.
+     *
+     * @param topics to choose from
+     * @param random source
+     * @return a vector near a random topic
+     */
+    static float[] nearTopic(float[][] topics, Random random) {
+        float[] topic = topics[random.nextInt(topics.length)];
+        float[] vector = randomVector(random);
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = topic[i] + 0.5f * vector[i];
+        }
+        return vector;
+    }
+}
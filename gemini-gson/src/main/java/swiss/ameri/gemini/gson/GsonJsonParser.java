@@ -3,11 +3,23 @@ package swiss.ameri.gemini.gson;
 import com.google.gson.FieldNamingStrategy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import swiss.ameri.gemini.api.Schema;
 import swiss.ameri.gemini.spi.JsonParser;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Reference implementation of {@link JsonParser} using {@link Gson} dependency.
+ * The streaming methods are implemented with gson's {@link com.google.gson.stream.JsonWriter} and
+ * {@link com.google.gson.stream.JsonReader}, so that no intermediate {@link String} is created.
  */
 public class GsonJsonParser implements JsonParser {
 
@@ -49,4 +61,82 @@ public class GsonJsonParser implements JsonParser {
     public <T> T fromJson(String json, Class<T> clazz) {
         return gson.fromJson(json, clazz);
     }
+
+    @Override
+    public void toJson(Object object, Appendable out) throws IOException {
+        try {
+            gson.toJson(object, out);
+        } catch (JsonIOException e) {
+            throw unwrap(e);
+        }
+    }
+
+    @Override
+    public void toJson(Object object, OutputStream out) throws IOException {
+        // the writer buffers the encoded bytes, it must not be closed, since that would close the stream
+        var writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        toJson(object, writer);
+        writer.flush();
+    }
+
+    @Override
+    public <T> T fromJson(Reader json, Class<T> clazz) throws IOException {
+        try {
+            return gson.fromJson(json, clazz);
+        } catch (JsonIOException e) {
+            throw unwrap(e);
+        }
+    }
+
+    @Override
+    public <T> T fromJson(ByteBuffer json, Class<T> clazz) {
+        try {
+            return fromJson(new ByteBufferInputStream(json.duplicate()), clazz);
+        } catch (IOException e) {
+            // reading from memory does not fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static IOException unwrap(JsonIOException e) {
+        if (e.getCause() instanceof IOException ioException) {
+            return ioException;
+        }
+        throw e;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, so that they do not have to be copied into an array first.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
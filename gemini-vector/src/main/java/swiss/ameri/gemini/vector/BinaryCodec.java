@@ -0,0 +1,146 @@
+package swiss.ameri.gemini.vector;
+
+import swiss.ameri.gemini.api.GenAi;
+
+import java.util.Arrays;
+
+/**
+ * Binary quantization of vectors to their sign bits, which needs 32 times less memory than floats.
+ * <p>
+ * The bits are packed into {@code long}s, so that the Hamming distance of two vectors is a few XOR and
+ * {@link Long#bitCount(long)} instructions. For vectors of random direction, the angle between two vectors is about
+ * {@code pi * hamming / dimension}, from which {@link #similarity(BinaryVector, BinaryVector)} estimates the cosine
+ * similarity. The estimate is coarse, binary vectors are best used to select candidates which are then rescored with
+ * a more precise representation.
+ */
+public final class BinaryCodec {
+
+    private BinaryCodec() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Quantize an embedding.
+     *
+     * @param embedding to quantize
+     * @return the quantized embedding
+     */
+    public static BinaryVector encode(GenAi.ContentEmbedding embedding) {
+        return encode(embedding.vector());
+    }
+
+    /**
+     * Quantize a vector.
+     *
+     * @param vector to quantize, is not modified
+     * @return the sign bits of the vector
+     */
+    public static BinaryVector encode(float[] vector) {
+        long[] bits = new long[words(vector.length)];
+        encode(vector, bits, 0);
+        return new BinaryVector(bits, vector.length);
+    }
+
+    /**
+     * Count the dimensions in which the signs of two vectors differ.
+     *
+     * @param a first vector
+     * @param b second vector, with the dimension of the first
+     * @return the Hamming distance, within [0, dimension]
+     */
+    public static int hamming(BinaryVector a, BinaryVector b) {
+        if (a.dimension() != b.dimension()) {
+            throw new IllegalArgumentException("Vectors have different lengths: %d, %d"
+                    .formatted(a.dimension(), b.dimension()));
+        }
+        return hamming(a.bits(), 0, b.bits(), 0, a.bits().length);
+    }
+
+    /**
+     * Estimate the cosine similarity of two vectors from their Hamming distance.
+     *
+     * @param a first vector
+     * @param b second vector, with the dimension of the first
+     * @return the estimated cosine similarity
+     */
+    public static float similarity(BinaryVector a, BinaryVector b) {
+        return similarity(hamming(a, b), a.dimension());
+    }
+
+    static float similarity(int hamming, int dimension) {
+        return (float) Math.cos(Math.PI * hamming / dimension);
+    }
+
+    /**
+     * Get the number of longs which hold the bits of a vector.
+     *
+     * @param dimension of the vector
+     * @return the number of longs
+     */
+    static int words(int dimension) {
+        return (dimension + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * Quantize a vector into an array. Bit {@code i % 64} of word {@code i / 64} is set if dimension {@code i} is
+     * positive.
+     *
+     * @param vector to quantize
+     * @param target receives {@link #words(int)} longs
+     * @param offset of the first long in the target
+     */
+    static void encode(float[] vector, long[] target, int offset) {
+        int words = words(vector.length);
+        Arrays.fill(target, offset, offset + words, 0L);
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] > 0) {
+                target[offset + (i >>> 6)] |= 1L << i;
+            }
+        }
+    }
+
+    /**
+     * Compute the Hamming distance of two ranges of longs.
+     *
+     * @param a       first array
+     * @param aOffset of the first range
+     * @param b       second array
+     * @param bOffset of the second range
+     * @param words   length of both ranges
+     * @return the number of differing bits
+     */
+    static int hamming(long[] a, int aOffset, long[] b, int bOffset, int words) {
+        int distance = 0;
+        for (int i = 0; i < words; i++) {
+            distance += Long.bitCount(a[aOffset + i] ^ b[bOffset + i]);
+        }
+        return distance;
+    }
+
+    /**
+     * A vector quantized to its sign bits.
+     *
+     * @param bits      packed sign bits, see {@link #encode(float[])}. Not copied, must not be modified.
+     * @param dimension of the original vector
+     */
+    public record BinaryVector(
+            long[] bits,
+            int dimension
+    ) {
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BinaryVector other && dimension == other.dimension && Arrays.equals(bits, other.bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(bits) + dimension;
+        }
+
+        @Override
+        public String toString() {
+            return "BinaryVector{bits=" + Arrays.toString(bits) + ", dimension=" + dimension + '}';
+        }
+    }
+}
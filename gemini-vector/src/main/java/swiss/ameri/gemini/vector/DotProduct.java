@@ -0,0 +1,83 @@
+package swiss.ameri.gemini.vector;
+
+import java.util.Optional;
+
+/**
+ * Kernel to compute the dot product of two float or byte vectors. For normalized vectors, the dot product is the cosine
+ * similarity.
+ * <p>
+ * Two implementations are available: {@link #scalar()}, which works on every JVM, and {@link #vectorized()}, which
+ * uses SIMD instructions through the incubating {@code jdk.incubator.vector} module. The module is only available
+ * if the JVM is started with {@code --add-modules jdk.incubator.vector}. {@link #best()} picks the vectorized kernel
+ * if possible. Implementations are thread safe.
+ */
+public interface DotProduct {
+
+    /**
+     * Compute the dot product of two ranges of floats.
+     *
+     * @param a       first vector
+     * @param aOffset index of the first value in {@code a}
+     * @param b       second vector
+     * @param bOffset index of the first value in {@code b}
+     * @param length  number of values to multiply
+     * @return the sum of the products of the values
+     */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Compute the dot product of two vectors.
+     *
+     * @param a first vector
+     * @param b second vector, of the same length
+     * @return the sum of the products of the values
+     */
+    default float dot(float[] a, float[] b) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("Vectors have different lengths: %d, %d".formatted(a.length, b.length));
+        }
+        return dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Compute the integer dot product of two ranges of bytes, e.g. of {@link Int8Codec} quantized vectors.
+     * Cannot overflow for less than 133'000 values.
+     *
+     * @param a       first vector
+     * @param aOffset index of the first value in {@code a}
+     * @param b       second vector
+     * @param bOffset index of the first value in {@code b}
+     * @param length  number of values to multiply
+     * @return the sum of the products of the values
+     */
+    default int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        return Int8Codec.dot(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Get the scalar kernel, which works on every JVM.
+     *
+     * @return the scalar kernel
+     */
+    static DotProduct scalar() {
+        return ScalarDotProduct.INSTANCE;
+    }
+
+    /**
+     * Get the kernel which uses the {@code jdk.incubator.vector} module.
+     *
+     * @return the vectorized kernel, or an empty optional if the module has not been added to the JVM
+     */
+    static Optional<DotProduct> vectorized() {
+        return VectorizedDotProduct.Loader.INSTANCE;
+    }
+
+    /**
+     * Get the fastest available kernel.
+     *
+     * @return the vectorized kernel if available, the scalar kernel otherwise
+     */
+    static DotProduct best() {
+        return vectorized().orElse(scalar());
+    }
+}
@@ -0,0 +1,715 @@
+package swiss.ameri.gemini.vector;
+
+import swiss.ameri.gemini.api.GenAi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Approximate nearest neighbor index over embeddings, based on a hierarchical navigable small world (HNSW) graph.
+ * <p>
+ * Every vector is a node on level 0, and on each higher level with an exponentially decreasing probability. A node
+ * is linked to up to {@code m} similar nodes per level, {@code 2 * m} on level 0. A search descends greedily from the
+ * single node on the top level, and explores the {@code efSearch} most similar nodes on level 0. Higher values of
+ * {@code m}, {@code efConstruction} and {@code efSearch} increase the recall, at the cost of memory and latency.
+ * <p>
+ * Vectors can be added concurrently, and while searching. The neighbor lists are guarded per node, so inserts only
+ * contend on the nodes they link. Vectors cannot be removed.
+ * <p>
+ * The index can be {@link #save(Path) saved} to a file, and {@link #load(Path) loaded} from a memory mapped file
+ * without rebuilding the graph. This class is thread safe.
+ */
+public final class HnswIndex {
+
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int FORMAT_VERSION = 1;
+    // maximum bytes mapped at once, which must stay below Integer.MAX_VALUE
+    private static final int MAPPED_WINDOW = 1 << 30;
+    private static final int MAX_LEVEL = 16;
+
+    private final int m;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final VectorStore vectors;
+
+    private final Object lock = new Object();
+    // grown under lock. Elements are published by linking them into the graph, which synchronizes on the nodes.
+    private volatile Node[] nodes = new Node[1024];
+    private volatile EntryPoint entryPoint;
+
+    private HnswIndex(int dimension, int m, int efConstruction, DotProduct dotProduct) {
+        if (m < 2) {
+            throw new IllegalArgumentException("m must be at least 2: " + m);
+        }
+        if (efConstruction < m) {
+            throw new IllegalArgumentException("efConstruction must be at least m: " + efConstruction);
+        }
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1 / Math.log(m);
+        this.vectors = VectorStore.builder()
+                .dimension(dimension)
+                .dotProduct(Objects.requireNonNull(dotProduct, "dotProduct"))
+                .build();
+    }
+
+    /**
+     * Create a {@link HnswIndexBuilder} with default values: {@code m} 16, {@code efConstruction} 200 and the
+     * {@link DotProduct#best()} kernel. The dimension must be set.
+     *
+     * @return a new builder
+     */
+    public static HnswIndexBuilder builder() {
+        return new HnswIndexBuilder();
+    }
+
+    /**
+     * Add an embedding.
+     *
+     * @param embedding to add, with the dimension of this index
+     * @return the id of the embedding
+     */
+    public int add(GenAi.ContentEmbedding embedding) {
+        return add(embedding.vector());
+    }
+
+    /**
+     * Add a vector. Ids are assigned in the order in which concurrent calls register their vectors.
+     *
+     * @param vector to add, with the dimension of this index. Is not modified.
+     * @return the id of the vector
+     */
+    public int add(float[] vector) {
+        float[] normalized = Vectors.normalize(Vectors.requireDimension(vector, dimension()));
+        int level = Math.min(MAX_LEVEL, (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelMultiplier));
+        var node = new Node(level);
+        int id = register(normalized, node);
+        link(id, node, normalized);
+        return id;
+    }
+
+    /**
+     * Add multiple embeddings, e.g. the result of {@link GenAi#embedContents}.
+     *
+     * @param embeddings to add
+     * @return the ids of the embeddings, in order
+     */
+    public int[] addAll(List<GenAi.ContentEmbedding> embeddings) {
+        int[] ids = new int[embeddings.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = add(embeddings.get(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Find similar vectors.
+     *
+     * @param query    to search
+     * @param k        maximum number of matches
+     * @param efSearch number of candidates to explore, at least {@code k}. Higher values increase the recall.
+     * @return up to {@code k} matches, the most similar first
+     */
+    public List<Match> search(GenAi.ContentEmbedding query, int k, int efSearch) {
+        return search(query.vector(), k, efSearch);
+    }
+
+    /**
+     * Find similar vectors.
+     *
+     * @param query    to search, with the dimension of this index. Is not modified.
+     * @param k        maximum number of matches
+     * @param efSearch number of candidates to explore, at least {@code k}. Higher values increase the recall.
+     * @return up to {@code k} matches, the most similar first
+     */
+    public List<Match> search(float[] query, int k, int efSearch) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        float[] normalized = Vectors.normalize(Vectors.requireDimension(query, dimension()));
+        EntryPoint entry = entryPoint;
+        if (entry == null || k == 0) {
+            return List.of();
+        }
+        int current = entry.id();
+        for (int level = entry.level(); level > 0; level--) {
+            current = searchLayer(normalized, new int[]{current}, 1, level).toList().get(0).id();
+        }
+        // the candidates can never be more than the vectors
+        int ef = Math.min(Math.max(k, efSearch), size());
+        List<Match> matches = searchLayer(normalized, new int[]{current}, ef, 0).toList();
+        return matches.size() <= k ? matches : List.copyOf(matches.subList(0, k));
+    }
+
+    /**
+     * Get the number of vectors.
+     *
+     * @return the number of vectors
+     */
+    public int size() {
+        return vectors.size();
+    }
+
+    /**
+     * Get the dimension of the vectors.
+     *
+     * @return the dimension
+     */
+    public int dimension() {
+        return vectors.dimension();
+    }
+
+    private int register(float[] normalized, Node node) {
+        synchronized (lock) {
+            int id = vectors.addNormalized(normalized);
+            Node[] current = nodes;
+            if (id == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[id] = node;
+            nodes = current;
+            return id;
+        }
+    }
+
+    private void link(int id, Node node, float[] normalized) {
+        EntryPoint entry;
+        synchronized (lock) {
+            entry = entryPoint;
+            if (entry == null) {
+                entryPoint = new EntryPoint(id, node.level());
+                return;
+            }
+        }
+        int[] entryIds = {entry.id()};
+        for (int level = entry.level(); level > node.level(); level--) {
+            entryIds[0] = searchLayer(normalized, entryIds, 1, level).toList().get(0).id();
+        }
+        for (int level = Math.min(node.level(), entry.level()); level >= 0; level--) {
+            List<Match> candidates = new ArrayList<>(searchLayer(normalized, entryIds, efConstruction, level).toList());
+            // a concurrent insert may already have linked this node, and made it reachable
+            candidates.removeIf(candidate -> candidate.id() == id);
+            if (candidates.isEmpty()) {
+                continue;
+            }
+            for (int neighbor : selectNeighbors(candidates, maxNeighbors(level))) {
+                // connect instead of replacing the list, which may contain links of concurrent inserts
+                connect(id, neighbor, level);
+                connect(neighbor, id, level);
+            }
+            entryIds = candidates.stream().mapToInt(Match::id).toArray();
+        }
+        if (node.level() > entry.level()) {
+            synchronized (lock) {
+                if (node.level() > entryPoint.level()) {
+                    entryPoint = new EntryPoint(id, node.level());
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a link from a node, and drop its least useful link if it has too many.
+     */
+    private void connect(int from, int to, int level) {
+        Node node = nodes[from];
+        int max = maxNeighbors(level);
+        synchronized (node) {
+            int[] current = node.neighbors(level);
+            for (int neighbor : current) {
+                if (neighbor == to) {
+                    return;
+                }
+            }
+            if (current.length < max) {
+                int[] extended = Arrays.copyOf(current, current.length + 1);
+                extended[current.length] = to;
+                node.setNeighbors(level, extended);
+                return;
+            }
+            List<Match> candidates = new ArrayList<>(current.length + 1);
+            for (int neighbor : current) {
+                candidates.add(new Match(neighbor, vectors.score(from, neighbor)));
+            }
+            candidates.add(new Match(to, vectors.score(from, to)));
+            candidates.sort((a, b) -> Float.compare(b.score(), a.score()));
+            node.setNeighbors(level, selectNeighbors(candidates, max));
+        }
+    }
+
+    /**
+     * Select diverse neighbors: a candidate is skipped if it is more similar to an already selected neighbor than to
+     * the base node, since it can be reached through that neighbor.
+     *
+     * @param candidates sorted by their similarity to the base node, the most similar first
+     * @param max        number of neighbors
+     * @return the ids of the selected neighbors
+     */
+    private int[] selectNeighbors(List<Match> candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.size())];
+        int count = 0;
+        for (Match candidate : candidates) {
+            if (count == selected.length) {
+                break;
+            }
+            boolean diverse = true;
+            for (int i = 0; i < count && diverse; i++) {
+                diverse = vectors.score(candidate.id(), selected[i]) <= candidate.score();
+            }
+            if (diverse) {
+                selected[count++] = candidate.id();
+            }
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    private TopK searchLayer(float[] query, int[] entryIds, int ef, int level) {
+        var visited = Visited.get();
+        var candidates = new CandidateQueue();
+        var results = new TopK(ef);
+        for (int id : entryIds) {
+            if (visited.mark(id)) {
+                float score = vectors.score(query, id);
+                candidates.push(id, score);
+                results.offer(id, score);
+            }
+        }
+        while (!candidates.isEmpty()) {
+            float bestScore = candidates.peekScore();
+            if (bestScore < results.threshold()) {
+                break;
+            }
+            int best = candidates.pop();
+            for (int neighbor : nodes[best].neighborsSynchronized(level)) {
+                if (visited.mark(neighbor)) {
+                    float score = vectors.score(query, neighbor);
+                    if (score > results.threshold()) {
+                        candidates.push(neighbor, score);
+                        results.offer(neighbor, score);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private int maxNeighbors(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    /**
+     * Write the index to a file. The file is written to a temporary file first, and then moved into place.
+     * Must not be called while vectors are added.
+     *
+     * @param file to write
+     */
+    public void save(Path file) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                var buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+                int size = size();
+                EntryPoint entry = entryPoint;
+                for (int value : new int[]{MAGIC, FORMAT_VERSION, dimension(), m, efConstruction, size,
+                        entry == null ? -1 : entry.id(), entry == null ? -1 : entry.level()}) {
+                    buffer.putInt(value);
+                }
+                for (int id = 0; id < size; id++) {
+                    for (float value : vectors.vector(id)) {
+                        flushIfFull(channel, buffer, Float.BYTES);
+                        buffer.putFloat(value);
+                    }
+                }
+                for (int id = 0; id < size; id++) {
+                    Node node = nodes[id];
+                    flushIfFull(channel, buffer, Integer.BYTES);
+                    buffer.putInt(node.level());
+                    for (int level = 0; level <= node.level(); level++) {
+                        int[] neighbors = node.neighborsSynchronized(level);
+                        flushIfFull(channel, buffer, Integer.BYTES);
+                        buffer.putInt(neighbors.length);
+                        for (int neighbor : neighbors) {
+                            flushIfFull(channel, buffer, Integer.BYTES);
+                            buffer.putInt(neighbor);
+                        }
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void flushIfFull(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Load an index, which was written with {@link #save(Path)}, with the {@link DotProduct#best()} kernel.
+     *
+     * @param file to read
+     * @return the loaded index, to which further vectors can be added
+     */
+    public static HnswIndex load(Path file) {
+        return load(file, DotProduct.best());
+    }
+
+    /**
+     * Load an index, which was written with {@link #save(Path)}. The file is memory mapped, so that the graph is
+     * read at the speed of the page cache instead of being rebuilt.
+     *
+     * @param file       to read
+     * @param dotProduct kernel to compute the similarities
+     * @return the loaded index, to which further vectors can be added
+     * @throws IllegalArgumentException if the file is not a valid index, e.g. a link points outside the graph
+     */
+    public static HnswIndex load(Path file, DotProduct dotProduct) {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var input = new MappedInput(channel);
+            if (input.readInt() != MAGIC) {
+                throw new IllegalArgumentException("Not an HNSW index: " + file);
+            }
+            int version = input.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported format version %d: %s".formatted(version, file));
+            }
+            int dimension = input.readInt();
+            int m = input.readInt();
+            int efConstruction = input.readInt();
+            int size = input.readInt();
+            int entryId = input.readInt();
+            int entryLevel = input.readInt();
+            if (size < 0) {
+                throw new IllegalArgumentException("Invalid size %d: %s".formatted(size, file));
+            }
+            if (entryId < -1 || entryId >= size || (entryId == -1) != (size == 0)) {
+                throw new IllegalArgumentException("Invalid entry point %d: %s".formatted(entryId, file));
+            }
+            var index = new HnswIndex(dimension, m, efConstruction, dotProduct);
+            float[] vector = new float[dimension];
+            for (int id = 0; id < size; id++) {
+                input.readFloats(vector);
+                index.vectors.addNormalized(vector);
+            }
+            // leave room to add vectors, without overflowing for more than 2^30 of them
+            var nodes = new Node[size >= 1 << 29 ? size : Math.max(1024, Integer.highestOneBit(Math.max(1, size)) * 2)];
+            for (int id = 0; id < size; id++) {
+                int nodeLevel = input.readInt();
+                if (nodeLevel < 0 || nodeLevel > MAX_LEVEL) {
+                    throw new IllegalArgumentException("Invalid level %d of node %d: %s".formatted(nodeLevel, id, file));
+                }
+                var node = new Node(nodeLevel);
+                for (int level = 0; level <= nodeLevel; level++) {
+                    int count = input.readInt();
+                    if (count < 0 || count > index.maxNeighbors(level)) {
+                        throw new IllegalArgumentException(
+                                "Invalid neighbor count %d of node %d: %s".formatted(count, id, file)
+                        );
+                    }
+                    int[] neighbors = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        neighbors[i] = input.readInt();
+                        if (neighbors[i] < 0 || neighbors[i] >= size) {
+                            throw new IllegalArgumentException(
+                                    "Invalid neighbor %d of node %d: %s".formatted(neighbors[i], id, file)
+                            );
+                        }
+                    }
+                    node.setNeighbors(level, neighbors);
+                }
+                nodes[id] = node;
+            }
+            if (entryId >= 0 && (entryLevel < 0 || entryLevel != nodes[entryId].level())) {
+                throw new IllegalArgumentException("Invalid entry level %d: %s".formatted(entryLevel, file));
+            }
+            synchronized (index.lock) {
+                index.nodes = nodes;
+                index.entryPoint = entryId < 0 ? null : new EntryPoint(entryId, entryLevel);
+            }
+            return index;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private record EntryPoint(
+            int id,
+            int level
+    ) {
+    }
+
+    /**
+     * A node of the graph, with its neighbors per level. The neighbor arrays are replaced, never modified.
+     */
+    private static final class Node {
+
+        private final int[][] neighbors;
+
+        Node(int level) {
+            this.neighbors = new int[level + 1][];
+            Arrays.fill(neighbors, new int[0]);
+        }
+
+        int level() {
+            return neighbors.length - 1;
+        }
+
+        // must hold the monitor of this node, or be the only thread which knows the node
+        int[] neighbors(int level) {
+            return neighbors[level];
+        }
+
+        synchronized int[] neighborsSynchronized(int level) {
+            return neighbors[level];
+        }
+
+        synchronized void setNeighbors(int level, int[] ids) {
+            neighbors[level] = ids;
+        }
+    }
+
+    /**
+     * Max-heap of candidates, the most similar on top.
+     */
+    private static final class CandidateQueue {
+
+        private float[] scores = new float[64];
+        private int[] ids = new int[64];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        float peekScore() {
+            return scores[0];
+        }
+
+        void push(int id, float score) {
+            if (size == scores.length) {
+                scores = Arrays.copyOf(scores, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (scores[parent] >= score) {
+                    break;
+                }
+                scores[index] = scores[parent];
+                ids[index] = ids[parent];
+                index = parent;
+            }
+            scores[index] = score;
+            ids[index] = id;
+        }
+
+        int pop() {
+            int top = ids[0];
+            size--;
+            float score = scores[size];
+            int id = ids[size];
+            int index = 0;
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] > scores[child]) {
+                    child++;
+                }
+                if (scores[child] <= score) {
+                    break;
+                }
+                scores[index] = scores[child];
+                ids[index] = ids[child];
+                index = child;
+            }
+            scores[index] = score;
+            ids[index] = id;
+            return top;
+        }
+    }
+
+    /**
+     * Marks the visited nodes of a search. Reused per thread, and reset in constant time by increasing the mark.
+     */
+    private static final class Visited {
+
+        private static final ThreadLocal<Visited> INSTANCES = ThreadLocal.withInitial(Visited::new);
+
+        private int[] marks = new int[0];
+        private int mark;
+
+        static Visited get() {
+            Visited visited = INSTANCES.get();
+            if (++visited.mark == 0) {
+                Arrays.fill(visited.marks, 0);
+                visited.mark = 1;
+            }
+            return visited;
+        }
+
+        /**
+         * @return {@code true} if the node had not been visited yet
+         */
+        boolean mark(int id) {
+            if (id >= marks.length) {
+                // nodes added since the last search are unmarked
+                marks = Arrays.copyOf(marks, Math.max(id + 1, marks.length * 2));
+            } else if (marks[id] == mark) {
+                return false;
+            }
+            marks[id] = mark;
+            return true;
+        }
+    }
+
+    /**
+     * Reads a file sequentially through memory mapped windows, since a single mapping is limited to 2 GiB.
+     */
+    private static final class MappedInput {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        int readInt() throws IOException {
+            ensure(Integer.BYTES);
+            return window.getInt();
+        }
+
+        void readFloats(float[] target) throws IOException {
+            int offset = 0;
+            while (offset < target.length) {
+                ensure(Float.BYTES);
+                int count = Math.min(target.length - offset, window.remaining() / Float.BYTES);
+                window.asFloatBuffer().get(target, offset, count);
+                window.position(window.position() + count * Float.BYTES);
+                offset += count;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                long position = windowStart + window.position();
+                if (size - position < bytes) {
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+                map(position);
+            }
+        }
+
+        private void map(long position) throws IOException {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW, size - position));
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Builder for {@link HnswIndex}. Not thread-safe.
+     */
+    public static class HnswIndexBuilder {
+        private int dimension;
+        private int m = 16;
+        private int efConstruction = 200;
+        private DotProduct dotProduct = DotProduct.best();
+
+        private HnswIndexBuilder() {
+        }
+
+        /**
+         * Set the dimension of the vectors, e.g. 768 for {@code text-embedding-004}.
+         *
+         * @param dimension to set. Must be positive.
+         * @return this
+         */
+        public HnswIndexBuilder dimension(int dimension) {
+            this.dimension = dimension;
+            return this;
+        }
+
+        /**
+         * Set the number of links per node and level. Level 0 has twice as many links.
+         *
+         * @param m at least 2, typically between 8 and 64
+         * @return this
+         */
+        public HnswIndexBuilder m(int m) {
+            this.m = m;
+            return this;
+        }
+
+        /**
+         * Set the number of candidates explored when a vector is added.
+         *
+         * @param efConstruction at least {@code m}
+         * @return this
+         */
+        public HnswIndexBuilder efConstruction(int efConstruction) {
+            this.efConstruction = efConstruction;
+            return this;
+        }
+
+        /**
+         * Set the kernel to compute the similarities.
+         *
+         * @param dotProduct to use
+         * @return this
+         */
+        public HnswIndexBuilder dotProduct(DotProduct dotProduct) {
+            this.dotProduct = dotProduct;
+            return this;
+        }
+
+        /**
+         * Build the index.
+         *
+         * @return a new, empty {@link HnswIndex}
+         */
+        public HnswIndex build() {
+            return new HnswIndex(dimension, m, efConstruction, dotProduct);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package swiss.ameri.gemini.vector;
+
+import swiss.ameri.gemini.api.GenAi;
+
+import java.util.Arrays;
+
+/**
+ * Scalar quantization of vectors to one signed byte per dimension, which needs 4 times less memory than floats.
+ * <p>
+ * A vector is normalized, and then scaled per vector so that its largest absolute value maps to 127. The scale is
+ * kept next to the bytes, so that the cosine similarity of two quantized vectors is their integer dot product times
+ * both scales. The error of a similarity is typically below 0.01 for embeddings of a few hundred dimensions.
+ */
+public final class Int8Codec {
+
+    private Int8Codec() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Quantize an embedding.
+     *
+     * @param embedding to quantize
+     * @return the quantized embedding
+     */
+    public static Int8Vector encode(GenAi.ContentEmbedding embedding) {
+        return encode(embedding.vector());
+    }
+
+    /**
+     * Quantize a vector.
+     *
+     * @param vector to quantize, is not modified
+     * @return the quantized, normalized vector
+     */
+    public static Int8Vector encode(float[] vector) {
+        byte[] values = new byte[vector.length];
+        float scale = encodeNormalized(Vectors.normalize(vector), values, 0);
+        return new Int8Vector(values, scale);
+    }
+
+    /**
+     * Restore an approximation of the normalized vector.
+     *
+     * @param vector to restore
+     * @return the normalized floats
+     */
+    public static float[] decode(Int8Vector vector) {
+        float[] decoded = new float[vector.values().length];
+        for (int i = 0; i < decoded.length; i++) {
+            decoded[i] = vector.values()[i] * vector.scale();
+        }
+        return decoded;
+    }
+
+    /**
+     * Approximate the cosine similarity of two quantized vectors.
+     *
+     * @param a first vector
+     * @param b second vector, with the dimension of the first
+     * @return the cosine similarity
+     */
+    public static float similarity(Int8Vector a, Int8Vector b) {
+        if (a.values().length != b.values().length) {
+            throw new IllegalArgumentException("Vectors have different lengths: %d, %d"
+                    .formatted(a.values().length, b.values().length));
+        }
+        return dot(a.values(), 0, b.values(), 0, a.values().length) * a.scale() * b.scale();
+    }
+
+    /**
+     * Quantize a normalized vector into an array.
+     *
+     * @param normalized to quantize
+     * @param target     receives {@code normalized.length} bytes
+     * @param offset     of the first byte in the target
+     * @return the scale, by which the bytes must be multiplied to restore the vector
+     */
+    static float encodeNormalized(float[] normalized, byte[] target, int offset) {
+        float max = 0;
+        for (float value : normalized) {
+            max = Math.max(max, Math.abs(value));
+        }
+        if (max == 0) {
+            Arrays.fill(target, offset, offset + normalized.length, (byte) 0);
+            return 0;
+        }
+        float scale = max / 127;
+        float inverse = 127 / max;
+        for (int i = 0; i < normalized.length; i++) {
+            target[offset + i] = (byte) Math.round(normalized[i] * inverse);
+        }
+        return scale;
+    }
+
+    /**
+     * Compute the integer dot product of two byte ranges, which cannot overflow for less than 133'000 dimensions.
+     *
+     * @param a       first array
+     * @param aOffset of the first range
+     * @param b       second array
+     * @param bOffset of the second range
+     * @param length  of both ranges
+     * @return the dot product
+     */
+    static int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int sum0 = 0;
+        int sum1 = 0;
+        int sum2 = 0;
+        int sum3 = 0;
+        int i = 0;
+        for (int bound = length - 3; i < bound; i += 4) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+            sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum0 + sum1 + sum2 + sum3;
+    }
+
+    /**
+     * A vector quantized to bytes.
+     *
+     * @param values quantized values, one per dimension. Not copied, must not be modified.
+     * @param scale  by which the values must be multiplied to restore the normalized vector
+     */
+    public record Int8Vector(
+            byte[] values,
+            float scale
+    ) {
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Int8Vector other && scale == other.scale && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(values) + Float.hashCode(scale);
+        }
+
+        @Override
+        public String toString() {
+            return "Int8Vector{values=" + Arrays.toString(values) + ", scale=" + scale + '}';
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package swiss.ameri.gemini.vector;
+
+/**
+ * A vector found by a similarity search.
+ *
+ * @param id    of the vector, as returned when it was added
+ * @param score cosine similarity to the query, within [-1.0, 1.0]. Higher is more similar.
+ */
+public record Match(
+        int id,
+        float score
+) {
+}
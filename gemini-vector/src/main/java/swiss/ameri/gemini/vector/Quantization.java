@@ -0,0 +1,32 @@
+package swiss.ameri.gemini.vector;
+
+/**
+ * Compact representations of vectors, used by {@link QuantizedVectorStore}.
+ */
+public enum Quantization {
+
+    /**
+     * One byte per dimension, plus a float scale per vector, see {@link Int8Codec}.
+     * A 768 dimensional vector needs 772 bytes instead of 3072.
+     */
+    INT8,
+
+    /**
+     * One bit per dimension, see {@link BinaryCodec}.
+     * A 768 dimensional vector needs 96 bytes instead of 3072.
+     */
+    BINARY;
+
+    /**
+     * Get the memory needed per vector.
+     *
+     * @param dimension of the vectors
+     * @return the number of bytes per vector
+     */
+    public long bytesPerVector(int dimension) {
+        return switch (this) {
+            case INT8 -> dimension + Float.BYTES;
+            case BINARY -> (long) BinaryCodec.words(dimension) * Long.BYTES;
+        };
+    }
+}
@@ -0,0 +1,404 @@
+package swiss.ameri.gemini.vector;
+
+import swiss.ameri.gemini.api.GenAi;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+/**
+ * In-memory store of quantized embeddings, with an approximate cosine similarity search.
+ * <p>
+ * Like {@link VectorStore}, vectors are stored back to back in large pages and searched with a parallel scan. Only the
+ * {@link Quantization} of each vector is kept, which needs 4 ({@link Quantization#INT8}) to 32
+ * ({@link Quantization#BINARY}) times less memory, and is faster to scan since the scan is bound by memory bandwidth.
+ * <p>
+ * The scores of a quantized search are approximate, so that the order of close matches may differ from an exact
+ * search. {@link #search(float[], int, int, IntFunction)} therefore selects more candidates than needed, and rescores
+ * them against the full precision vectors, which may be kept in a slower storage, e.g. a {@link VectorStore} or a
+ * file.
+ * <p>
+ * Vectors can be added while searching, a search only sees the vectors which were added before it started.
+ * Vectors cannot be removed. This class is thread safe.
+ */
+public final class QuantizedVectorStore {
+
+    // 64 MiB per page, as in VectorStore
+    private static final int PAGE_BYTES = 1 << 26;
+    private static final int VECTORS_PER_TASK = 1 << 14;
+
+    private final int dimension;
+    private final Quantization quantization;
+    // bytes per vector for INT8, longs per vector for BINARY
+    private final int stride;
+    private final int vectorsPerPage;
+    private final DotProduct dotProduct;
+    private final ForkJoinPool pool;
+
+    private final Object lock = new Object();
+    // replaced when a page is added, and published by the write to size. Only the pages of the quantization are used.
+    private volatile byte[][] bytePages = new byte[0][];
+    private volatile float[][] scalePages = new float[0][];
+    private volatile long[][] bitPages = new long[0][];
+    private volatile int size;
+
+    private QuantizedVectorStore(QuantizedVectorStoreBuilder builder) {
+        if (builder.dimension < 1) {
+            throw new IllegalArgumentException("dimension must be positive: " + builder.dimension);
+        }
+        this.dimension = builder.dimension;
+        this.quantization = Objects.requireNonNull(builder.quantization, "quantization");
+        this.stride = quantization == Quantization.INT8 ? dimension : BinaryCodec.words(dimension);
+        this.vectorsPerPage = Math.max(1, (int) (PAGE_BYTES / quantization.bytesPerVector(dimension)));
+        this.dotProduct = Objects.requireNonNull(builder.dotProduct, "dotProduct");
+        this.pool = Objects.requireNonNull(builder.pool, "pool");
+    }
+
+    /**
+     * Create a {@link QuantizedVectorStoreBuilder} with default values: {@link Quantization#INT8}, the
+     * {@link DotProduct#best()} kernel and the {@link ForkJoinPool#commonPool()}. The dimension must be set.
+     *
+     * @return a new builder
+     */
+    public static QuantizedVectorStoreBuilder builder() {
+        return new QuantizedVectorStoreBuilder();
+    }
+
+    /**
+     * Add an embedding.
+     *
+     * @param embedding to add, with the dimension of this store
+     * @return the id of the embedding, which is its index in the order of insertion
+     */
+    public int add(GenAi.ContentEmbedding embedding) {
+        return add(embedding.vector());
+    }
+
+    /**
+     * Add a vector.
+     *
+     * @param vector to add, with the dimension of this store. Is not modified.
+     * @return the id of the vector, which is its index in the order of insertion
+     */
+    public int add(float[] vector) {
+        float[] normalized = Vectors.normalize(Vectors.requireDimension(vector, dimension));
+        synchronized (lock) {
+            int id = size;
+            int page = id / vectorsPerPage;
+            int offset = (id % vectorsPerPage) * stride;
+            if (quantization == Quantization.INT8) {
+                if (page == bytePages.length) {
+                    bytePages = append(bytePages, new byte[vectorsPerPage * stride]);
+                    scalePages = append(scalePages, new float[vectorsPerPage]);
+                }
+                scalePages[page][id % vectorsPerPage] = Int8Codec.encodeNormalized(normalized, bytePages[page], offset);
+            } else {
+                if (page == bitPages.length) {
+                    bitPages = append(bitPages, new long[vectorsPerPage * stride]);
+                }
+                BinaryCodec.encode(normalized, bitPages[page], offset);
+            }
+            size = id + 1;
+            return id;
+        }
+    }
+
+    private static <T> T[] append(T[] pages, T page) {
+        T[] extended = Arrays.copyOf(pages, pages.length + 1);
+        extended[pages.length] = page;
+        return extended;
+    }
+
+    /**
+     * Add multiple embeddings, e.g. the result of {@link GenAi#embedContents}.
+     *
+     * @param embeddings to add, in order
+     * @return the id of the first embedding. The others have consecutive ids.
+     */
+    public int addAll(List<GenAi.ContentEmbedding> embeddings) {
+        synchronized (lock) {
+            int first = size;
+            for (GenAi.ContentEmbedding embedding : embeddings) {
+                add(embedding);
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Find the most similar vectors, by their approximate scores.
+     *
+     * @param query to search
+     * @param k     maximum number of matches
+     * @return up to {@code k} matches, the most similar first
+     */
+    public List<Match> search(GenAi.ContentEmbedding query, int k) {
+        return search(query.vector(), k);
+    }
+
+    /**
+     * Find the most similar vectors, by their approximate scores.
+     *
+     * @param query to search, with the dimension of this store. Is not modified.
+     * @param k     maximum number of matches
+     * @return up to {@code k} matches, the most similar first
+     */
+    public List<Match> search(float[] query, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        return scan(Vectors.normalize(Vectors.requireDimension(query, dimension)), k).toList();
+    }
+
+    /**
+     * Find the most similar vectors, by selecting candidates with their approximate scores, and then rescoring the
+     * candidates with their full precision vectors.
+     *
+     * @param query         to search, with the dimension of this store. Is not modified.
+     * @param k             maximum number of matches
+     * @param candidates    number of candidates to rescore, at least {@code k}. A few times {@code k} is usually
+     *                      enough for {@link Quantization#INT8}, {@link Quantization#BINARY} needs more.
+     * @param fullPrecision returns the full precision vector of an id, e.g. {@link VectorStore#vector(int)} of a store
+     *                      to which the same vectors were added in the same order. Does not need to be normalized.
+     * @return up to {@code k} matches with their exact scores, the most similar first
+     */
+    public List<Match> search(float[] query, int k, int candidates, IntFunction<float[]> fullPrecision) {
+        if (candidates < k) {
+            throw new IllegalArgumentException("candidates must be at least k: " + candidates);
+        }
+        Objects.requireNonNull(fullPrecision, "fullPrecision");
+        List<Match> approximate = search(query, candidates);
+        float[] normalized = Vectors.normalize(query);
+        var rescored = new TopK(Math.min(k, approximate.size()));
+        for (Match match : approximate) {
+            float[] vector = Vectors.normalize(Vectors.requireDimension(fullPrecision.apply(match.id()), dimension));
+            rescored.offer(match.id(), dotProduct.dot(normalized, vector));
+        }
+        return rescored.toList();
+    }
+
+    /**
+     * Find the most similar embeddings, see {@link #search(float[], int, int, IntFunction)}.
+     *
+     * @param query         to search
+     * @param k             maximum number of matches
+     * @param candidates    number of candidates to rescore, at least {@code k}
+     * @param fullPrecision returns the full precision vector of an id
+     * @return up to {@code k} matches with their exact scores, the most similar first
+     */
+    public List<Match> search(GenAi.ContentEmbedding query, int k, int candidates, IntFunction<float[]> fullPrecision) {
+        return search(query.vector(), k, candidates, fullPrecision);
+    }
+
+    private TopK scan(float[] normalized, int k) {
+        // read size first, which makes all vectors up to size visible
+        int end = size;
+        // every task keeps up to k matches, which can never be more than the stored vectors
+        k = Math.min(k, end);
+        Scan scan;
+        if (quantization == Quantization.INT8) {
+            byte[] values = new byte[dimension];
+            float scale = Int8Codec.encodeNormalized(normalized, values, 0);
+            scan = new Int8Scan(bytePages, scalePages, values, scale, k, 0, end);
+        } else {
+            long[] bits = new long[stride];
+            BinaryCodec.encode(normalized, bits, 0);
+            scan = new BinaryScan(bitPages, bits, k, 0, end);
+        }
+        return end <= VECTORS_PER_TASK ? scan.compute() : pool.invoke(scan);
+    }
+
+    /**
+     * Get the number of stored vectors.
+     *
+     * @return the number of stored vectors
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the dimension of the stored vectors.
+     *
+     * @return the dimension
+     */
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Get the quantization of the stored vectors.
+     *
+     * @return the quantization
+     */
+    public Quantization quantization() {
+        return quantization;
+    }
+
+    /**
+     * Scans a range of vectors, splitting it while it is too large for one task.
+     */
+    private abstract class Scan extends RecursiveTask<TopK> {
+
+        final int k;
+        final int from;
+        final int to;
+
+        Scan(int k, int from, int to) {
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract Scan split(int from, int to);
+
+        abstract void scan(TopK topK);
+
+        @Override
+        protected TopK compute() {
+            if (to - from > VECTORS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                Scan left = split(from, middle);
+                Scan right = split(middle, to);
+                left.fork();
+                TopK result = right.compute();
+                result.addAll(left.join());
+                return result;
+            }
+            var topK = new TopK(k);
+            scan(topK);
+            return topK;
+        }
+    }
+
+    private final class Int8Scan extends Scan {
+
+        private final byte[][] pages;
+        private final float[][] scales;
+        private final byte[] query;
+        private final float queryScale;
+
+        Int8Scan(byte[][] pages, float[][] scales, byte[] query, float queryScale, int k, int from, int to) {
+            super(k, from, to);
+            this.pages = pages;
+            this.scales = scales;
+            this.query = query;
+            this.queryScale = queryScale;
+        }
+
+        @Override
+        Scan split(int from, int to) {
+            return new Int8Scan(pages, scales, query, queryScale, k, from, to);
+        }
+
+        @Override
+        void scan(TopK topK) {
+            for (int id = from; id < to; id++) {
+                int page = id / vectorsPerPage;
+                int index = id % vectorsPerPage;
+                int dot = dotProduct.dot(query, 0, pages[page], index * stride, stride);
+                topK.offer(id, dot * queryScale * scales[page][index]);
+            }
+        }
+    }
+
+    private final class BinaryScan extends Scan {
+
+        private final long[][] pages;
+        private final long[] query;
+
+        BinaryScan(long[][] pages, long[] query, int k, int from, int to) {
+            super(k, from, to);
+            this.pages = pages;
+            this.query = query;
+        }
+
+        @Override
+        Scan split(int from, int to) {
+            return new BinaryScan(pages, query, k, from, to);
+        }
+
+        @Override
+        void scan(TopK topK) {
+            // rank by the Hamming distance, and only compute the estimated similarity for the kept matches
+            var byDistance = new TopK(k);
+            for (int id = from; id < to; id++) {
+                int distance = BinaryCodec.hamming(query, 0, pages[id / vectorsPerPage], (id % vectorsPerPage) * stride, stride);
+                byDistance.offer(id, -distance);
+            }
+            for (Match match : byDistance.toList()) {
+                topK.offer(match.id(), BinaryCodec.similarity((int) -match.score(), dimension));
+            }
+        }
+    }
+
+    /**
+     * Builder for {@link QuantizedVectorStore}. Not thread-safe.
+     */
+    public static class QuantizedVectorStoreBuilder {
+        private int dimension;
+        private Quantization quantization = Quantization.INT8;
+        private DotProduct dotProduct = DotProduct.best();
+        private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        private QuantizedVectorStoreBuilder() {
+        }
+
+        /**
+         * Set the dimension of the vectors, e.g. 768 for {@code text-embedding-004}.
+         *
+         * @param dimension to set. Must be positive.
+         * @return this
+         */
+        public QuantizedVectorStoreBuilder dimension(int dimension) {
+            this.dimension = dimension;
+            return this;
+        }
+
+        /**
+         * Set the quantization of the stored vectors.
+         *
+         * @param quantization to use
+         * @return this
+         */
+        public QuantizedVectorStoreBuilder quantization(Quantization quantization) {
+            this.quantization = quantization;
+            return this;
+        }
+
+        /**
+         * Set the kernel to scan {@link Quantization#INT8} vectors, and to rescore the candidates with their full
+         * precision vectors.
+         *
+         * @param dotProduct to use
+         * @return this
+         */
+        public QuantizedVectorStoreBuilder dotProduct(DotProduct dotProduct) {
+            this.dotProduct = dotProduct;
+            return this;
+        }
+
+        /**
+         * Set the pool which scans in parallel.
+         *
+         * @param pool to use
+         * @return this
+         */
+        public QuantizedVectorStoreBuilder pool(ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Build the store.
+         *
+         * @return a new, empty {@link QuantizedVectorStore}
+         */
+        public QuantizedVectorStore build() {
+            return new QuantizedVectorStore(this);
+        }
+    }
+}
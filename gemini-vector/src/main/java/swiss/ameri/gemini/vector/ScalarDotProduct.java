@@ -0,0 +1,32 @@
+package swiss.ameri.gemini.vector;
+
+/**
+ * {@link DotProduct} without SIMD instructions. Sums into four independent accumulators, so that the multiplications
+ * do not wait for each other.
+ */
+final class ScalarDotProduct implements DotProduct {
+
+    static final ScalarDotProduct INSTANCE = new ScalarDotProduct();
+
+    private ScalarDotProduct() {
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum0 = 0;
+        float sum1 = 0;
+        float sum2 = 0;
+        float sum3 = 0;
+        int i = 0;
+        for (int bound = length & ~3; i < bound; i += 4) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+            sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+}
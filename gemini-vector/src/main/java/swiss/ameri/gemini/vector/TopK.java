@@ -0,0 +1,126 @@
+package swiss.ameri.gemini.vector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the {@code k} best scores offered to it, in a min-heap of primitive arrays, so that offering a score which
+ * does not make it into the top k is a single comparison. Scores are ordered by {@link Float#compare(float, float)},
+ * ties are broken by the lower id. Not thread safe.
+ */
+final class TopK {
+
+    private final int k;
+    private final float[] scores;
+    private final int[] ids;
+    private int size;
+
+    TopK(int k) {
+        this.k = k;
+        this.scores = new float[k];
+        this.ids = new int[k];
+    }
+
+    /**
+     * Offer a score.
+     *
+     * @param id    of the vector
+     * @param score of the vector
+     */
+    void offer(int id, float score) {
+        if (size < k) {
+            scores[size] = score;
+            ids[size] = id;
+            siftUp(size++);
+        } else if (k > 0 && isBetter(score, id, scores[0], ids[0])) {
+            scores[0] = score;
+            ids[0] = id;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Offer all scores of another instance.
+     *
+     * @param other to merge into this
+     */
+    void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Get the lowest score which is currently kept.
+     *
+     * @return the lowest score, or negative infinity if less than k scores have been offered
+     */
+    float threshold() {
+        return size < k ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the kept scores.
+     *
+     * @return the matches, best first
+     */
+    List<Match> toList() {
+        List<Match> matches = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            matches.add(new Match(ids[i], scores[i]));
+        }
+        matches.sort((a, b) -> {
+            int byScore = Float.compare(b.score(), a.score());
+            return byScore != 0 ? byScore : Integer.compare(a.id(), b.id());
+        });
+        return matches;
+    }
+
+    private static boolean isBetter(float score, int id, float otherScore, int otherId) {
+        int byScore = Float.compare(score, otherScore);
+        return byScore > 0 || byScore == 0 && id < otherId;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBetter(scores[parent], ids[parent], scores[index], ids[index])) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int worst = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && isBetter(scores[worst], ids[worst], scores[left], ids[left])) {
+                worst = left;
+            }
+            if (right < size && isBetter(scores[worst], ids[worst], scores[right], ids[right])) {
+                worst = right;
+            }
+            if (worst == index) {
+                return;
+            }
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        float score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+}
@@ -0,0 +1,297 @@
+package swiss.ameri.gemini.vector;
+
+import swiss.ameri.gemini.api.GenAi;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * In-memory store of embeddings, with an exact cosine similarity search.
+ * <p>
+ * Vectors are normalized when they are added, and stored back to back in large {@code float[]} pages, so that a search
+ * is a sequential scan of dot products without any indirection. The scan is split into ranges, which are searched in
+ * parallel in a {@link ForkJoinPool}, and each range keeps its own top k before the results are merged.
+ * <p>
+ * Vectors can be added while searching, a search only sees the vectors which were added before it started.
+ * Vectors cannot be removed. This class is thread safe.
+ */
+public final class VectorStore {
+
+    // 64 MiB per page, so that the store can grow beyond the maximum array length
+    private static final int PAGE_FLOATS = 1 << 24;
+    // vectors scanned by one task, before the scan is split further
+    private static final int VECTORS_PER_TASK = 1 << 14;
+
+    private final int dimension;
+    private final int vectorsPerPage;
+    private final DotProduct dotProduct;
+    private final ForkJoinPool pool;
+
+    private final Object lock = new Object();
+    // replaced when a page is added, and published by the write to size
+    private volatile float[][] pages = new float[0][];
+    private volatile int size;
+
+    private VectorStore(VectorStoreBuilder builder) {
+        if (builder.dimension < 1) {
+            throw new IllegalArgumentException("dimension must be positive: " + builder.dimension);
+        }
+        this.dimension = builder.dimension;
+        this.vectorsPerPage = Math.max(1, PAGE_FLOATS / dimension);
+        this.dotProduct = Objects.requireNonNull(builder.dotProduct, "dotProduct");
+        this.pool = Objects.requireNonNull(builder.pool, "pool");
+    }
+
+    /**
+     * Create a {@link VectorStoreBuilder} with default values: the {@link DotProduct#best()} kernel and the
+     * {@link ForkJoinPool#commonPool()}. The dimension must be set.
+     *
+     * @return a new builder
+     */
+    public static VectorStoreBuilder builder() {
+        return new VectorStoreBuilder();
+    }
+
+    /**
+     * Add an embedding.
+     *
+     * @param embedding to add, with the dimension of this store
+     * @return the id of the embedding, which is its index in the order of insertion
+     */
+    public int add(GenAi.ContentEmbedding embedding) {
+        return add(embedding.vector());
+    }
+
+    /**
+     * Add a vector.
+     *
+     * @param vector to add, with the dimension of this store. Is not modified.
+     * @return the id of the vector, which is its index in the order of insertion
+     */
+    public int add(float[] vector) {
+        return addNormalized(Vectors.normalize(Vectors.requireDimension(vector, dimension)));
+    }
+
+    /**
+     * Add a vector which is already normalized.
+     *
+     * @param normalized to add, with the dimension of this store
+     * @return the id of the vector
+     */
+    int addNormalized(float[] normalized) {
+        synchronized (lock) {
+            int id = size;
+            int page = id / vectorsPerPage;
+            float[][] current = pages;
+            if (page == current.length) {
+                current = Arrays.copyOf(current, page + 1);
+                current[page] = new float[vectorsPerPage * dimension];
+                pages = current;
+            }
+            System.arraycopy(normalized, 0, current[page], (id % vectorsPerPage) * dimension, dimension);
+            size = id + 1;
+            return id;
+        }
+    }
+
+    /**
+     * Add multiple embeddings, e.g. the result of {@link GenAi#embedContents}.
+     *
+     * @param embeddings to add, in order
+     * @return the id of the first embedding. The others have consecutive ids.
+     */
+    public int addAll(List<GenAi.ContentEmbedding> embeddings) {
+        synchronized (lock) {
+            int first = size;
+            for (GenAi.ContentEmbedding embedding : embeddings) {
+                add(embedding);
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Get a stored vector.
+     *
+     * @param id of the vector
+     * @return a copy of the normalized vector
+     */
+    public float[] vector(int id) {
+        Objects.checkIndex(id, size);
+        float[] vector = new float[dimension];
+        System.arraycopy(pages[id / vectorsPerPage], (id % vectorsPerPage) * dimension, vector, 0, dimension);
+        return vector;
+    }
+
+    /**
+     * Find the most similar vectors.
+     *
+     * @param query to search
+     * @param k     maximum number of matches
+     * @return up to {@code k} matches, the most similar first
+     */
+    public List<Match> search(GenAi.ContentEmbedding query, int k) {
+        return search(query.vector(), k);
+    }
+
+    /**
+     * Find the most similar vectors.
+     *
+     * @param query to search, with the dimension of this store. Is not modified.
+     * @param k     maximum number of matches
+     * @return up to {@code k} matches, the most similar first
+     */
+    public List<Match> search(float[] query, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        float[] normalized = Vectors.normalize(Vectors.requireDimension(query, dimension));
+        // read size first, which makes all vectors up to size visible
+        int end = size;
+        float[][] snapshot = pages;
+        // every task keeps up to k matches, which can never be more than the stored vectors
+        var scan = new Scan(snapshot, normalized, Math.min(k, end), 0, end);
+        TopK topK = end <= VECTORS_PER_TASK ? scan.compute() : pool.invoke(scan);
+        return topK.toList();
+    }
+
+    /**
+     * Compute the similarity of a normalized query to a stored vector.
+     *
+     * @param normalizedQuery with the dimension of this store
+     * @param id              of the stored vector
+     * @return the cosine similarity
+     */
+    float score(float[] normalizedQuery, int id) {
+        return dotProduct.dot(normalizedQuery, 0, pages[id / vectorsPerPage], (id % vectorsPerPage) * dimension, dimension);
+    }
+
+    /**
+     * Compute the similarity of two stored vectors.
+     *
+     * @param a id of the first vector
+     * @param b id of the second vector
+     * @return the cosine similarity
+     */
+    float score(int a, int b) {
+        return dotProduct.dot(
+                pages[a / vectorsPerPage], (a % vectorsPerPage) * dimension,
+                pages[b / vectorsPerPage], (b % vectorsPerPage) * dimension,
+                dimension
+        );
+    }
+
+    /**
+     * Get the number of stored vectors.
+     *
+     * @return the number of stored vectors
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the dimension of the stored vectors.
+     *
+     * @return the dimension
+     */
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Scans a range of vectors.
+     */
+    private final class Scan extends RecursiveTask<TopK> {
+
+        private final float[][] pages;
+        private final float[] query;
+        private final int k;
+        private final int from;
+        private final int to;
+
+        Scan(float[][] pages, float[] query, int k, int from, int to) {
+            this.pages = pages;
+            this.query = query;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from > VECTORS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                var left = new Scan(pages, query, k, from, middle);
+                var right = new Scan(pages, query, k, middle, to);
+                left.fork();
+                TopK result = right.compute();
+                result.addAll(left.join());
+                return result;
+            }
+            var topK = new TopK(k);
+            for (int id = from; id < to; id++) {
+                float[] page = pages[id / vectorsPerPage];
+                topK.offer(id, dotProduct.dot(query, 0, page, (id % vectorsPerPage) * dimension, dimension));
+            }
+            return topK;
+        }
+    }
+
+    /**
+     * Builder for {@link VectorStore}. Not thread-safe.
+     */
+    public static class VectorStoreBuilder {
+        private int dimension;
+        private DotProduct dotProduct = DotProduct.best();
+        private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        private VectorStoreBuilder() {
+        }
+
+        /**
+         * Set the dimension of the vectors, e.g. 768 for {@code text-embedding-004}.
+         *
+         * @param dimension to set. Must be positive.
+         * @return this
+         */
+        public VectorStoreBuilder dimension(int dimension) {
+            this.dimension = dimension;
+            return this;
+        }
+
+        /**
+         * Set the kernel to compute the similarities.
+         *
+         * @param dotProduct to use
+         * @return this
+         */
+        public VectorStoreBuilder dotProduct(DotProduct dotProduct) {
+            this.dotProduct = dotProduct;
+            return this;
+        }
+
+        /**
+         * Set the pool which scans in parallel.
+         *
+         * @param pool to use
+         * @return this
+         */
+        public VectorStoreBuilder pool(ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Build the store.
+         *
+         * @return a new, empty {@link VectorStore}
+         */
+        public VectorStore build() {
+            return new VectorStore(this);
+        }
+    }
+}
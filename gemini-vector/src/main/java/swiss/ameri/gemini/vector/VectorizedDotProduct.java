@@ -0,0 +1,90 @@
+package swiss.ameri.gemini.vector;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Optional;
+
+/**
+ * {@link DotProduct} using the SIMD instructions of the {@code jdk.incubator.vector} module, with the widest vector
+ * shape the CPU supports. Must only be loaded through {@link Loader}, since the class cannot be linked if the module
+ * is missing.
+ */
+final class VectorizedDotProduct implements DotProduct {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    // as many byte lanes as int lanes, so that the bytes are widened into a full int vector. With 4 int lanes
+    // (128 bit CPUs), there is no 32 bit shape, so 64 bits of bytes are widened in 2 parts instead
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(Math.max(64, INTS.length() * Byte.SIZE)));
+    private static final int PARTS = BYTES.length() / INTS.length();
+
+    VectorizedDotProduct() {
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        var sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            var va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            var vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            // mul and add instead of fma, which is emulated very slowly on CPUs without FMA instructions
+            sum = va.mul(vb).add(sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        var sum = IntVector.zero(INTS);
+        int i = 0;
+        for (int bound = BYTES.loopBound(length); i < bound; i += BYTES.length()) {
+            var ba = ByteVector.fromArray(BYTES, a, aOffset + i);
+            var bb = ByteVector.fromArray(BYTES, b, bOffset + i);
+            for (int part = 0; part < PARTS; part++) {
+                var va = (IntVector) ba.castShape(INTS, part);
+                var vb = (IntVector) bb.castShape(INTS, part);
+                sum = va.mul(vb).add(sum);
+            }
+        }
+        int result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    /**
+     * Loads {@link VectorizedDotProduct} reflectively, only if the module is present.
+     */
+    static final class Loader {
+
+        static final Optional<DotProduct> INSTANCE = load();
+
+        private Loader() {
+        }
+
+        private static Optional<DotProduct> load() {
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of((DotProduct) Class.forName("swiss.ameri.gemini.vector.VectorizedDotProduct")
+                        .getDeclaredConstructor()
+                        .newInstance());
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return Optional.empty();
+            }
+        }
+    }
+}
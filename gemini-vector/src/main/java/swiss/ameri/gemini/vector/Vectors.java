@@ -0,0 +1,48 @@
+package swiss.ameri.gemini.vector;
+
+/**
+ * Helpers for float vectors.
+ */
+final class Vectors {
+
+    private Vectors() {
+        throw new AssertionError("Not instantiable");
+    }
+
+    /**
+     * Scale a vector to a length of 1, so that the dot product of two normalized vectors is their cosine similarity.
+     *
+     * @param vector to normalize, is not modified
+     * @return a normalized copy. A zero vector stays a zero vector.
+     */
+    static float[] normalize(float[] vector) {
+        double squares = 0;
+        for (float value : vector) {
+            squares += value * value;
+        }
+        float[] normalized = vector.clone();
+        if (squares == 0) {
+            return normalized;
+        }
+        float scale = (float) (1.0 / Math.sqrt(squares));
+        for (int i = 0; i < normalized.length; i++) {
+            normalized[i] *= scale;
+        }
+        return normalized;
+    }
+
+    /**
+     * Check the dimension of a vector.
+     *
+     * @param vector    to check
+     * @param dimension expected length
+     * @return the vector
+     */
+    static float[] requireDimension(float[] vector, int dimension) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a vector of dimension %d, but got %d"
+                    .formatted(dimension, vector.length));
+        }
+        return vector;
+    }
+}